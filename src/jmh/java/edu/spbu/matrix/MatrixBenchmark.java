@@ -0,0 +1,72 @@
+package edu.spbu.matrix;
+
+import edu.spbu.MatrixGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * mul and dmul for every Dense/Sparse combination on MatrixGenerator input.
+ * Operands are generated with fixed seeds, so every run multiplies the same matrices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatrixBenchmark
+{
+  @Param({"200", "1000"})
+  public int size;
+
+  /* 1/nonZeroFraction of the entries of a non empty row are non 0 */
+  @Param({"10"})
+  public int nonZeroFraction;
+
+  /* only 1/emptyRowFraction of the rows are non empty */
+  @Param({"" + MatrixGenerator.EMPTY_ROW_FRACTION})
+  public int emptyRowFraction;
+
+  /* left and right operand representation: D dense, S sparse */
+  @Param({"DD", "DS", "SD", "SS"})
+  public String formats;
+
+  private Matrix m1;
+  private Matrix m2;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException
+  {
+    m1 = generate(MatrixGenerator.SEED1, formats.charAt(0));
+    m2 = generate(MatrixGenerator.SEED2, formats.charAt(1));
+  }
+
+  private Matrix generate(int seed, char format) throws IOException
+  {
+    File file = File.createTempFile("matrix_benchmark", ".txt");
+    try
+    {
+      new MatrixGenerator(seed, emptyRowFraction, nonZeroFraction, file.getPath(), size).generate();
+      return format == 'D' ? new DenseMatrix(file.getPath()) : new SparseMatrix(file.getPath());
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Benchmark
+  public Matrix mul()
+  {
+    return m1.mul(m2);
+  }
+
+  @Benchmark
+  public Matrix dmul()
+  {
+    return m1.dmul(m2);
+  }
+}
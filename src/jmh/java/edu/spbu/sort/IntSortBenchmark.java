@@ -0,0 +1,80 @@
+package edu.spbu.sort;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IntSort sorts on the same pseudo random arrays IntSortTest uses
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IntSortBenchmark
+{
+  public static final int SEED = 1;
+
+  @Param({"100000", "10000000"})
+  public int size;
+
+  private int[] source;
+  private int[] array;
+  private int[] buffer;
+
+  @Setup(Level.Trial)
+  public void generate()
+  {
+    source = new int[size];
+    Random rnd = new Random(SEED);
+    for (int i = 0; i < source.length; i++)
+      source[i] = rnd.nextInt();
+    array = new int[size];
+    buffer = new int[size];
+  }
+
+  /* every invocation sorts the same unsorted input, an invocation takes milliseconds so the copy is cheap */
+  @Setup(Level.Invocation)
+  public void reset()
+  {
+    System.arraycopy(source, 0, array, 0, size);
+  }
+
+  @Benchmark
+  public int[] sort()
+  {
+    IntSort.sort(array);
+    return array;
+  }
+
+  @Benchmark
+  public int[] legacyMergeSort()
+  {
+    IntSort.legacyMergeSort(array);
+    return array;
+  }
+
+  @Benchmark
+  public int[] radixSort()
+  {
+    IntSort.radixSort(array, buffer);
+    return array;
+  }
+
+  @Benchmark
+  public int[] mergeSort()
+  {
+    IntSort.mergeSort(array, buffer, false);
+    return array;
+  }
+
+  @Benchmark
+  public int[] parallelMergeSort()
+  {
+    IntSort.mergeSort(array, buffer, true);
+    return array;
+  }
+}
@@ -0,0 +1,90 @@
+package edu.spbu;
+
+import edu.spbu.matrix.*;
+
+import java.util.Random;
+
+/**
+ * Compares DenseMatrix.mul (blocked kernel, Strassen-Winograd for large square operands)
+ * against the old i-j-k loop over double[][]
+ * usage: DenseMulBenchmark [size ...], default sizes are 1000 2000 3000 4000
+ */
+public class DenseMulBenchmark
+{
+  public static final int SEED = 1;
+  public static final int[] DEFAULT_SIZES = {1000, 2000, 3000, 4000};
+
+  public static void main(String args[])
+  {
+    int[] sizes = DEFAULT_SIZES;
+    if (args.length > 0)
+    {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++)
+        sizes[i] = Integer.parseInt(args[i]);
+    }
+
+    /* let the JIT compile both kernels before anything is measured */
+    run(200, false);
+    for (int size : sizes)
+      run(size, true);
+  }
+
+  private static void run(int size, boolean report)
+  {
+    Random rnd = new Random(SEED);
+    double[][] a = new double[size][size];
+    double[][] b = new double[size][size];
+    DenseMatrix m1 = new DenseMatrix(size, size);
+    DenseMatrix m2 = new DenseMatrix(size, size);
+    for (int i = 0; i < size; i++)
+    {
+      for (int j = 0; j < size; j++)
+      {
+        a[i][j] = rnd.nextInt(10000);
+        b[i][j] = rnd.nextInt(10000);
+        m1.set_entry(i, j, a[i][j]);
+        m2.set_entry(i, j, b[i][j]);
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    double[][] expected = naiveMul(a, b);
+    long naiveTime = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    DenseMatrix actual = (DenseMatrix) m1.mul(m2);
+    long blockedTime = System.currentTimeMillis() - start;
+
+    for (int i = 0; i < size; i++)
+      for (int j = 0; j < size; j++)
+        if (expected[i][j] != actual.get_entry(i, j))
+          throw new IllegalStateException("Mismatch at (" + i + "," + j + ")");
+
+    if (report)
+    {
+      System.out.println(size + "x" + size + ": naive " + naiveTime + " ms, blocked " + blockedTime
+              + " ms, speedup " + String.format("%.1f", (double) naiveTime / Math.max(blockedTime, 1)) + "x");
+    }
+  }
+
+  /**
+   * the loop DenseMatrix.mul used before the blocked kernel: column walk down b for every entry
+   */
+  private static double[][] naiveMul(double[][] a, double[][] b)
+  {
+    int n = a.length;
+    int p = b[0].length;
+    double[][] c = new double[n][p];
+    for (int i = 0; i < n; i++)
+    {
+      for (int j = 0; j < p; j++)
+      {
+        c[i][j] = 0;
+        for (int k = 0; k < b.length; k++)
+          c[i][j] += a[i][k] * b[k][j];
+      }
+    }
+    return c;
+  }
+}
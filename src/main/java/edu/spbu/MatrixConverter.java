@@ -0,0 +1,52 @@
+package edu.spbu;
+
+import edu.spbu.matrix.BinaryMatrixFile;
+
+import java.io.IOException;
+
+/**
+ * Converts text matrix files written by MatrixGenerator into BinaryMatrixFile format.
+ * usage: MatrixConverter [text file binary file [dense|sparse]]
+ * without arguments m1.txt and m2.txt are converted to m1.bin and m2.bin in sparse format
+ */
+public class MatrixConverter
+{
+  public static final String MATRIX1_BINARY_NAME = "m1.bin";
+  public static final String MATRIX2_BINARY_NAME = "m2.bin";
+
+  public static void main(String args[])
+  {
+    try
+    {
+      if (args.length == 0)
+      {
+        convert(MatrixGenerator.MATRIX1_NAME, MATRIX1_BINARY_NAME, true);
+        convert(MatrixGenerator.MATRIX2_NAME, MATRIX2_BINARY_NAME, true);
+      }
+      else if (args.length == 2 || args.length == 3)
+      {
+        boolean sparse = args.length == 2 || args[2].equals("sparse");
+        if (args.length == 3 && !sparse && !args[2].equals("dense"))
+        {
+          System.out.println("Unknown format " + args[2] + ", expected dense or sparse");
+          return;
+        }
+        convert(args[0], args[1], sparse);
+      }
+      else
+        System.out.println("usage: MatrixConverter [text file binary file [dense|sparse]]");
+    }
+    catch (IOException e)
+    {
+      System.out.println("Fail to convert matrix file: " + e);
+    }
+  }
+
+  private static void convert(String textFile, String binaryFile, boolean sparse) throws IOException
+  {
+    long start = System.currentTimeMillis();
+    BinaryMatrixFile.convert_text(textFile, binaryFile, sparse);
+    System.out.println(textFile + " -> " + binaryFile + " (" + (sparse ? "sparse" : "dense") + ") in "
+            + (System.currentTimeMillis() - start) + " ms");
+  }
+}
@@ -1,11 +1,11 @@
 package edu.spbu;
 
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Collections;
+import java.io.Writer;
+import java.util.PrimitiveIterator;
 import java.util.Random;
-import java.util.stream.Collectors;
 import edu.spbu.matrix.*;
 
 public class MatrixGenerator
@@ -19,18 +19,26 @@ public class MatrixGenerator
   public static final int SIZE = 100;
 
   private final int emptyRowFraction;
+  private final int nonZeroFraction;
   private final int size;
-  private final String emptyRow;
   private final Random rnd;
   private final String file;
 
   public MatrixGenerator(int seed, int emptyRowFraction, String file, int size)
+  {
+    this(seed, emptyRowFraction, emptyRowFraction, file, size);
+  }
+
+  /**
+   * @param nonZeroFraction only 1/nonZeroFraction of the entries in a non empty row will be non 0
+   */
+  public MatrixGenerator(int seed, int emptyRowFraction, int nonZeroFraction, String file, int size)
   {
     this.emptyRowFraction = emptyRowFraction;
+    this.nonZeroFraction = nonZeroFraction;
     this.size = size;
     this.file = file;
     rnd = new Random(seed);
-    emptyRow = Collections.nCopies(size, "0").stream().collect(Collectors.joining(" "));
   }
 
   public static void main(String args[])
@@ -71,24 +79,50 @@ public class MatrixGenerator
     /* */
   }
 
+  /**
+   * writes the matrix row by row, for large matrices see StreamingMatrixGenerator
+   */
   public void generate() throws IOException
   {
-    PrintWriter out = new PrintWriter(new FileWriter(file));
-    for (int i = 0; i < size; i++)
+    try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16))
+    {
+      for (int i = 0; i < size; i++)
+      {
+        // only 1/emptyRowFraction will have non 0 values
+        if (rnd.nextInt(emptyRowFraction) == 0)
+          writeRow(out);
+        else
+          writeZeros(out);
+        out.write(System.lineSeparator());
+      }
+    }
+  }
+
+  /**
+   * draws from rnd in the order the rows have always been drawn, a seed keeps giving the same file
+   */
+  private void writeRow(Writer out) throws IOException
+  {
+    PrimitiveIterator.OfInt draws = rnd.ints(size, 0, nonZeroFraction).iterator();
+    for (int j = 0; j < size; j++)
     {
-      // only 1/emptyRowFraction will have non 0 values
-      if (rnd.nextInt(emptyRowFraction) == 0)
-        out.println(generateRow());
+      if (j > 0)
+        out.write(' ');
+      if (draws.nextInt() == 0)
+        out.write(Integer.toString(rnd.nextInt(10000)));
       else
-        out.println(emptyRow);
+        out.write('0');
     }
-    out.close();
   }
 
-  private String generateRow()
+  private void writeZeros(Writer out) throws IOException
   {
-    return rnd.ints(0, emptyRowFraction).limit(size).mapToObj(r -> (r == 0) ? "" + rnd.nextInt(10000) : "0")
-            .collect(Collectors.joining(" "));
+    for (int j = 0; j < size; j++)
+    {
+      if (j > 0)
+        out.write(' ');
+      out.write('0');
+    }
   }
 
 }
@@ -3,31 +3,54 @@ package edu.spbu;
 import edu.spbu.matrix.*;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class MatrixPerfTest
 {
   public static final String MATRIX1_NAME = "m1.txt";
   public static final String MATRIX2_NAME = "m2.txt";
 
+  /**
+   * loads the four operands at once, then multiplies the dense and the sparse pair one after the other,
+   * so each time covers its multiplication alone
+   */
   public static void main(String s[]) throws IOException
   {
-    System.out.println("Starting loading dense matrices");
-    Matrix m1 = new DenseMatrix(MATRIX1_NAME);
-    System.out.println("1 loaded");
-    Matrix m2 = new DenseMatrix(MATRIX2_NAME);
-    System.out.println("2 loaded");
+    System.out.println("Starting loading dense and sparse matrices");
+    CompletableFuture<DenseMatrix> d1 = loaded(MatrixJobs.load_dense_async(MATRIX1_NAME), "dense 1");
+    CompletableFuture<DenseMatrix> d2 = loaded(MatrixJobs.load_dense_async(MATRIX2_NAME), "dense 2");
+    CompletableFuture<SparseMatrix> s1 = loaded(MatrixJobs.load_sparse_async(MATRIX1_NAME), "sparse 1");
+    CompletableFuture<SparseMatrix> s2 = loaded(MatrixJobs.load_sparse_async(MATRIX2_NAME), "sparse 2");
+    CompletableFuture<Matrix> r1 = CompletableFuture.allOf(d1, d2, s1, s2)
+        .thenApplyAsync(v -> timed("Dense", d1.join(), d2.join()), MatrixJobs.get_compute_executor());
+    CompletableFuture<Matrix> r2 = r1
+        .thenApplyAsync(v -> timed("Sparse", s1.join(), s2.join()), MatrixJobs.get_compute_executor());
+    try
+    {
+      System.out.println("equals: " + r1.thenCombine(r2, Matrix::equals).join());
+    }
+    catch (CompletionException e)
+    {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw e;
+    }
+  }
+
+  private static Matrix timed(String name, Matrix a, Matrix b)
+  {
     long start = System.currentTimeMillis();
-    Matrix r1 = m1.mul(m2);
-    System.out.println("Dense Matrix time: " +(System.currentTimeMillis() - start));
+    Matrix result = a.mul(b);
+    System.out.println(name + " Matrix time: " + (System.currentTimeMillis() - start));
+    return result;
+  }
 
-    System.out.println("Starting loading sparse matrices");
-    m1 = new SparseMatrix(MATRIX1_NAME);
-    System.out.println("1 loaded");
-    m2 = new SparseMatrix(MATRIX2_NAME);
-    System.out.println("2 loaded");
-    start = System.currentTimeMillis();
-    Matrix r2 = m1.mul(m2);
-    System.out.println("Sparse Matrix time: " +(System.currentTimeMillis() - start));
-    System.out.println("equals: " + r1.equals(r2));
+  private static <T extends Matrix> CompletableFuture<T> loaded(CompletableFuture<T> load, String name)
+  {
+    return load.whenComplete((m, e) -> {
+      if (e == null)
+        System.out.println(name + " loaded");
+    });
   }
 }
@@ -0,0 +1,415 @@
+package edu.spbu;
+
+import edu.spbu.matrix.BinaryMatrixFile;
+import edu.spbu.matrix.ParallelEngine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates large random matrices straight to a text or BinaryMatrixFile file.
+ *
+ * Rows are produced in blocks by a pool of workers and written in order while the next blocks
+ * are generated, so only a few blocks are ever in memory. Every row draws from its own
+ * SplittableRandom seeded from the matrix seed and the row index: a file depends on the seed
+ * alone, not on the number of workers.
+ * usage: StreamingMatrixGenerator file rows cols nnzPerRow [text|dense|sparse [columnSkew [seed]]]
+ */
+public class StreamingMatrixGenerator
+{
+  public static final int MAX_VALUE = 10000;
+  private static final int BLOCK_BYTES = 1 << 20;   /* output generated per task */
+
+  private final long seed;
+  private final int rows;
+  private final int cols;
+  private final int nnzPerRow;
+  private int emptyRowFraction = 1;
+  private double columnSkew = 0;
+  private int parallelism = ParallelEngine.get_parallelism();
+
+  /**
+   * @param nnzPerRow nonzeros in every non empty row, capped at cols
+   */
+  public StreamingMatrixGenerator(long seed, int rows, int cols, int nnzPerRow)
+  {
+    if (rows < 0 || cols < 0 || nnzPerRow < 0)
+      throw new IllegalArgumentException("Negative matrix size " + rows + "*" + cols + " or nnz " + nnzPerRow);
+    this.seed = seed;
+    this.rows = rows;
+    this.cols = cols;
+    this.nnzPerRow = Math.min(nnzPerRow, cols);
+  }
+
+  public static void main(String args[])
+  {
+    if (args.length < 4)
+    {
+      System.out.println("usage: StreamingMatrixGenerator file rows cols nnzPerRow [text|dense|sparse [columnSkew [seed]]]");
+      return;
+    }
+    try
+    {
+      String format = args.length > 4 ? args[4] : "text";
+      StreamingMatrixGenerator generator = new StreamingMatrixGenerator(args.length > 6 ? Long.parseLong(args[6]) : 1,
+              Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]))
+              .columnSkew(args.length > 5 ? Double.parseDouble(args[5]) : 0);
+      long start = System.currentTimeMillis();
+      if (format.equals("text"))
+        generator.writeText(args[0]);
+      else if (format.equals("dense") || format.equals("sparse"))
+        generator.writeBinary(args[0], format.equals("sparse"));
+      else
+      {
+        System.out.println("Unknown format " + format + ", expected text, dense or sparse");
+        return;
+      }
+      System.out.println(args[0] + " generated in " + (System.currentTimeMillis() - start) + " ms");
+    }
+    catch (IOException e)
+    {
+      System.out.println("Fail to generate matrix file: " + e);
+    }
+  }
+
+  /**
+   * only 1/emptyRowFraction of the rows will have nonzeros, as in MatrixGenerator
+   */
+  public StreamingMatrixGenerator emptyRowFraction(int emptyRowFraction)
+  {
+    if (emptyRowFraction < 1)
+      throw new IllegalArgumentException("Empty row fraction must be positive, got " + emptyRowFraction);
+    this.emptyRowFraction = emptyRowFraction;
+    return this;
+  }
+
+  /**
+   * @param columnSkew 0 spreads the nonzeros of a row evenly over the columns, larger values pile them up
+   *                   on the leading columns: a column is picked as cols * u^(1 + columnSkew) for a uniform u
+   */
+  public StreamingMatrixGenerator columnSkew(double columnSkew)
+  {
+    if (!(columnSkew >= 0))
+      throw new IllegalArgumentException("Column skew must not be negative, got " + columnSkew);
+    this.columnSkew = columnSkew;
+    return this;
+  }
+
+  /**
+   * @param parallelism number of generating threads, ParallelEngine parallelism by default
+   */
+  public StreamingMatrixGenerator parallelism(int parallelism)
+  {
+    if (parallelism < 1)
+      throw new IllegalArgumentException("Parallelism must be positive, got " + parallelism);
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * writes the matrix in the text format MatrixGenerator writes and MatrixLoader reads
+   */
+  public void writeText(String file) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      generate(Math.max(1, BLOCK_BYTES / textRowBytes()), new TextBlock(), block -> {
+        ByteBuffer buffer = ByteBuffer.wrap(block.text, 0, block.length);
+        while (buffer.hasRemaining())
+          channel.write(buffer);
+      });
+    }
+  }
+
+  /**
+   * writes the matrix as a BinaryMatrixFile
+   * @param sparse CSR arrays instead of every entry
+   */
+  public void writeBinary(String file, boolean sparse) throws IOException
+  {
+    BinaryMatrixFile.RowWriter writer;
+    if (sparse)
+    {
+      /* the row pointers precede the nonzeros, a row's count only takes its first draw */
+      int[] rowPtr = new int[rows + 1];
+      for (int i = 0; i < rows; i++)
+      {
+        long next = (long) rowPtr[i] + (nonEmpty(rowRandom(i)) ? nnzPerRow : 0);
+        if (next > Integer.MAX_VALUE)
+          throw new IllegalArgumentException("More than " + Integer.MAX_VALUE + " nonzeros in " + rows + " rows");
+        rowPtr[i + 1] = (int) next;
+      }
+      writer = BinaryMatrixFile.open_sparse(file, rowPtr, cols);
+    }
+    else
+      writer = BinaryMatrixFile.open_dense(file, rows, cols);
+    try (BinaryMatrixFile.RowWriter w = writer)
+    {
+      int rowBytes = sparse ? 12 * nnzPerRow + 4 : 8 * cols;
+      generate(Math.max(1, BLOCK_BYTES / Math.max(1, rowBytes)), new EntryBlock(), block -> {
+        for (int r = 0; r < block.rowCount; r++)
+          w.write_row(block.colIdx, block.values, block.rowStart[r], block.rowStart[r + 1] - block.rowStart[r]);
+      });
+    }
+  }
+
+  /**
+   * a block of rows being filled by a worker, empty ones are created by prototype.create
+   */
+  private interface Block<B extends Block<B>>
+  {
+    B create(int blockRows);
+
+    void row(int[] colIdx, int[] values, int count);
+  }
+
+  private interface BlockWriter<B>
+  {
+    void write(B block) throws IOException;
+  }
+
+  /**
+   * hands out blocks of blockRows rows to the workers and writes the finished ones in order,
+   * at most two blocks per worker are pending at a time
+   */
+  private <B extends Block<B>> void generate(int blockRows, B prototype, BlockWriter<B> writer) throws IOException
+  {
+    ExecutorService pool = Executors.newFixedThreadPool(parallelism, r -> {
+      Thread t = new Thread(r, "matrix-generator");
+      t.setDaemon(true);
+      return t;
+    });
+    try
+    {
+      ArrayDeque<Future<B>> pending = new ArrayDeque<>();
+      for (int from = 0; from < rows || !pending.isEmpty(); )
+      {
+        while (from < rows && pending.size() < 2 * parallelism)
+        {
+          int blockFrom = from;
+          int blockTo = (int) Math.min(rows, (long) from + blockRows);
+          pending.add(pool.submit(() -> fill(prototype.create(blockTo - blockFrom), blockFrom, blockTo)));
+          from = blockTo;
+        }
+        writer.write(pending.poll().get());
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Matrix generation interrupted");
+    }
+    catch (ExecutionException e)
+    {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+
+  private <B extends Block<B>> B fill(B block, int from, int to)
+  {
+    int[] colIdx = new int[nnzPerRow];
+    int[] values = new int[nnzPerRow];
+    boolean[] taken = new boolean[cols];
+    for (int i = from; i < to; i++)
+    {
+      SplittableRandom rnd = rowRandom(i);
+      if (!nonEmpty(rnd))
+      {
+        block.row(colIdx, values, 0);
+        continue;
+      }
+      pickColumns(rnd, colIdx, taken);
+      for (int p = 0; p < nnzPerRow; p++)
+        values[p] = rnd.nextInt(1, MAX_VALUE);
+      block.row(colIdx, values, nnzPerRow);
+    }
+    return block;
+  }
+
+  /**
+   * murmur3 finalizer over the seed and the row index, neighbouring rows get unrelated streams
+   */
+  private SplittableRandom rowRandom(int i)
+  {
+    long h = seed * 0x9E3779B97F4A7C15L + i;
+    h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+    h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return new SplittableRandom(h ^ (h >>> 33));
+  }
+
+  /**
+   * longest possible text row: a zero with its separator takes 2 bytes, a value up to 5
+   */
+  private int textRowBytes()
+  {
+    return 2 * cols + 3 * nnzPerRow + 1;
+  }
+
+  private boolean nonEmpty(SplittableRandom rnd)
+  {
+    return nnzPerRow > 0 && (emptyRowFraction == 1 || rnd.nextInt(emptyRowFraction) == 0);
+  }
+
+  /**
+   * nnzPerRow distinct columns into colIdx, ascending. A taken column moves on to the next free one.
+   * Rows more than half full pick the columns they leave out instead, mirrored so the skew still
+   * favours the leading columns
+   */
+  private void pickColumns(SplittableRandom rnd, int[] colIdx, boolean[] taken)
+  {
+    boolean complement = 2 * nnzPerRow > cols;
+    int picks = complement ? cols - nnzPerRow : nnzPerRow;
+    for (int p = 0; p < picks; p++)
+    {
+      int c = pickColumn(rnd);
+      if (complement)
+        c = cols - 1 - c;
+      while (taken[c])
+        c = c + 1 == cols ? 0 : c + 1;
+      taken[c] = true;
+      colIdx[p] = c;
+    }
+    if (!complement && 8L * picks < cols)
+    {
+      Arrays.sort(colIdx, 0, picks);
+      for (int p = 0; p < picks; p++)
+        taken[colIdx[p]] = false;
+      return;
+    }
+    int n = 0;
+    for (int c = 0; c < cols; c++)
+    {
+      if (taken[c] != complement)
+        colIdx[n++] = c;
+      taken[c] = false;
+    }
+  }
+
+  private int pickColumn(SplittableRandom rnd)
+  {
+    double u = rnd.nextDouble();
+    if (columnSkew != 0)
+      u = Math.pow(u, 1 + columnSkew);
+    return Math.min(cols - 1, (int) (u * cols));
+  }
+
+  /**
+   * rows formatted as text, zeros are copied in runs from a line of zeros
+   */
+  private final class TextBlock implements Block<TextBlock>
+  {
+    final byte[] text;
+    final byte[] zeros;
+    int length = 0;
+
+    TextBlock()
+    {
+      this(0, null);
+    }
+
+    private TextBlock(int blockRows, byte[] zeros)
+    {
+      this.text = new byte[textRowBytes() * blockRows];
+      if (zeros == null)
+      {
+        zeros = new byte[2 * cols];
+        for (int j = 0; j < cols; j++)
+        {
+          zeros[2 * j] = '0';
+          zeros[2 * j + 1] = ' ';
+        }
+      }
+      this.zeros = zeros;
+    }
+
+    @Override public TextBlock create(int blockRows)
+    {
+      return new TextBlock(blockRows, zeros);
+    }
+
+    @Override public void row(int[] colIdx, int[] values, int count)
+    {
+      int j = 0;
+      for (int p = 0; p < count; p++)
+      {
+        zeroRun(colIdx[p] - j);
+        length = appendInt(values[p]);
+        text[length++] = ' ';
+        j = colIdx[p] + 1;
+      }
+      zeroRun(cols - j);
+      if (cols > 0)
+        length--;   /* no separator after the last value */
+      text[length++] = '\n';
+    }
+
+    private void zeroRun(int n)
+    {
+      System.arraycopy(zeros, 0, text, length, 2 * n);
+      length += 2 * n;
+    }
+
+    private int appendInt(int v)
+    {
+      int digits = v < 10 ? 1 : v < 100 ? 2 : v < 1000 ? 3 : v < 10000 ? 4 : 5;
+      for (int d = length + digits - 1; d >= length; d--, v /= 10)
+        text[d] = (byte) ('0' + v % 10);
+      return length + digits;
+    }
+  }
+
+  /**
+   * nonzeros of the rows in CSR form, for BinaryMatrixFile.RowWriter
+   */
+  private final class EntryBlock implements Block<EntryBlock>
+  {
+    final int[] rowStart;
+    final int[] colIdx;
+    final double[] values;
+    int rowCount = 0;
+
+    EntryBlock()
+    {
+      this(0);
+    }
+
+    private EntryBlock(int blockRows)
+    {
+      rowStart = new int[blockRows + 1];
+      colIdx = new int[blockRows * nnzPerRow];
+      values = new double[blockRows * nnzPerRow];
+    }
+
+    @Override public EntryBlock create(int blockRows)
+    {
+      return new EntryBlock(blockRows);
+    }
+
+    @Override public void row(int[] colIdx, int[] values, int count)
+    {
+      int start = rowStart[rowCount];
+      System.arraycopy(colIdx, 0, this.colIdx, start, count);
+      for (int p = 0; p < count; p++)
+        this.values[start + p] = values[p];
+      rowStart[++rowCount] = start + count;
+    }
+  }
+}
@@ -0,0 +1,756 @@
+package edu.spbu.matrix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Binary on-disk matrix format, all numbers little-endian.
+ *
+ * 32 byte header: magic "SPBM", int version, int kind (0 dense, 1 sparse), int reserved,
+ * int row count, int column count, long nonzero count (0 for dense).
+ * Dense body: row_count * col_count doubles, row-major.
+ * Sparse body: CSR arrays, row_count + 1 int row pointers, nnz int column indices,
+ * padding to 8 bytes, nnz double values.
+ * Every array starts 8-byte aligned so it can be viewed in place through a mapped buffer.
+ */
+public final class BinaryMatrixFile
+{
+    public static final int MAGIC = 0x4D425053;   /* "SPBM" read as a little-endian int */
+    public static final int VERSION = 1;
+    public static final int DENSE = 0;
+    public static final int SPARSE = 1;
+    static final int HEADER_SIZE = 32;
+    private static final int CHUNK_SIZE = 1 << 30;  /* bytes mapped at a time, a mapping is capped at 2 GB */
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * parsed file header
+     */
+    static final class Header
+    {
+        int kind;
+        int row_count;
+        int col_count;
+        long nnz;
+
+        long data_size()
+        {
+            if(kind == DENSE)
+                return 8L * row_count * col_count;
+            return values_offset() - HEADER_SIZE + 8L * nnz;
+        }
+        long col_idx_offset()
+        {
+            return HEADER_SIZE + 4L * (row_count + 1);
+        }
+        long values_offset()
+        {
+            long end = col_idx_offset() + 4L * nnz;
+            return (end + 7) & ~7L;
+        }
+    }
+
+    private BinaryMatrixFile()
+    {
+    }
+
+    /**
+     * @return true if file_name starts with the binary format magic
+     */
+    public static boolean is_binary(String file_name)
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(file_name), StandardOpenOption.READ))
+        {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while(magic.hasRemaining() && channel.read(magic) >= 0)
+                ;
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+        catch(IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * converts a text matrix file (MatrixGenerator output) into the binary format.
+     * Dense output is streamed row by row, sparse output in two passes over the text: the first one
+     * counts the nonzeros of every row, the second one writes them, only the row pointers are kept
+     * in memory.
+     * @param sparse write CSR arrays instead of every entry
+     */
+    public static void convert_text(String text_file, String binary_file, boolean sparse) throws IOException
+    {
+        if(sparse)
+        {
+            RowCounter counter = new RowCounter();
+            MatrixLoader.load(text_file, counter);
+            convert_text_sparse(text_file, binary_file, counter);
+            return;
+        }
+        try(FileChannel channel = open_for_write(binary_file))
+        {
+            DenseRowWriter writer = new DenseRowWriter(channel);
+            int rows = MatrixLoader.load(text_file, writer);
+            writer.finish();
+            write_header(channel, DENSE, rows, writer.col_count, 0);
+        }
+    }
+
+    /**
+     * convert_text into whichever kind makes the smaller file, known after counting the nonzeros
+     * @return SPARSE or DENSE, the kind written
+     */
+    static int convert_text_compact(String text_file, String binary_file) throws IOException
+    {
+        RowCounter counter = new RowCounter();
+        MatrixLoader.load(text_file, counter);
+        long nnz = counter.row_ptr[counter.row_count];
+        if(12 * nnz + 4L * counter.row_count < 8L * counter.row_count * counter.col_count)
+        {
+            convert_text_sparse(text_file, binary_file, counter);
+            return SPARSE;
+        }
+        convert_text(text_file, binary_file, false);
+        return DENSE;
+    }
+
+    private static void convert_text_sparse(String text_file, String binary_file, RowCounter counter)
+            throws IOException
+    {
+        int[] row_ptr = Arrays.copyOf(counter.row_ptr, counter.row_count + 1);
+        try(RowWriter writer = open_sparse(binary_file, row_ptr, counter.col_count))
+        {
+            SparseRowWriter sink = new SparseRowWriter(writer);
+            MatrixLoader.load(text_file, sink);
+            sink.finish();
+        }
+    }
+
+    static Header read_header(FileChannel channel) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0)
+            ;
+        if(buffer.hasRemaining() || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a binary matrix file");
+        if(buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported binary matrix version " + buffer.getInt(4));
+        Header header = new Header();
+        header.kind = buffer.getInt(8);
+        header.row_count = buffer.getInt(16);
+        header.col_count = buffer.getInt(20);
+        header.nnz = buffer.getLong(24);
+        if(header.kind != DENSE && header.kind != SPARSE)
+            throw new IOException("Unknown binary matrix kind " + header.kind);
+        if(header.row_count < 0 || header.col_count < 0 || header.nnz < 0 || header.nnz > Integer.MAX_VALUE)
+            throw new IOException("Corrupt binary matrix header");
+        if(channel.size() < HEADER_SIZE + header.data_size())
+            throw new IOException("Binary matrix file is truncated");
+        return header;
+    }
+
+    /**
+     * reads a binary matrix file of either kind into a DenseMatrix
+     */
+    static DenseMatrix read_dense(String file_name) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(file_name), StandardOpenOption.READ))
+        {
+            Header header = read_header(channel);
+            if((long) header.row_count * header.col_count > Integer.MAX_VALUE - 8)
+                throw new IOException(header.row_count + "*" + header.col_count + " matrix does not fit in a DenseMatrix");
+            double[] entries = new double[header.row_count * header.col_count];
+            if(header.kind == DENSE)
+            {
+                map_doubles(channel, HEADER_SIZE, entries, 0, entries.length);
+                return new DenseMatrix(header.row_count, header.col_count, entries);
+            }
+            SparseMatrix sparse = read_sparse(channel, header);
+            DenseMatrix result = new DenseMatrix(header.row_count, header.col_count, entries);
+            sparse.scatter_into(result);
+            return result;
+        }
+    }
+
+    /**
+     * reads a binary matrix file of either kind into a SparseMatrix
+     */
+    static SparseMatrix read_sparse(String file_name) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(file_name), StandardOpenOption.READ))
+        {
+            Header header = read_header(channel);
+            if(header.kind == SPARSE)
+                return read_sparse(channel, header);
+            /* dense file: stream it one row at a time */
+            CsrBuilder builder = new CsrBuilder(header.row_count, 16);
+            double[] row = new double[header.col_count];
+            for(int i = 0; i < header.row_count; i++)
+            {
+                map_doubles(channel, HEADER_SIZE + 8L * i * header.col_count, row, 0, row.length);
+                for(int j = 0; j < row.length; j++)
+                    builder.add(j, row[j]);
+                builder.end_row();
+            }
+            return builder.build(header.row_count, header.col_count);
+        }
+    }
+
+    private static SparseMatrix read_sparse(FileChannel channel, Header header) throws IOException
+    {
+        int nnz = (int) header.nnz;
+        int[] row_ptr = new int[header.row_count + 1];
+        int[] col_idx = new int[nnz];
+        double[] values = new double[nnz];
+        map_ints(channel, HEADER_SIZE, row_ptr, 0, row_ptr.length);
+        map_ints(channel, header.col_idx_offset(), col_idx, 0, nnz);
+        map_doubles(channel, header.values_offset(), values, 0, nnz);
+        if(row_ptr[0] != 0 || row_ptr[header.row_count] != nnz)
+            throw new IOException("Corrupt sparse matrix row pointers");
+        return new SparseMatrix(header.row_count, header.col_count, row_ptr, col_idx, values);
+    }
+
+    /**
+     * copies count doubles starting at byte position into dst, mapping the file in chunks
+     */
+    static void map_doubles(FileChannel channel, long position, double[] dst, int from, int count) throws IOException
+    {
+        while(count > 0)
+        {
+            int n = Math.min(count, CHUNK_SIZE / 8);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * n);
+            mapped.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(dst, from, n);
+            position += 8L * n;
+            from += n;
+            count -= n;
+        }
+    }
+
+    private static void map_ints(FileChannel channel, long position, int[] dst, int from, int count) throws IOException
+    {
+        while(count > 0)
+        {
+            int n = Math.min(count, CHUNK_SIZE / 4);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * n);
+            mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dst, from, n);
+            position += 4L * n;
+            from += n;
+            count -= n;
+        }
+    }
+
+    static void write(DenseMatrix m, String file_name) throws IOException
+    {
+        try(FileChannel channel = open_for_write(file_name))
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(HEADER_SIZE);
+            if(!m.is_column_major())
+                write_doubles(channel, buffer, m.raw_entries(), 0, m.get_row_count() * m.get_col_count());
+            else
+            {
+                /* the file is row-major, a transposed view is gathered one row at a time */
+                double[] row = new double[m.get_col_count()];
+                for(int i = 0; i < m.get_row_count(); i++)
+                {
+                    for(int j = 0; j < row.length; j++)
+                        row[j] = m.get_entry(i, j);
+                    write_doubles(channel, buffer, row, 0, row.length);
+                }
+            }
+            drain(channel, buffer);
+            write_header(channel, DENSE, m.get_row_count(), m.get_col_count(), 0);
+        }
+    }
+
+    static void write(SparseMatrix m, String file_name) throws IOException
+    {
+        Header header = new Header();
+        header.kind = SPARSE;
+        header.row_count = m.get_row_count();
+        header.col_count = m.get_col_count();
+        header.nnz = m.get_nnz();
+        try(FileChannel channel = open_for_write(file_name))
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(HEADER_SIZE);
+            write_ints(channel, buffer, m.raw_row_ptr(), 0, header.row_count + 1);
+            write_ints(channel, buffer, m.raw_col_idx(), 0, m.get_nnz());
+            drain(channel, buffer);
+            channel.position(header.values_offset());
+            write_doubles(channel, buffer, m.raw_values(), 0, m.get_nnz());
+            drain(channel, buffer);
+            write_header(channel, SPARSE, header.row_count, header.col_count, header.nnz);
+        }
+    }
+
+    private static FileChannel open_for_write(String file_name) throws IOException
+    {
+        return FileChannel.open(Paths.get(file_name), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    static void write_header(FileChannel channel, int kind, int rows, int cols, long nnz) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(kind).putInt(0).putInt(rows).putInt(cols).putLong(nnz);
+        buffer.flip();
+        long position = 0;
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * appends count doubles to buffer, writing it out to channel whenever it fills up
+     */
+    static void write_doubles(FileChannel channel, ByteBuffer buffer, double[] src, int from, int count)
+            throws IOException
+    {
+        while(count > 0)
+        {
+            if(buffer.remaining() < 8)
+                drain(channel, buffer);
+            int n = Math.min(count, buffer.remaining() / 8);
+            buffer.asDoubleBuffer().put(src, from, n);
+            buffer.position(buffer.position() + 8 * n);
+            from += n;
+            count -= n;
+        }
+    }
+
+    private static void write_ints(FileChannel channel, ByteBuffer buffer, int[] src, int from, int count)
+            throws IOException
+    {
+        while(count > 0)
+        {
+            if(buffer.remaining() < 4)
+                drain(channel, buffer);
+            int n = Math.min(count, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(src, from, n);
+            buffer.position(buffer.position() + 4 * n);
+            from += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * writes out whatever write_doubles/write_ints left in buffer
+     */
+    static void drain(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * opens file_name for a dense matrix written one row at a time through RowWriter.write_row
+     */
+    public static RowWriter open_dense(String file_name, int row_count, int col_count) throws IOException
+    {
+        if(row_count < 0 || col_count < 0)
+            throw new IllegalArgumentException("Negative matrix size " + row_count + "*" + col_count);
+        Header header = new Header();
+        header.kind = DENSE;
+        header.row_count = row_count;
+        header.col_count = col_count;
+        return new RowWriter(open_for_write(file_name), header, null);
+    }
+
+    /**
+     * opens file_name for a sparse matrix written one row at a time through RowWriter.write_row.
+     * The row pointers go first in the file, so the nonzero count of every row has to be known up front
+     * @param row_ptr row_count + 1 CSR row pointers, row i holds row_ptr[i + 1] - row_ptr[i] nonzeros
+     */
+    public static RowWriter open_sparse(String file_name, int[] row_ptr, int col_count) throws IOException
+    {
+        if(row_ptr.length == 0 || row_ptr[0] != 0 || col_count < 0)
+            throw new IllegalArgumentException("Row pointers must start at 0");
+        for(int i = 1; i < row_ptr.length; i++)
+            if(row_ptr[i] < row_ptr[i - 1])
+                throw new IllegalArgumentException("Row pointers must not decrease, row " + (i - 1));
+        Header header = new Header();
+        header.kind = SPARSE;
+        header.row_count = row_ptr.length - 1;
+        header.col_count = col_count;
+        header.nnz = row_ptr[header.row_count];
+        return new RowWriter(open_for_write(file_name), header, row_ptr);
+    }
+
+    /**
+     * appends the rows of a binary matrix file in order, for matrices that are never held in memory
+     * as a whole. Sparse nonzeros are streamed into the column index and value sections side by side,
+     * the header is written by close once every row is in
+     */
+    public static final class RowWriter implements Closeable
+    {
+        private final FileChannel channel;
+        private final Header header;
+        private final int[] row_ptr;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer value_buffer;
+        private final double[] row;
+        private long idx_position;
+        private long value_position;
+        private int rows_written = 0;
+        private boolean closed = false;
+
+        private RowWriter(FileChannel channel, Header header, int[] row_ptr) throws IOException
+        {
+            this.channel = channel;
+            this.header = header;
+            this.row_ptr = row_ptr;
+            if(row_ptr == null)
+            {
+                value_buffer = null;
+                row = new double[header.col_count];
+                channel.position(HEADER_SIZE);
+                return;
+            }
+            value_buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            row = null;
+            channel.position(HEADER_SIZE);
+            write_ints(channel, buffer, row_ptr, 0, row_ptr.length);
+            drain(channel, buffer);
+            idx_position = header.col_idx_offset();
+            value_position = header.values_offset();
+        }
+
+        /**
+         * appends the next row, given by its nonzeros
+         * @param cols column indices, ascending, of cols[from..from+count)
+         * @param values values[from..from+count) that go with them
+         */
+        public void write_row(int[] cols, double[] values, int from, int count) throws IOException
+        {
+            if(rows_written == header.row_count)
+                throw new IllegalStateException("All " + header.row_count + " rows are written");
+            if(row_ptr != null && count != row_ptr[rows_written + 1] - row_ptr[rows_written])
+                throw new IllegalArgumentException("Row " + rows_written + " has " + count + " nonzeros, expected "
+                                                   + (row_ptr[rows_written + 1] - row_ptr[rows_written]));
+            if(row_ptr == null)
+            {
+                for(int p = from; p < from + count; p++)
+                    row[cols[p]] = values[p];
+                write_doubles(channel, buffer, row, 0, row.length);
+                for(int p = from; p < from + count; p++)
+                    row[cols[p]] = 0;
+            }
+            else
+            {
+                for(int p = from; p < from + count; p++)
+                {
+                    if(cols[p] < 0 || cols[p] >= header.col_count)
+                        throw new IllegalArgumentException("Column " + cols[p] + " is out of 0.." + header.col_count);
+                    if(buffer.remaining() < 4)
+                        idx_position = flush(buffer, idx_position);
+                    buffer.putInt(cols[p]);
+                    if(value_buffer.remaining() < 8)
+                        value_position = flush(value_buffer, value_position);
+                    value_buffer.putDouble(values[p]);
+                }
+            }
+            rows_written++;
+        }
+
+        private long flush(ByteBuffer b, long position) throws IOException
+        {
+            b.flip();
+            while(b.hasRemaining())
+                position += channel.write(b, position);
+            b.clear();
+            return position;
+        }
+
+        /**
+         * writes the header and closes the file
+         * @throws IOException if fewer rows than announced were written
+         */
+        @Override public void close() throws IOException
+        {
+            if(closed)
+                return;
+            closed = true;
+            try(FileChannel c = channel)
+            {
+                if(rows_written != header.row_count)
+                    throw new IOException("Only " + rows_written + " of " + header.row_count + " rows were written");
+                if(row_ptr == null)
+                    drain(c, buffer);
+                else
+                {
+                    flush(buffer, idx_position);
+                    flush(value_buffer, value_position);
+                }
+                write_header(c, header.kind, header.row_count, header.col_count, header.nnz);
+            }
+        }
+    }
+
+    /**
+     * first pass of a sparse text conversion: CSR row pointers and the column count
+     */
+    private static final class RowCounter implements MatrixLoader.Sink
+    {
+        private int[] row_ptr = new int[17];
+        private int row_count = 0;
+        private int col_count = 0;
+        private int nnz = 0;
+
+        @Override public void entry(int i, int j, double value)
+        {
+            if(nnz == Integer.MAX_VALUE)
+                throw new IllegalStateException("More than " + Integer.MAX_VALUE + " nonzeros");
+            nnz++;
+        }
+
+        @Override public void end_row(int i, int col_count)
+        {
+            this.col_count = col_count;
+            if(row_count + 2 > row_ptr.length)
+                row_ptr = Arrays.copyOf(row_ptr, 2 * row_ptr.length);
+            row_ptr[++row_count] = nnz;
+        }
+    }
+
+    /**
+     * second pass of a sparse text conversion: hands every row to a RowWriter
+     */
+    private static final class SparseRowWriter implements MatrixLoader.Sink
+    {
+        private final RowWriter writer;
+        private int[] cols = new int[16];
+        private double[] values = new double[16];
+        private int count = 0;
+        private IOException failure;
+
+        SparseRowWriter(RowWriter writer)
+        {
+            this.writer = writer;
+        }
+
+        @Override public void entry(int i, int j, double value)
+        {
+            if(count == cols.length)
+            {
+                cols = Arrays.copyOf(cols, 2 * count);
+                values = Arrays.copyOf(values, 2 * count);
+            }
+            cols[count] = j;
+            values[count++] = value;
+        }
+
+        @Override public void end_row(int i, int col_count)
+        {
+            if(failure == null)
+            {
+                try
+                {
+                    writer.write_row(cols, values, 0, count);
+                }
+                catch(IOException e)
+                {
+                    failure = e; /* Sink cannot throw, reported by finish */
+                }
+            }
+            count = 0;
+        }
+
+        void finish() throws IOException
+        {
+            if(failure != null)
+                throw failure;
+        }
+    }
+
+    /**
+     * reads rectangular tiles of a binary matrix file of either kind with positional reads,
+     * only the row pointers of a sparse file are held in memory
+     */
+    static final class TileReader implements Closeable
+    {
+        private static final int CHUNK = 1 << 13;  /* sparse entries read at a time */
+
+        private final FileChannel channel;
+        private final Header header;
+        private final int[] row_ptr;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(8 * CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer idx_buffer;
+        private long bytes_read = 0;
+
+        TileReader(String file_name) throws IOException
+        {
+            channel = FileChannel.open(Paths.get(file_name), StandardOpenOption.READ);
+            try
+            {
+                header = read_header(channel);
+                if(header.kind == SPARSE)
+                {
+                    row_ptr = new int[header.row_count + 1];
+                    map_ints(channel, HEADER_SIZE, row_ptr, 0, row_ptr.length);
+                    idx_buffer = ByteBuffer.allocateDirect(4 * CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                else
+                {
+                    row_ptr = null;
+                    idx_buffer = null;
+                }
+            }
+            catch(IOException | RuntimeException e)
+            {
+                channel.close();
+                throw e;
+            }
+        }
+
+        int get_row_count()
+        {
+            return header.row_count;
+        }
+
+        int get_col_count()
+        {
+            return header.col_count;
+        }
+
+        boolean is_sparse()
+        {
+            return header.kind == SPARSE;
+        }
+
+        /**
+         * @return bytes read from the file so far, the row pointers excluded
+         */
+        long get_bytes_read()
+        {
+            return bytes_read;
+        }
+
+        /**
+         * copies rows x cols entries starting at (i0, j0) into dst, row-major with leading dimension cols
+         */
+        void read(int i0, int j0, int rows, int cols, double[] dst) throws IOException
+        {
+            if(header.kind == DENSE)
+            {
+                long row_bytes = 8L * header.col_count;
+                if(cols == header.col_count)
+                {
+                    read_doubles(HEADER_SIZE + i0 * row_bytes, dst, 0, rows * cols);
+                    return;
+                }
+                for(int r = 0; r < rows; r++)
+                    read_doubles(HEADER_SIZE + (i0 + r) * row_bytes + 8L * j0, dst, r * cols, cols);
+                return;
+            }
+            Arrays.fill(dst, 0, rows * cols, 0);
+            /* the nonzeros of the rows are contiguous, stream them and keep those in the columns */
+            int end = row_ptr[i0 + rows];
+            int r = 0;
+            for(int p = row_ptr[i0]; p < end; p += CHUNK)
+            {
+                int n = Math.min(CHUNK, end - p);
+                fill(idx_buffer, header.col_idx_offset() + 4L * p, 4 * n);
+                fill(buffer, header.values_offset() + 8L * p, 8 * n);
+                for(int q = 0; q < n; q++)
+                {
+                    while(p + q >= row_ptr[i0 + r + 1])
+                        r++;
+                    int j = idx_buffer.getInt(4 * q) - j0;
+                    if(j >= 0 && j < cols)
+                        dst[r * cols + j] = buffer.getDouble(8 * q);
+                }
+            }
+        }
+
+        private void read_doubles(long position, double[] dst, int from, int count) throws IOException
+        {
+            while(count > 0)
+            {
+                int n = Math.min(count, CHUNK);
+                fill(buffer, position, 8 * n);
+                buffer.asDoubleBuffer().get(dst, from, n);
+                position += 8L * n;
+                from += n;
+                count -= n;
+            }
+        }
+
+        private void fill(ByteBuffer b, long position, int bytes) throws IOException
+        {
+            b.clear().limit(bytes);
+            while(b.hasRemaining())
+            {
+                int n = channel.read(b, position + b.position());
+                if(n < 0)
+                    throw new IOException("Binary matrix file is truncated");
+            }
+            b.flip();
+            bytes_read += bytes;
+        }
+
+        @Override public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * writes rows coming from the text loader straight to the dense body
+     */
+    private static final class DenseRowWriter implements MatrixLoader.Sink
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private double[] row = new double[16];
+        private int col_count = 0;
+        private IOException failure;
+
+        DenseRowWriter(FileChannel channel) throws IOException
+        {
+            this.channel = channel;
+            channel.position(HEADER_SIZE);
+        }
+
+        @Override public void entry(int i, int j, double value)
+        {
+            if(j >= row.length)
+                row = Arrays.copyOf(row, Math.max(2 * row.length, j + 1));
+            row[j] = value;
+        }
+
+        @Override public void end_row(int i, int col_count)
+        {
+            this.col_count = col_count;
+            if(row.length < col_count)
+                row = Arrays.copyOf(row, col_count);
+            if(failure != null)
+                return;
+            try
+            {
+                write_doubles(channel, buffer, row, 0, col_count);
+            }
+            catch(IOException e)
+            {
+                failure = e; /* Sink cannot throw, reported by finish */
+            }
+            Arrays.fill(row, 0, col_count, 0.0);
+        }
+
+        void finish() throws IOException
+        {
+            if(failure != null)
+                throw failure;
+            drain(channel, buffer);
+        }
+    }
+}
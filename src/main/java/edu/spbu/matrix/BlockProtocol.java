@@ -0,0 +1,139 @@
+package edu.spbu.matrix;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format between DistributedMultiply and BlockWorker, one product block per connection,
+ * little-endian like BinaryMatrixFile:
+ *
+ * header: magic, version, rows, cols, inner, panel width, parallel flag (ints), answered by
+ * status OK, or FAILED when the worker cannot take the block
+ * panels: for every panel of panel width (the last one may be narrower) the rows x width A panel
+ * and the width x cols B panel, row-major doubles
+ * reply: status OK and the rows x cols block, row-major doubles
+ * a FAILED status is followed by the byte length and the UTF-8 text of the error
+ */
+final class BlockProtocol
+{
+    static final int MAGIC = 0x53554d41;   /* "SUMA" */
+    static final int VERSION = 1;
+    static final int HEADER_INTS = 7;
+    static final int OK = 0;
+    static final int FAILED = 1;
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private BlockProtocol()
+    {
+    }
+
+    static ByteBuffer buffer()
+    {
+        return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * sends the ints at once
+     */
+    static void send_ints(SocketChannel channel, ByteBuffer buffer, int... values) throws IOException
+    {
+        buffer.clear();
+        for(int value : values)
+            buffer.putInt(value);
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * receives count ints
+     */
+    static int[] receive_ints(SocketChannel channel, ByteBuffer buffer, int count) throws IOException
+    {
+        buffer.clear().limit(4 * count);
+        fill(channel, buffer);
+        buffer.flip();
+        int[] values = new int[count];
+        for(int x = 0; x < count; x++)
+            values[x] = buffer.getInt();
+        return values;
+    }
+
+    /**
+     * sends count doubles of src starting at from, through buffer
+     */
+    static void send_doubles(SocketChannel channel, ByteBuffer buffer, double[] src, int from, int count)
+            throws IOException
+    {
+        while(count > 0)
+        {
+            int n = Math.min(count, buffer.capacity() / 8);
+            buffer.clear();
+            buffer.asDoubleBuffer().put(src, from, n);
+            buffer.limit(8 * n);
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            from += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * receives count doubles into dst starting at from, through buffer
+     */
+    static void receive_doubles(SocketChannel channel, ByteBuffer buffer, double[] dst, int from, int count)
+            throws IOException
+    {
+        while(count > 0)
+        {
+            int n = Math.min(count, buffer.capacity() / 8);
+            buffer.clear().limit(8 * n);
+            fill(channel, buffer);
+            buffer.flip();
+            buffer.asDoubleBuffer().get(dst, from, n);
+            from += n;
+            count -= n;
+        }
+    }
+
+    static void send_error(SocketChannel channel, ByteBuffer buffer, Throwable error) throws IOException
+    {
+        String text = String.valueOf(error);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, BUFFER_SIZE - 8);
+        buffer.clear();
+        buffer.putInt(FAILED).putInt(length).put(bytes, 0, length);
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * reads the error text following a FAILED status
+     */
+    static String receive_error(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        int length = receive_ints(channel, buffer, 1)[0];
+        if(length < 0 || length > BUFFER_SIZE)
+            throw new IOException("Malformed error reply of " + length + " bytes");
+        buffer.clear().limit(length);
+        fill(channel, buffer);
+        buffer.flip();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void fill(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            if(channel.read(buffer) < 0)
+                throw new EOFException("Connection closed with " + buffer.remaining() + " bytes still expected");
+        }
+    }
+}
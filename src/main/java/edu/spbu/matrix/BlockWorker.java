@@ -0,0 +1,311 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker node of DistributedMultiply: accepts connections on a port and computes one product
+ * block per connection, see BlockProtocol. The block is accumulated panel by panel with the
+ * DenseKernels blocked kernel, on ParallelEngine when the coordinator asks for it; the next
+ * panel is received while the current one is multiplied.
+ *
+ * The protocol has no authentication, so a worker listens on the loopback address unless it is
+ * given a host to bind to, and refuses blocks that would take it over its memory limit.
+ * usage: BlockWorker [port [host]], port 0 or none picks a free one; the port is printed on stdout.
+ * Host 0.0.0.0 listens on every address
+ */
+public final class BlockWorker implements AutoCloseable
+{
+    private final ServerSocketChannel server;
+    private final AtomicLong reserved = new AtomicLong();              /* bytes held by the blocks being served */
+    private volatile long memory_limit = Runtime.getRuntime().maxMemory() / 2;
+
+    /**
+     * binds to port on the loopback address, 0 picks a free port
+     */
+    public BlockWorker(int port) throws IOException
+    {
+        this(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * binds to port on host, which other machines can reach unless it is a loopback address
+     */
+    public BlockWorker(String host, int port) throws IOException
+    {
+        this(InetAddress.getByName(host), port);
+    }
+
+    private BlockWorker(InetAddress address, int port) throws IOException
+    {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(address, port));
+    }
+
+    public static void main(String args[])
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        try(BlockWorker worker = args.length > 1 ? new BlockWorker(args[1], port) : new BlockWorker(port))
+        {
+            System.out.println("BlockWorker listening on " + worker.get_port());
+            System.out.flush();
+            worker.serve();
+        }
+        catch(IOException e)
+        {
+            System.out.println("BlockWorker failed: " + e);
+        }
+    }
+
+    public int get_port()
+    {
+        return server.socket().getLocalPort();
+    }
+
+    public long get_memory_limit()
+    {
+        return memory_limit;
+    }
+
+    /**
+     * @param bytes blocks and panels of all connections together, half the maximum heap by default;
+     *              a request that would go over it is answered with an error
+     */
+    public void set_memory_limit(long bytes)
+    {
+        if(bytes < 0)
+            throw new IllegalArgumentException("Negative memory limit " + bytes);
+        memory_limit = bytes;
+    }
+
+    /**
+     * accepts connections until close(), each one is served by its own thread
+     */
+    public void serve() throws IOException
+    {
+        while(true)
+        {
+            SocketChannel channel;
+            try
+            {
+                channel = server.accept();
+            }
+            catch(AsynchronousCloseException e)
+            {
+                return;
+            }
+            Thread t = new Thread(() -> handle(channel), "block-worker");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * serve() on a daemon thread, for workers living in the coordinator's JVM
+     */
+    public void start()
+    {
+        Thread t = new Thread(() ->
+        {
+            try
+            {
+                serve();
+            }
+            catch(IOException e)
+            {
+                System.out.println("BlockWorker stopped: " + e);
+            }
+        }, "block-worker-accept");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override public void close() throws IOException
+    {
+        server.close();
+    }
+
+    private void handle(SocketChannel channel)
+    {
+        ByteBuffer buffer = BlockProtocol.buffer();
+        long bytes = 0;
+        try(SocketChannel c = channel)
+        {
+            c.socket().setTcpNoDelay(true);
+            int[] header = BlockProtocol.receive_ints(c, buffer, BlockProtocol.HEADER_INTS);
+            double[] block;
+            Receiver receiver;
+            try
+            {
+                bytes = reserve(header);
+                block = new double[header[2] * header[3]];
+                receiver = new Receiver(c, header[2], header[3], header[4], header[5]);
+            }
+            catch(RuntimeException | OutOfMemoryError e)
+            {
+                BlockProtocol.send_error(c, buffer, e);
+                return;
+            }
+            /* accepted: the coordinator starts sending panels */
+            BlockProtocol.send_ints(c, buffer, BlockProtocol.OK);
+            Thread t = new Thread(receiver, "block-worker-receive");
+            t.setDaemon(true);
+            t.start();
+            try
+            {
+                accumulate(receiver, block, header[2], header[3], header[4], header[5], header[6] != 0);
+            }
+            catch(RuntimeException | OutOfMemoryError | InterruptedException e)
+            {
+                BlockProtocol.send_error(c, buffer, e);
+                return;
+            }
+            finally
+            {
+                t.interrupt();
+            }
+            BlockProtocol.send_ints(c, buffer, BlockProtocol.OK);
+            BlockProtocol.send_doubles(c, buffer, block, 0, block.length);
+        }
+        catch(IOException e)
+        {
+            /* the coordinator is gone or broke the protocol, it sees the failure on its side */
+        }
+        finally
+        {
+            reserved.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * checks the request header and sets aside the memory of its block and two panel pairs
+     * @return bytes reserved
+     */
+    private long reserve(int[] header)
+    {
+        if(header[0] != BlockProtocol.MAGIC || header[1] != BlockProtocol.VERSION)
+            throw new IllegalStateException("Not a version " + BlockProtocol.VERSION + " block request");
+        int rows = header[2];
+        int cols = header[3];
+        int inner = header[4];
+        int width = header[5];
+        if(rows < 0 || cols < 0 || inner < 0 || width < 1 || (long) rows * cols > Integer.MAX_VALUE
+           || (long) Math.max(rows, cols) * Math.min(width, inner) > Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("Bad block " + rows + "*" + inner + " by " + inner + "*" + cols
+                                            + " in panels of " + width);
+        }
+        long bytes = 8L * rows * cols + 16L * (rows + cols) * Math.min(width, Math.max(inner, 1));
+        long limit = memory_limit;
+        while(true)
+        {
+            long held = reserved.get();
+            if(held + bytes > limit)
+            {
+                throw new IllegalStateException("Block " + rows + "*" + cols + " needs " + bytes + " bytes, "
+                                                + held + " of the " + limit + " allowed are in use");
+            }
+            if(reserved.compareAndSet(held, held + bytes))
+                return bytes;
+        }
+    }
+
+    /**
+     * c += every panel pair the receiver delivers
+     */
+    private static void accumulate(Receiver receiver, double[] c, int rows, int cols, int inner, int width,
+                                   boolean parallel) throws IOException, InterruptedException
+    {
+        for(int k = 0; k < inner; k += width)
+        {
+            Panel p = receiver.ready.take();
+            if(p.error != null)
+                throw p.error;
+            int depth = p.depth;
+            ParallelEngine.BlockKernel kernel = (row_from, row_to, col_from, col_to) ->
+                    DenseKernels.multiply(p.a, p.b, c, depth, cols, row_from, row_to, col_from, col_to);
+            if(parallel)
+                ParallelEngine.run(rows, cols, DenseKernels.ROW_BLOCK, DenseKernels.COL_BLOCK, kernel);
+            else
+                kernel.compute(0, rows, 0, cols);
+            receiver.free.put(p);
+        }
+    }
+
+    private static final class Panel
+    {
+        final double[] a;
+        final double[] b;
+        int depth;
+        IOException error;
+
+        Panel(int a_size, int b_size)
+        {
+            a = new double[a_size];
+            b = new double[b_size];
+        }
+    }
+
+    /**
+     * reads panels into two alternating buffers, one is filled while the other is multiplied
+     */
+    private static final class Receiver implements Runnable
+    {
+        final BlockingQueue<Panel> ready = new ArrayBlockingQueue<>(2);
+        final BlockingQueue<Panel> free = new ArrayBlockingQueue<>(2);
+        private final SocketChannel channel;
+        private final int rows;
+        private final int cols;
+        private final int inner;
+        private final int width;
+
+        Receiver(SocketChannel channel, int rows, int cols, int inner, int width)
+        {
+            this.channel = channel;
+            this.rows = rows;
+            this.cols = cols;
+            this.inner = inner;
+            this.width = width;
+            int panel_width = Math.min(width, Math.max(inner, 1));
+            for(int x = 0; x < 2; x++)
+                free.add(new Panel(rows * panel_width, panel_width * cols));
+        }
+
+        @Override public void run()
+        {
+            ByteBuffer buffer = BlockProtocol.buffer();
+            Panel p = null;
+            try
+            {
+                for(int k = 0; k < inner; k += width)
+                {
+                    p = free.take();
+                    p.depth = Math.min(width, inner - k);
+                    BlockProtocol.receive_doubles(channel, buffer, p.a, 0, rows * p.depth);
+                    BlockProtocol.receive_doubles(channel, buffer, p.b, 0, p.depth * cols);
+                    ready.put(p);
+                    p = null;
+                }
+            }
+            catch(IOException e)
+            {
+                if(p == null)
+                    p = new Panel(0, 0);
+                p.error = e;
+                ready.offer(p);
+            }
+            catch(InterruptedException e)
+            {
+                /* the block failed, nobody waits for more panels */
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package edu.spbu.matrix;
+
+import java.util.Arrays;
+
+/**
+ * Appends nonzeros row by row into compressed sparse row arrays
+ * without going through SparseMatrix.set_entry
+ */
+final class CsrBuilder implements MatrixLoader.Sink
+{
+    private int row_count = 0;   /* rows closed so far */
+    private int col_count = 0;   /* as reported by the loader */
+    private int nnz = 0;
+    private int[] row_ptr;
+    private int[] col_idx;
+    private double[] values;
+
+    CsrBuilder(int expected_rows, int expected_nnz)
+    {
+        row_ptr = new int[Math.max(expected_rows, 1) + 1];
+        col_idx = new int[Math.max(expected_nnz, 1)];
+        values = new double[Math.max(expected_nnz, 1)];
+    }
+
+    /**
+     * appends a nonzero to the current row, columns must come in ascending order
+     */
+    void add(int j, double value)
+    {
+        if(value == 0.0)
+            return;
+        if(nnz == values.length)
+        {
+            col_idx = Arrays.copyOf(col_idx, 2 * nnz);
+            values = Arrays.copyOf(values, 2 * nnz);
+        }
+        col_idx[nnz] = j;
+        values[nnz] = value;
+        nnz++;
+    }
+
+    /**
+     * closes the current row, the next add goes to the following row
+     */
+    void end_row()
+    {
+        if(row_count + 2 > row_ptr.length)
+            row_ptr = Arrays.copyOf(row_ptr, 2 * row_ptr.length);
+        row_count++;
+        row_ptr[row_count] = nnz;
+    }
+
+    @Override public void entry(int i, int j, double value)
+    {
+        add(j, value);
+    }
+
+    @Override public void end_row(int i, int col_count)
+    {
+        this.col_count = col_count;
+        end_row();
+    }
+
+    int get_row_count()
+    {
+        return row_count;
+    }
+
+    int get_col_count()
+    {
+        return col_count;
+    }
+
+    int get_nnz()
+    {
+        return nnz;
+    }
+
+    /**
+     * @param rows row count of the matrix, rows never closed are empty
+     * @param cols column count of the matrix
+     * @return the matrix built so far, the builder must not be used afterwards
+     */
+    SparseMatrix build(int rows, int cols)
+    {
+        int[] ptr = Arrays.copyOf(row_ptr, rows + 1);
+        for(int i = row_count + 1; i <= rows; i++)
+            ptr[i] = nnz;
+        return new SparseMatrix(rows, cols, ptr, Arrays.copyOf(col_idx, nnz), Arrays.copyOf(values, nnz));
+    }
+}
@@ -0,0 +1,58 @@
+package edu.spbu.matrix;
+
+import java.util.Arrays;
+
+/**
+ * Collects rows of unknown count into a growing row-major buffer
+ */
+final class DenseBuilder implements MatrixLoader.Sink
+{
+    private static final int INITIAL_SIZE = 1024;
+    private int row_count = 0;
+    private int col_count = 0;   /* known once the first row is complete */
+    private double[] entries = new double[INITIAL_SIZE];
+
+    @Override public void entry(int i, int j, double value)
+    {
+        /* col_count is still 0 within the first row, which starts at 0 anyway */
+        int index = i * col_count + j;
+        if(index >= entries.length)
+            grow(index + 1L);
+        entries[index] = value;
+    }
+
+    @Override public void end_row(int i, int col_count)
+    {
+        this.col_count = col_count;
+        row_count = i + 1;
+        grow((long) row_count * col_count);
+    }
+
+    private void grow(long size)
+    {
+        if(size > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Matrix of " + row_count + "+ rows by " + col_count
+                                               + " columns does not fit in a DenseMatrix");
+        if(size <= entries.length)
+            return;
+        entries = Arrays.copyOf(entries, (int) Math.min(Math.max(size, 2L * entries.length), Integer.MAX_VALUE - 8));
+    }
+
+    int get_row_count()
+    {
+        return row_count;
+    }
+
+    int get_col_count()
+    {
+        return col_count;
+    }
+
+    /**
+     * @return contents trimmed to row_count * col_count
+     */
+    double[] to_array()
+    {
+        return entries.length == row_count * col_count ? entries : Arrays.copyOf(entries, row_count * col_count);
+    }
+}
@@ -0,0 +1,190 @@
+package edu.spbu.matrix;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Cache-blocked dense multiplication kernels over flat row-major arrays.
+ *
+ * The innermost row update runs on VectorRowKernel (src/simd/java) when the JVM has the
+ * jdk.incubator.vector module (Java 16+ started with --add-modules jdk.incubator.vector) and SIMD
+ * registers wider than one double, unless the SIMD_PROPERTY system property is "false"; on the
+ * scalar multiply_row otherwise. Both compute every entry in the same order, so they give the
+ * same bits.
+ */
+final class DenseKernels
+{
+    static final int ROW_BLOCK = 64;    /* rows of A/C visited per depth slice */
+    static final int DEPTH_BLOCK = 256; /* rows of B kept in L2 per panel */
+    static final int COL_BLOCK = 512;   /* columns of B/C per panel, keeps a C row segment in L1 */
+    static final String SIMD_PROPERTY = "edu.spbu.matrix.simd";
+
+    /**
+     * c[c_row + j] += sum over k of a[a_row + k*a_step] * b[b_offset + k*ldb + j],
+     * for k in [k_from, k_to) and j in [j_from, j_to)
+     */
+    interface RowKernel
+    {
+        void multiply_row(double[] a, int a_row, int a_step, double[] b, int b_offset, int ldb,
+                          double[] c, int c_row, int k_from, int k_to, int j_from, int j_to);
+    }
+
+    static final RowKernel SCALAR = DenseKernels::multiply_row;
+    static final RowKernel ROW_KERNEL = row_kernel();
+
+    private DenseKernels()
+    {
+    }
+
+    private static RowKernel row_kernel()
+    {
+        if("false".equals(System.getProperty(SIMD_PROPERTY)))
+            return SCALAR;
+        RowKernel kernel;
+        try
+        {
+            kernel = (RowKernel) Class.forName("edu.spbu.matrix.VectorRowKernel").getDeclaredMethod("create").invoke(null);
+        }
+        catch(InvocationTargetException e)
+        {
+            throw new IllegalStateException("VectorRowKernel.create failed", e.getCause());
+        }
+        catch(ReflectiveOperationException | LinkageError e)
+        {
+            /* built without src/simd, Java 8..15, or the module was not added: stay scalar */
+            return SCALAR;
+        }
+        return kernel == null ? SCALAR : kernel;
+    }
+
+    /**
+     * @return "simd" followed by the vector width in doubles, or "scalar", for logs and benchmarks
+     */
+    static String row_kernel_name()
+    {
+        return ROW_KERNEL == SCALAR ? "scalar" : ROW_KERNEL.toString();
+    }
+
+    /**
+     * c[row_from..row_to) x [col_from..col_to) += a * b
+     *
+     * a is (any rows) x inner, b is inner x col_count, c is (any rows) x col_count,
+     * all of them contiguous row-major arrays
+     * @param a left operand
+     * @param b right operand
+     * @param c accumulator for the product
+     * @param inner inner dimension (columns of a, rows of b)
+     * @param col_count columns of b and c
+     * @param row_from first row of c to compute
+     * @param row_to row of c to stop at (exclusive)
+     * @param col_from first column of c to compute
+     * @param col_to column of c to stop at (exclusive)
+     */
+    static void multiply(double[] a, double[] b, double[] c, int inner, int col_count,
+                         int row_from, int row_to, int col_from, int col_to)
+    {
+        multiply(a, 0, inner, b, 0, col_count, c, 0, col_count, inner, row_from, row_to, col_from, col_to);
+    }
+
+    /**
+     * same as above for row-major views inside bigger arrays: element (i,j) of a view
+     * starting at offset with leading dimension ld lives at offset + i*ld + j
+     */
+    static void multiply(double[] a, int a_offset, int lda, double[] b, int b_offset, int ldb,
+                         double[] c, int c_offset, int ldc, int inner,
+                         int row_from, int row_to, int col_from, int col_to)
+    {
+        multiply(a, a_offset, lda, 1, b, b_offset, ldb, 1, c, c_offset, ldc, inner, row_from, row_to, col_from, col_to);
+    }
+
+    /**
+     * same as above for operands of any layout: element (i,j) of a lives at
+     * a_offset + i*a_row_stride + j*a_col_stride, likewise for b; c is row-major.
+     * A column-major a is read in place, four entries per pass; b is packed into a
+     * row-major panel per DEPTH_BLOCK x COL_BLOCK block unless its columns are contiguous
+     */
+    static void multiply(double[] a, int a_offset, int a_row_stride, int a_col_stride,
+                         double[] b, int b_offset, int b_row_stride, int b_col_stride,
+                         double[] c, int c_offset, int ldc, int inner,
+                         int row_from, int row_to, int col_from, int col_to)
+    {
+        multiply(ROW_KERNEL, a, a_offset, a_row_stride, a_col_stride, b, b_offset, b_row_stride, b_col_stride,
+                 c, c_offset, ldc, inner, row_from, row_to, col_from, col_to);
+    }
+
+    /**
+     * same as above on the given row kernel
+     */
+    static void multiply(RowKernel kernel, double[] a, int a_offset, int a_row_stride, int a_col_stride,
+                         double[] b, int b_offset, int b_row_stride, int b_col_stride,
+                         double[] c, int c_offset, int ldc, int inner,
+                         int row_from, int row_to, int col_from, int col_to)
+    {
+        double[] panel = b_col_stride == 1 ? null : new double[DEPTH_BLOCK * Math.min(COL_BLOCK, col_to - col_from)];
+        if(panel != null)
+            MatrixMetrics.scratch(8L * panel.length);
+        for(int jj = col_from; jj < col_to; jj += COL_BLOCK)
+        {
+            int j_end = Math.min(jj + COL_BLOCK, col_to);
+            for(int kk = 0; kk < inner; kk += DEPTH_BLOCK)
+            {
+                int k_end = Math.min(kk + DEPTH_BLOCK, inner);
+                double[] b_src = b;
+                int b_base = b_offset;
+                int ldb = b_row_stride;
+                if(panel != null)
+                {
+                    /* panel holds rows kk..k_end, columns jj..j_end, so (k,j) lives at k*width + j - origin */
+                    int width = j_end - jj;
+                    for(int j = jj; j < j_end; j++)
+                        for(int k = kk; k < k_end; k++)
+                            panel[(k - kk) * width + j - jj] = b[b_offset + k * b_row_stride + j * b_col_stride];
+                    b_src = panel;
+                    b_base = -(kk * width + jj);
+                    ldb = width;
+                }
+                for(int ii = row_from; ii < row_to; ii += ROW_BLOCK)
+                {
+                    int i_end = Math.min(ii + ROW_BLOCK, row_to);
+                    for(int i = ii; i < i_end; i++)
+                        kernel.multiply_row(a, a_offset + i * a_row_stride, a_col_stride, b_src, b_base, ldb,
+                                            c, c_offset + i * ldc, kk, k_end, jj, j_end);
+                }
+            }
+        }
+    }
+
+    /**
+     * micro-kernel: one row of c against a slice of b, four rows of b per pass so
+     * that every load/store of c feeds four multiply-adds held in registers
+     */
+    private static void multiply_row(double[] a, int a_row, int a_step, double[] b, int b_offset, int ldb,
+                                     double[] c, int c_row, int k_from, int k_to, int j_from, int j_to)
+    {
+        int k = k_from;
+        for(; k + 3 < k_to; k += 4)
+        {
+            int ak = a_row + k * a_step;
+            double x0 = a[ak];
+            double x1 = a[ak + a_step];
+            double x2 = a[ak + 2 * a_step];
+            double x3 = a[ak + 3 * a_step];
+            if(x0 == 0 && x1 == 0 && x2 == 0 && x3 == 0)
+                continue; /* common for our generated inputs, 90% of the rows are empty */
+            int b0 = b_offset + k * ldb;
+            int b1 = b0 + ldb;
+            int b2 = b1 + ldb;
+            int b3 = b2 + ldb;
+            for(int j = j_from; j < j_to; j++)
+                c[c_row + j] += x0 * b[b0 + j] + x1 * b[b1 + j] + x2 * b[b2 + j] + x3 * b[b3 + j];
+        }
+        for(; k < k_to; k++)
+        {
+            double x = a[a_row + k * a_step];
+            if(x == 0)
+                continue;
+            int b0 = b_offset + k * ldb;
+            for(int j = j_from; j < j_to; j++)
+                c[c_row + j] += x * b[b0 + j];
+        }
+    }
+}
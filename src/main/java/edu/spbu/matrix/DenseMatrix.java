@@ -1,40 +1,55 @@
 package edu.spbu.matrix;
 
-import java.util.*;
 import java.io.*;
-
-import static java.lang.Double.parseDouble;
+import java.util.Arrays;
 
 public class DenseMatrix implements Matrix
 {
-    public static final int ARRAY_SIZE = 3000; /* max array size */
     private int row_count = 0;                 /* row count */
     private int col_count = 0;                 /* column count */
-    private double[][] entries;                 /* contents */
+    private double[] entries;                  /* contents, row-major: (i,j) lives at i*col_count+j */
+    private boolean column_major = false;      /* (i,j) lives at j*row_count+i instead, what transpose() returns */
+    private boolean shared = false;            /* entries are also used by a view or shared copy, copy them before updating */
+    private volatile long fingerprint;         /* content hash for ProductCache, 0 until computed and after any update */
 
     /* auxiliary methods */
-    public double get_entry(int i, int j)
+    @Override public double get_entry(int i, int j)
     {
-        return entries[i][j];
+        return entries[index(i, j)];
     }
-    public int get_row_count()
-{
-    return this.row_count;
-}
-    public int get_col_count()
+    @Override public int get_row_count()
+    {
+        return this.row_count;
+    }
+    @Override public int get_col_count()
     {
         return this.col_count;
     }
     public void set_entry(int i, int j, double value)
     {
-        this.entries[i][j] = value;
+        detach();
+        this.entries[index(i, j)] = value;
     }
     public void add_to_entry(int i, int j, double value)
     {
-        this.entries[i][j] += value;
+        detach();
+        this.entries[index(i, j)] += value;
+    }
+    private int index(int i, int j)
+    {
+        return column_major ? j * row_count + i : i * col_count + j;
+    }
+    /* every update goes through here first */
+    private void detach()
+    {
+        fingerprint = 0;
+        if(!shared)
+            return;
+        entries = entries.clone();
+        shared = false;
     }
     /**
-    * loads matrix from file
+    * loads matrix from file, either text or BinaryMatrixFile format
     * @param file_name source file name
     */
     public DenseMatrix(String file_name)
@@ -42,40 +57,117 @@ public class DenseMatrix implements Matrix
         if(file_name.trim().equals(""))
             return;
 
-        int j;
-        String[] row_string_array;
         try
         {
-            Scanner in = new Scanner(new File(file_name));
-            String row_string="1";
-
-            while(in.hasNextLine()&&!row_string.trim().equals(""))
-            {
-                row_count += 1;
-                row_string = in.nextLine().trim();
-                row_string_array = row_string.split(" ");
-                if(row_count==1)
-                {
-                    col_count = row_string_array.length;
-                    entries = new double[ARRAY_SIZE][col_count];
-                }
-                for(j=0;j<col_count;j++)
-                {
-                    entries[row_count-1][j] = parseDouble(row_string_array[j]);
-                }
-            }
-            in.close();
+            DenseMatrix loaded = read(file_name);
+            row_count = loaded.row_count;
+            col_count = loaded.col_count;
+            entries = loaded.entries;
         }
         catch(IOException e)
         {
             e.printStackTrace();
         }
     }
+    /**
+     * the file constructor for callers that want the IOException
+     */
+    static DenseMatrix read(String file_name) throws IOException
+    {
+        if(BinaryMatrixFile.is_binary(file_name))
+            return BinaryMatrixFile.read_dense(file_name);
+        DenseBuilder builder = new DenseBuilder();
+        MatrixLoader.load(file_name, builder);
+        return new DenseMatrix(builder.get_row_count(), builder.get_col_count(), builder.to_array());
+    }
     public DenseMatrix(int r, int c)
     {
         row_count = r;
         col_count = c;
-        entries = new double[row_count][col_count];
+        entries = new double[row_count * col_count];
+    }
+    /**
+     * wraps a ready row-major array of at least r*c entries, it is not copied
+     */
+    DenseMatrix(int r, int c, double[] entries)
+    {
+        row_count = r;
+        col_count = c;
+        this.entries = entries;
+    }
+    /**
+     * contents in the layout is_column_major() tells, shared with this matrix
+     */
+    double[] raw_entries()
+    {
+        return entries;
+    }
+    /**
+     * multiplies every entry by factor in place
+     */
+    void scale(double factor)
+    {
+        detach();
+        for(int x = 0; x < row_count * col_count; x++)
+            entries[x] *= factor;
+    }
+    /**
+     * O(1) copy sharing the entries with this matrix until either one is updated
+     */
+    DenseMatrix shared_copy()
+    {
+        shared = true;
+        DenseMatrix copy = new DenseMatrix(row_count, col_count, entries);
+        copy.column_major = column_major;
+        copy.shared = true;
+        copy.fingerprint = fingerprint;
+        return copy;
+    }
+    /**
+     * @return hash of the dimensions, layout and entries, computed once per update
+     */
+    long fingerprint()
+    {
+        long h = fingerprint;
+        if(h == 0)
+        {
+            h = Fingerprint.seed(column_major ? Fingerprint.DENSE_COLUMN_MAJOR : Fingerprint.DENSE, row_count, col_count);
+            h = Fingerprint.of(h, entries, 0, row_count * col_count);
+            fingerprint = h;
+        }
+        return h;
+    }
+    boolean is_column_major()
+    {
+        return column_major;
+    }
+    /**
+     * O(1) transposed view: the same entries read column-major. The view shares them with
+     * this matrix until either one is updated, the update copies them first
+     */
+    @Override public DenseMatrix transpose()
+    {
+        shared = true;
+        DenseMatrix view = transposed_view();
+        view.shared = true;
+        return view;
+    }
+    /**
+     * transpose() for temporaries that are never updated, this matrix is left unmarked
+     */
+    DenseMatrix transposed_view()
+    {
+        DenseMatrix view = new DenseMatrix(col_count, row_count, entries);
+        view.column_major = !column_major;
+        return view;
+    }
+    /**
+     * saves matrix in BinaryMatrixFile dense format
+     * @param file_name target file name
+     */
+    public void write_binary(String file_name) throws IOException
+    {
+        BinaryMatrixFile.write(this, file_name);
     }
     /**
      * single-threaded multiplication
@@ -86,52 +178,9 @@ public class DenseMatrix implements Matrix
     @Override
     public Matrix mul(Matrix o)
     {
-        if(o instanceof DenseMatrix)
-        {
-            DenseMatrix o1 = (DenseMatrix) o;
-
-            if(this.col_count != o1.get_row_count())
-            {
-                throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
-                                                    + o1.get_row_count() + "*" + o1.get_col_count() + "matrix");
-            }
-
-            DenseMatrix result = new DenseMatrix(this.row_count, o1.get_col_count());
-            for(int i = 0; i < this.row_count; i++)
-            {
-                for (int j = 0; j < o1.get_col_count(); j++)
-                {
-                    result.entries[i][j] = 0;
-                    for (int k = 0; k < row_count; k++)
-                    {
-                        result.entries[i][j] += this.entries[i][k] * o1.get_entry(k, j);
-                    }
-                }
-            }
-            return result;
-        }
-        else
-        {
-            SparseMatrix o1 = (SparseMatrix) o;
-            if(this.col_count != o1.get_row_count())
-            {
-                throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
-                        + o1.get_row_count() + "*" + o1.get_col_count() + "matrix");
-            }
-            DenseMatrix result = new DenseMatrix(this.row_count, o1.get_col_count());
-            for(int i = 0; i < this.row_count; i++)
-            {
-                for (int j = 0; j < o1.get_col_count(); j++)
-                {
-                    result.entries[i][j] = 0;
-                    for (int k = 0; k < row_count; k++)
-                    {
-                        result.entries[i][j] += this.entries[i][k] * o1.get_entry(k, j);
-                    }
-                }
-            }
-            return result;
-        }
+        if(!MatrixMetrics.is_enabled())
+            return multiply(o, null, false);
+        return MatrixMetrics.product("mul", this, o, () -> multiply(o, null, false));
     }
 
     /**
@@ -141,131 +190,223 @@ public class DenseMatrix implements Matrix
      */
     @Override public Matrix dmul(Matrix o)
     {
-        final int THREAD_COUNT = 4;
-        class Entry
+        if(!MatrixMetrics.is_enabled())
+            return multiply(o, null, true);
+        return MatrixMetrics.product("dmul", this, o, () -> multiply(o, null, true));
+    }
+
+    /**
+     * picks the kernel by operand type and layout. A product of two transposed views is computed
+     * as (A B) = (B^T A^T)^T, where both transposes are the row-major originals
+     * @param buffer zero-filled array of at least row_count * o columns a dense kernel may write
+     *               the product into instead of a new one, or null
+     */
+    Matrix multiply(Matrix o, double[] buffer, boolean parallel)
+    {
+        if(o instanceof NarrowMatrix)
         {
-            public int i;
-            public int j;
-            Entry(int i, int j)
-            {
-                this.i = i;
-                this.j = j;
-            }
+            o = ((NarrowMatrix) o).promote();   /* a double operand makes the product double */
+            MatrixMetrics.scratch(MatrixMetrics.storage_bytes(o));
         }
-        if(o instanceof DenseMatrix)
+        if(!(o instanceof DenseMatrix) && !(o instanceof SparseMatrix))
+            return OffHeapDenseMatrix.multiply(this, o, parallel);
+        int o_cols = dimensions_check(o);
+        boolean o_transposed = o instanceof DenseMatrix ? ((DenseMatrix) o).column_major
+                                                        : ((SparseMatrix) o).is_column_compressed();
+        if(column_major && o_transposed)
         {
-            DenseMatrix o1 = (DenseMatrix) o;
+            Matrix t = o instanceof DenseMatrix ? ((DenseMatrix) o).transposed_view()
+                                                : ((SparseMatrix) o).transposed_view();
+            Matrix product = t instanceof DenseMatrix ? ((DenseMatrix) t).multiply(transposed_view(), null, parallel)
+                                                      : ((SparseMatrix) t).multiply(transposed_view(), null, parallel);
+            return product.transpose();
+        }
+        if(o instanceof SparseMatrix
+           && !MatrixFactory.prefers_dense((long) row_count * ((SparseMatrix) o).nonempty_cols(), row_count, o_cols))
+        {
+            /* rows of this are taken as full, so each one meets every nonempty column of o: if even that
+               leaves the product mostly empty, it is computed and returned sparse */
+            SparseMatrix copy = MatrixFactory.to_sparse(this);
+            MatrixMetrics.scratch(MatrixMetrics.storage_bytes(copy));
+            return copy.multiply(o, null, parallel);
+        }
+        if(o instanceof DenseMatrix && !column_major && !o_transposed
+           && StrassenKernel.applies(row_count, col_count, o_cols))
+            return new DenseMatrix(row_count, o_cols, StrassenKernel.multiply(entries, ((DenseMatrix) o).entries,
+                                                                              row_count, parallel));
+        DenseMatrix result = buffer == null ? new DenseMatrix(this.row_count, o_cols)
+                                            : new DenseMatrix(this.row_count, o_cols, buffer);
+        ParallelEngine.BlockKernel kernel = product_kernel(o, result);
+        if(!parallel)
+            kernel.compute(0, result.row_count, 0, result.col_count);
+        else
+        {
+            int min_cols = o instanceof DenseMatrix || o_transposed ? DenseKernels.COL_BLOCK : result.col_count;
+            ParallelEngine.run(result.row_count, result.col_count, DenseKernels.ROW_BLOCK / 8, min_cols, kernel);
+        }
+        return result;
+    }
 
-            if(this.col_count != o1.get_row_count())
-            {
-                throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
-                        + o1.get_row_count() + "*" + o1.get_col_count() + "matrix");
-            }
-            DenseMatrix result = new DenseMatrix(this.row_count, o1.get_col_count());
+    /**
+     * y = A x, x[c*k + v] is entry c of vector v, y is laid out alike and overwritten
+     */
+    @Override public double[] mul_vectors(double[] x, double[] y, int k)
+    {
+        vectors_check(x, y, k);
+        if(!MatrixMetrics.is_enabled())
+            vectors_kernel(x, y, k, 0, row_count);
+        else
+            MatrixMetrics.vectors("mul_vectors", this, k, () -> vectors_kernel(x, y, k, 0, row_count));
+        return y;
+    }
 
-            class EntryCalc extends Thread
-            {
-                public List<Entry> list = new ArrayList<>();
+    /**
+     * parallel mul_vectors, rows of y are split between the workers
+     */
+    @Override public double[] dmul_vectors(double[] x, double[] y, int k)
+    {
+        vectors_check(x, y, k);
+        if(!MatrixMetrics.is_enabled())
+            parallel_vectors(x, y, k);
+        else
+            MatrixMetrics.vectors("dmul_vectors", this, k, () -> parallel_vectors(x, y, k));
+        return y;
+    }
 
-                public void run()
-                {
-                    for(Entry e:list)
-                    {
-                        int i = e.i;
-                        int j = e.j;
-                        result.entries[i][j] = 0;
-                        for(int k = 0; k < col_count; k++)
-                        {
-                            result.entries[i][j] += entries[i][k] * o1.get_entry(k,j);
-                        }
-                    }
-                }
-            }
-            EntryCalc[] threads = new EntryCalc[THREAD_COUNT];
-            for (int i = 0; i < threads.length; ++i)
-                threads[i] = new EntryCalc();
-            int counter = 0;
-            /* distribute calculations across threads */
-            for(int i = 0; i < row_count; i++)
-            {
-                for(int j = 0; j < o1.get_col_count(); j++)
-                {
-                    threads[counter].list.add(new Entry(i,j));
-                    counter = (counter + 1) % THREAD_COUNT;
-                }
-            }
+    private void parallel_vectors(double[] x, double[] y, int k)
+    {
+        ParallelEngine.run(row_count, 1, DenseKernels.ROW_BLOCK, 1,
+                           (row_from, row_to, col_from, col_to) -> vectors_kernel(x, y, k, row_from, row_to));
+    }
+
+    private void vectors_check(double[] x, double[] y, int k)
+    {
+        if(k < 1 || x.length < col_count * k || y.length < row_count * k)
+        {
+            throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by " + k
+                                               + " vectors in arrays of length " + x.length + " and " + y.length);
+        }
+    }
 
-            for(EntryCalc t : threads)
+    /**
+     * rows row_from..row_to of y = A x
+     */
+    private void vectors_kernel(double[] x, double[] y, int k, int row_from, int row_to)
+    {
+        if(k == 1 && !column_major)
+        {
+            /* GEMV: one dot product per row, both operands read sequentially */
+            for(int i = row_from; i < row_to; i++)
             {
-                try
-                {
-                    t.join();
-                }
-                catch (InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
+                int a_row = i * col_count;
+                double sum = 0;
+                for(int c = 0; c < col_count; c++)
+                    sum += entries[a_row + c] * x[c];
+                y[i] = sum;
             }
-
-            return result;
+            return;
         }
-        if(o instanceof SparseMatrix)
+        Arrays.fill(y, row_from * k, row_to * k, 0);
+        if(k == 1)
         {
-            SparseMatrix o1 = (SparseMatrix) o;
-            if(this.col_count != o1.get_row_count())
+            /* column-major: y accumulates whole columns, each a contiguous run of entries */
+            for(int c = 0; c < col_count; c++)
             {
-                throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
-                        + o1.get_row_count() + "*" + o1.get_col_count() + "matrix");
+                double xc = x[c];
+                if(xc == 0)
+                    continue;
+                int a_col = c * row_count;
+                for(int i = row_from; i < row_to; i++)
+                    y[i] += entries[a_col + i] * xc;
             }
-            DenseMatrix result = new DenseMatrix(this.row_count, o1.get_col_count());
+            return;
+        }
+        /* several vectors make X a thin dense matrix, the blocked kernel handles either layout of A */
+        DenseKernels.multiply(entries, 0, column_major ? 1 : col_count, column_major ? row_count : 1,
+                              x, 0, k, 1, y, 0, k, col_count, row_from, row_to, 0, k);
+    }
 
-            class EntryCalc extends Thread
-            {
-                public List<Entry> list = new ArrayList<>();
+    /**
+     * @return column count of the product
+     */
+    private int dimensions_check(Matrix o)
+    {
+        int o_rows = o.get_row_count();
+        int o_cols = o.get_col_count();
+        if(this.col_count != o_rows)
+        {
+            throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
+                                                + o_rows + "*" + o_cols + "matrix");
+        }
+        return o_cols;
+    }
 
-                public void run()
+    /**
+     * @return kernel filling any block of result with the matching block of this * o,
+     * walking either operand in the order it is laid out
+     */
+    private ParallelEngine.BlockKernel product_kernel(Matrix o, DenseMatrix result)
+    {
+        /* a(i,k) lives at i*a_row + k*a_col */
+        int a_row = column_major ? 1 : col_count;
+        int a_col = column_major ? row_count : 1;
+        if(o instanceof DenseMatrix)
+        {
+            DenseMatrix o1 = (DenseMatrix) o;
+            int b_row = o1.column_major ? 1 : o1.col_count;
+            int b_col = o1.column_major ? o1.row_count : 1;
+            return (row_from, row_to, col_from, col_to) ->
+                    DenseKernels.multiply(entries, 0, a_row, a_col, o1.entries, 0, b_row, b_col,
+                                          result.entries, 0, result.col_count, col_count,
+                                          row_from, row_to, col_from, col_to);
+        }
+        SparseMatrix o1 = (SparseMatrix) o;
+        if(o1.is_column_compressed())
+        {
+            /* o is stored by columns (a transposed view), each entry of the product is a dot product
+               of row i of this with the nonzeros of column j. Only reached with this row-major */
+            int[] o_ptr = o1.raw_col_ptr();
+            int[] o_idx = o1.raw_row_idx();
+            double[] o_values = o1.raw_col_values();
+            return (row_from, row_to, col_from, col_to) ->
+            {
+                double[] c = result.entries;
+                for(int i = row_from; i < row_to; i++)
                 {
-                    for(Entry e:list)
+                    int a_offset = i * col_count;
+                    int c_row = i * result.col_count;
+                    for(int j = col_from; j < col_to; j++)
                     {
-                        int i = e.i;
-                        int j = e.j;
-                        result.entries[i][j] = 0;
-                        for(int k = 0; k < col_count; k++)
-                        {
-                            result.entries[i][j] += entries[i][k] * o1.get_entry(k,j);
-                        }
+                        double sum = 0;
+                        for(int q = o_ptr[j]; q < o_ptr[j + 1]; q++)
+                            sum += entries[a_offset + o_idx[q]] * o_values[q];
+                        c[c_row + j] = sum;
                     }
                 }
-            }
-            EntryCalc[] threads = new EntryCalc[THREAD_COUNT];
-            for (int i = 0; i < threads.length; ++i)
-                threads[i] = new EntryCalc();
-            int counter = 0;
-            /* distribute calculations across threads */
-            for(int i = 0; i < row_count; i++)
-            {
-                for(int j = 0; j < o1.get_col_count(); j++)
-                {
-                    threads[counter].list.add(new Entry(i,j));
-                    counter = (counter + 1) % THREAD_COUNT;
-                }
-            }
-
-            for(EntryCalc t : threads)
+            };
+        }
+        /* row i of the product is the sum of rows k of o scaled by the nonzero a(i,k): an AXPY over
+           o's CSR rows, so only o's nonzeros are touched. Rows of o do not split by column,
+           callers pass full column ranges */
+        int[] o_ptr = o1.raw_row_ptr();
+        int[] o_idx = o1.raw_col_idx();
+        double[] o_values = o1.raw_values();
+        return (row_from, row_to, col_from, col_to) ->
+        {
+            double[] c = result.entries;
+            for(int i = row_from; i < row_to; i++)
             {
-                try
-                {
-                    t.join();
-                }
-                catch (InterruptedException e)
+                int c_row = i * result.col_count;
+                for(int k = 0; k < col_count; k++)
                 {
-                    e.printStackTrace();
+                    double a = entries[i * a_row + k * a_col];
+                    if(a == 0)
+                        continue;
+                    for(int q = o_ptr[k]; q < o_ptr[k + 1]; q++)
+                        c[c_row + o_idx[q]] += a * o_values[q];
                 }
             }
-
-            return result;
-        }
-        return null;
+        };
     }
 
     @Override public boolean equals(Object o)
@@ -281,18 +422,18 @@ public class DenseMatrix implements Matrix
             /* run through entries one by one, returning false if a mismatch is found */
             for(int i = 0; i < row_count; i++)
             {
-                for(int j = 0; i < col_count; i++)
+                for(int j = 0; j < col_count; j++)
                 {
-                    if(entries[i][j] != o1.get_entry(i,j))
+                    if(entries[index(i, j)] != o1.get_entry(i,j))
                         return false;
                 }
             }
             /* no mismatch found => matrices equal */
             return true;
         }
-        if(o instanceof SparseMatrix)
+        if(o instanceof Matrix)
         {
-            SparseMatrix o1 = (SparseMatrix) o;
+            Matrix o1 = (Matrix) o;
             /* check dimension equality */
             if(row_count != o1.get_row_count())
                 return false;
@@ -301,9 +442,9 @@ public class DenseMatrix implements Matrix
             /* run through entries one by one, returning false if a mismatch is found */
             for(int i = 0; i < row_count; i++)
             {
-                for(int j = 0; i < col_count; i++)
+                for(int j = 0; j < col_count; j++)
                 {
-                    if(entries[i][j] != o1.get_entry(i,j))
+                    if(entries[index(i, j)] != o1.get_entry(i,j))
                         return false;
                 }
             }
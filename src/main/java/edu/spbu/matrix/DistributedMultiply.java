@@ -0,0 +1,243 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Multiplies on BlockWorker processes, SUMMA style: the product is cut into a grid_rows x grid_cols
+ * grid of blocks, block (I, J) is computed by one worker as the sum over k of A(I, k) * B(k, J),
+ * k walking the inner dimension in panels of panel_width. The panels are streamed to the worker
+ * while it multiplies the previous ones, so a worker only ever holds its block and two panel pairs.
+ *
+ * Blocks are handed to the workers round-robin, a worker may get several. Operands of any type
+ * are read panel by panel, an OffHeapDenseMatrix operand keeps the coordinator's heap small and
+ * makes the product an OffHeapDenseMatrix too; otherwise it is a DenseMatrix.
+ */
+public final class DistributedMultiply
+{
+    public static final int DEFAULT_PANEL_WIDTH = DenseKernels.DEPTH_BLOCK;
+    private static final int CONNECT_TIMEOUT = 10000;  /* ms */
+
+    private final List<InetSocketAddress> workers;
+    private final int grid_rows;
+    private final int grid_cols;
+    private int panel_width = DEFAULT_PANEL_WIDTH;
+    private boolean parallel = true;
+
+    /**
+     * one block per worker, in the most nearly square grid their count allows
+     */
+    public DistributedMultiply(List<InetSocketAddress> workers)
+    {
+        this(workers, square_rows(workers.size()), workers.size() / square_rows(workers.size()));
+    }
+
+    /**
+     * @param workers addresses of running BlockWorker processes
+     * @param grid_rows row count of the block grid
+     * @param grid_cols column count of the block grid
+     */
+    public DistributedMultiply(List<InetSocketAddress> workers, int grid_rows, int grid_cols)
+    {
+        if(workers.isEmpty())
+            throw new IllegalArgumentException("No workers to multiply on");
+        if(grid_rows < 1 || grid_cols < 1)
+            throw new IllegalArgumentException("Bad block grid " + grid_rows + "*" + grid_cols);
+        this.workers = new ArrayList<>(workers);
+        this.grid_rows = grid_rows;
+        this.grid_cols = grid_cols;
+    }
+
+    private static int square_rows(int n)
+    {
+        int r = Math.max((int) Math.sqrt(n), 1);
+        while(n % r != 0)
+            r--;
+        return r;
+    }
+
+    /**
+     * @param panel_width inner-dimension width of the panels sent per step
+     */
+    public void set_panel_width(int panel_width)
+    {
+        if(panel_width < 1)
+            throw new IllegalArgumentException("Bad panel width " + panel_width);
+        this.panel_width = panel_width;
+    }
+
+    /**
+     * @param parallel whether workers spread their block over their ParallelEngine, true by default
+     */
+    public void set_parallel(boolean parallel)
+    {
+        this.parallel = parallel;
+    }
+
+    public int get_grid_rows()
+    {
+        return grid_rows;
+    }
+
+    public int get_grid_cols()
+    {
+        return grid_cols;
+    }
+
+    /**
+     * a * b on the workers
+     * @throws IOException when a worker cannot be reached, fails or drops the connection
+     */
+    public Matrix multiply(Matrix a, Matrix b) throws IOException
+    {
+        if(!MatrixMetrics.is_enabled())
+            return product(a, b);
+        return MatrixMetrics.product("distributed", a, b, () -> product(a, b));
+    }
+
+    private Matrix product(Matrix a, Matrix b) throws IOException
+    {
+        int rows = a.get_row_count();
+        int inner = a.get_col_count();
+        int cols = b.get_col_count();
+        if(inner != b.get_row_count())
+        {
+            throw new IllegalArgumentException("Cannot multiply " + rows + "*" + inner + " matrix by "
+                                               + b.get_row_count() + "*" + cols + "matrix");
+        }
+        Matrix result = a instanceof OffHeapDenseMatrix || b instanceof OffHeapDenseMatrix
+                        ? new OffHeapDenseMatrix(rows, cols) : new DenseMatrix(rows, cols);
+        int[] row_bounds = bounds(rows, grid_rows);
+        int[] col_bounds = bounds(cols, grid_cols);
+        ExecutorService pool = Executors.newFixedThreadPool(grid_rows * grid_cols, r ->
+        {
+            Thread t = new Thread(r, "distributed-multiply");
+            t.setDaemon(true);
+            return t;
+        });
+        try
+        {
+            /* taken in completion order, so the first failing block fails the product at once */
+            CompletionService<Void> blocks = new ExecutorCompletionService<>(pool);
+            int submitted = 0;
+            for(int bi = 0; bi < grid_rows; bi++)
+            {
+                for(int bj = 0; bj < grid_cols; bj++)
+                {
+                    int r0 = row_bounds[bi], block_rows = row_bounds[bi + 1] - r0;
+                    int c0 = col_bounds[bj], block_cols = col_bounds[bj + 1] - c0;
+                    if(block_rows == 0 || block_cols == 0)
+                        continue;
+                    InetSocketAddress worker = workers.get((bi * grid_cols + bj) % workers.size());
+                    blocks.submit(MatrixMetrics.counted(() ->
+                    {
+                        block(worker, a, b, result, r0, c0, block_rows, block_cols);
+                        return null;
+                    }));
+                    submitted++;
+                }
+            }
+            for(int done = 0; done < submitted; done++)
+                blocks.take().get();
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException)
+                throw (IOException) cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the workers");
+        }
+        finally
+        {
+            /* interrupting the blocks still running closes their connections */
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * splits [0, n) into parts ranges differing by at most one
+     */
+    private static int[] bounds(int n, int parts)
+    {
+        int[] bounds = new int[parts + 1];
+        for(int p = 0; p <= parts; p++)
+            bounds[p] = (int) ((long) n * p / parts);
+        return bounds;
+    }
+
+    /**
+     * streams the panels of block (r0, c0) to worker and stores the block it sends back into result
+     */
+    private void block(InetSocketAddress worker, Matrix a, Matrix b, Matrix result,
+                       int r0, int c0, int rows, int cols) throws IOException
+    {
+        int inner = a.get_col_count();
+        ByteBuffer buffer = BlockProtocol.buffer();
+        try(SocketChannel channel = SocketChannel.open())
+        {
+            channel.socket().connect(worker, CONNECT_TIMEOUT);
+            channel.socket().setTcpNoDelay(true);
+            BlockProtocol.send_ints(channel, buffer, BlockProtocol.MAGIC, BlockProtocol.VERSION, rows, cols, inner,
+                                    panel_width, parallel ? 1 : 0);
+            expect_ok(channel, buffer);
+            int width = Math.min(panel_width, inner);
+            double[] a_panel = new double[rows * width];
+            double[] b_panel = new double[width * cols];
+            MatrixMetrics.scratch(BlockProtocol.BUFFER_SIZE + 8L * (a_panel.length + b_panel.length));
+            for(int k = 0; k < inner; k += panel_width)
+            {
+                int depth = Math.min(panel_width, inner - k);
+                OffHeapDenseMatrix.copy_block(a, r0, k, rows, depth, a_panel);
+                BlockProtocol.send_doubles(channel, buffer, a_panel, 0, rows * depth);
+                OffHeapDenseMatrix.copy_block(b, k, c0, depth, cols, b_panel);
+                BlockProtocol.send_doubles(channel, buffer, b_panel, 0, depth * cols);
+            }
+            expect_ok(channel, buffer);
+            if(result instanceof DenseMatrix)
+            {
+                double[] c = ((DenseMatrix) result).raw_entries();
+                int ldc = result.get_col_count();
+                for(int r = 0; r < rows; r++)
+                    BlockProtocol.receive_doubles(channel, buffer, c, (r0 + r) * ldc + c0, cols);
+                return;
+            }
+            double[] row = new double[cols];
+            for(int r = 0; r < rows; r++)
+            {
+                BlockProtocol.receive_doubles(channel, buffer, row, 0, cols);
+                ((OffHeapDenseMatrix) result).put_block(r0 + r, c0, 1, cols, row);
+            }
+        }
+        catch(IOException e)
+        {
+            throw new IOException("Worker " + worker + " on the block at " + r0 + "," + c0 + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void expect_ok(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        int status = BlockProtocol.receive_ints(channel, buffer, 1)[0];
+        if(status == BlockProtocol.FAILED)
+            throw new IOException("failed with " + BlockProtocol.receive_error(channel, buffer));
+        if(status != BlockProtocol.OK)
+            throw new IOException("unknown status " + status);
+    }
+}
@@ -0,0 +1,79 @@
+package edu.spbu.matrix;
+
+/**
+ * 64-bit content hashes for ProductCache keys: four independent multiply-xorshift lanes
+ * per array so that hashing runs at memory speed, finished with the MurmurHash3 mixer
+ */
+final class Fingerprint
+{
+    /* storage kinds, part of the seed: equal entries in another layout are another key */
+    static final int DENSE = 1;
+    static final int DENSE_COLUMN_MAJOR = 2;
+    static final int CSR = 3;
+    static final int CSC = 4;
+
+    private static final long PRIME = 0x9E3779B97F4A7C15L;
+
+    private Fingerprint()
+    {
+    }
+
+    static long seed(int kind, int rows, int cols)
+    {
+        return finish((kind * PRIME ^ rows) * PRIME ^ cols);
+    }
+
+    /**
+     * @return hash of h followed by values[from..to); 0.0 and -0.0 hash alike, as they compare equal
+     */
+    static long of(long h, double[] values, int from, int to)
+    {
+        long h0 = h, h1 = h + PRIME, h2 = h ^ PRIME, h3 = h - PRIME;
+        int x = from;
+        for(; x + 3 < to; x += 4)
+        {
+            h0 = Long.rotateLeft((h0 ^ Double.doubleToLongBits(values[x] + 0.0)) * PRIME, 31);
+            h1 = Long.rotateLeft((h1 ^ Double.doubleToLongBits(values[x + 1] + 0.0)) * PRIME, 31);
+            h2 = Long.rotateLeft((h2 ^ Double.doubleToLongBits(values[x + 2] + 0.0)) * PRIME, 31);
+            h3 = Long.rotateLeft((h3 ^ Double.doubleToLongBits(values[x + 3] + 0.0)) * PRIME, 31);
+        }
+        for(; x < to; x++)
+            h0 = Long.rotateLeft((h0 ^ Double.doubleToLongBits(values[x] + 0.0)) * PRIME, 31);
+        return combine(h0, h1, h2, h3, to - from);
+    }
+
+    static long of(long h, int[] values, int from, int to)
+    {
+        long h0 = h, h1 = h + PRIME, h2 = h ^ PRIME, h3 = h - PRIME;
+        int x = from;
+        for(; x + 3 < to; x += 4)
+        {
+            h0 = Long.rotateLeft((h0 ^ values[x]) * PRIME, 31);
+            h1 = Long.rotateLeft((h1 ^ values[x + 1]) * PRIME, 31);
+            h2 = Long.rotateLeft((h2 ^ values[x + 2]) * PRIME, 31);
+            h3 = Long.rotateLeft((h3 ^ values[x + 3]) * PRIME, 31);
+        }
+        for(; x < to; x++)
+            h0 = Long.rotateLeft((h0 ^ values[x]) * PRIME, 31);
+        return combine(h0, h1, h2, h3, to - from);
+    }
+
+    private static long combine(long h0, long h1, long h2, long h3, int length)
+    {
+        long h = finish(h0);
+        h = finish((h ^ h1) * PRIME);
+        h = finish((h ^ h2) * PRIME);
+        h = finish((h ^ h3) * PRIME ^ length);
+        return h == 0 ? PRIME : h;      /* 0 means "not computed" to the matrices */
+    }
+
+    private static long finish(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,154 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Row-major matrix of int entries, half the bytes of a DenseMatrix.
+ * Products with other integral matrices are accumulated in long into a LongDenseMatrix
+ * or LongSparseMatrix, exact while every sum stays within long: inner * max|a| * max|b| < 2^63
+ * guarantees it, beyond that the entries wrap around unchecked. With float matrices they are float.
+ */
+public final class IntDenseMatrix extends NarrowMatrix
+{
+    private final int[] entries;   /* row-major: (i,j) lives at i*col_count+j */
+
+    public IntDenseMatrix(int r, int c)
+    {
+        this(r, c, new int[dense_size(r, c)]);
+    }
+    /**
+     * wraps a ready row-major array of at least r*c entries, it is not copied
+     */
+    IntDenseMatrix(int r, int c, int[] entries)
+    {
+        super(r, c);
+        this.entries = entries;
+    }
+
+    /**
+     * loads a text or BinaryMatrixFile matrix of whole numbers within the int range
+     */
+    public static IntDenseMatrix load(String file_name) throws IOException
+    {
+        return of(NarrowMatrix.load(file_name, INT).build());
+    }
+
+    /**
+     * @return a copy of m, whose entries must be whole numbers within the int range
+     */
+    public static IntDenseMatrix of(Matrix m)
+    {
+        IntDenseMatrix result = new IntDenseMatrix(m.get_row_count(), m.get_col_count());
+        replay(m, (i, j, value) -> result.entries[i * result.col_count + j] = (int) to_integral(value, INT, i, j));
+        return result;
+    }
+
+    /**
+     * row-major contents, shared with this matrix
+     */
+    int[] raw_entries()
+    {
+        return entries;
+    }
+
+    @Override public double get_entry(int i, int j)
+    {
+        return entries[i * col_count + j];
+    }
+    public void set_entry(int i, int j, int value)
+    {
+        entries[i * col_count + j] = value;
+    }
+
+    @Override int element_type()
+    {
+        return INT;
+    }
+
+    @Override boolean is_sparse()
+    {
+        return false;
+    }
+
+    @Override long stored_count()
+    {
+        return (long) row_count * col_count;
+    }
+
+    @Override Matrix promote()
+    {
+        double[] values = new double[row_count * col_count];
+        for(int x = 0; x < values.length; x++)
+            values[x] = entries[x];
+        return new DenseMatrix(row_count, col_count, values);
+    }
+
+    @Override int gather_row(int i, int[] idx, float[] values)
+    {
+        int n = 0;
+        for(int k = 0, x = i * col_count; k < col_count; k++, x++)
+        {
+            if(entries[x] != 0)
+            {
+                idx[n] = k;
+                values[n++] = entries[x];
+            }
+        }
+        return n;
+    }
+
+    @Override void axpy_row(int k, float a, float[] acc, int acc_off, int from, int to)
+    {
+        int b = k * col_count;
+        for(int j = from; j < to; j++)
+            acc[acc_off + j] += a * entries[b + j];
+    }
+
+    @Override int gather_row(int i, int[] idx, long[] values)
+    {
+        int n = 0;
+        for(int k = 0, x = i * col_count; k < col_count; k++, x++)
+        {
+            if(entries[x] != 0)
+            {
+                idx[n] = k;
+                values[n++] = entries[x];
+            }
+        }
+        return n;
+    }
+
+    @Override void axpy_row(int k, long a, long[] acc, int acc_off, int from, int to)
+    {
+        int b = k * col_count;
+        for(int j = from; j < to; j++)
+            acc[acc_off + j] += a * entries[b + j];
+    }
+
+    @Override void vectors_kernel(double[] x, double[] y, int k, int row_from, int row_to)
+    {
+        for(int i = row_from; i < row_to; i++)
+        {
+            int a_row = i * col_count;
+            if(k == 1)
+            {
+                double sum = 0;
+                for(int c = 0; c < col_count; c++)
+                    sum += entries[a_row + c] * x[c];
+                y[i] = sum;
+                continue;
+            }
+            int y_row = i * k;
+            Arrays.fill(y, y_row, y_row + k, 0);
+            for(int c = 0; c < col_count; c++)
+            {
+                double a = entries[a_row + c];
+                if(a == 0)
+                    continue;
+                for(int v = 0; v < k; v++)
+                    y[y_row + v] += a * x[c * k + v];
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * CSR matrix of int values, 8 bytes per nonzero instead of the 12 of SparseMatrix.
+ * Read-only, products with other integral matrices are LongSparseMatrix or LongDenseMatrix.
+ */
+public final class IntSparseMatrix extends NarrowSparseMatrix
+{
+    private final int[] values;
+
+    IntSparseMatrix(int r, int c, int[] row_ptr, int[] col_idx, int[] values)
+    {
+        super(r, c, row_ptr, col_idx);
+        this.values = values;
+    }
+
+    /**
+     * loads a text or BinaryMatrixFile matrix of whole numbers within the int range
+     */
+    public static IntSparseMatrix load(String file_name) throws IOException
+    {
+        return (IntSparseMatrix) NarrowMatrix.load(file_name, INT).build();
+    }
+
+    /**
+     * @return a copy of m, whose entries must be whole numbers within the int range
+     */
+    public static IntSparseMatrix of(Matrix m)
+    {
+        NarrowSparseMatrix.Builder builder = new NarrowSparseMatrix.Builder(INT, m.get_row_count(), 16);
+        builder.add_all(m);
+        return (IntSparseMatrix) builder.build();
+    }
+
+    @Override double value(int p)
+    {
+        return values[p];
+    }
+
+    @Override int element_type()
+    {
+        return INT;
+    }
+
+    @Override int gather_row(int i, int[] idx, float[] values)
+    {
+        int n = row_ptr[i + 1] - row_ptr[i];
+        System.arraycopy(col_idx, row_ptr[i], idx, 0, n);
+        for(int q = 0; q < n; q++)
+            values[q] = this.values[row_ptr[i] + q];
+        return n;
+    }
+
+    @Override int gather_row(int i, int[] idx, long[] values)
+    {
+        int n = row_ptr[i + 1] - row_ptr[i];
+        System.arraycopy(col_idx, row_ptr[i], idx, 0, n);
+        for(int q = 0; q < n; q++)
+            values[q] = this.values[row_ptr[i] + q];
+        return n;
+    }
+
+    @Override void axpy_row(int k, float a, float[] acc, int acc_off, int from, int to)
+    {
+        for(int p = row_ptr[k]; p < row_ptr[k + 1]; p++)
+        {
+            int j = col_idx[p];
+            if(j >= to)
+                break;
+            if(j >= from)
+                acc[acc_off + j] += a * values[p];
+        }
+    }
+
+    @Override void axpy_row(int k, long a, long[] acc, int acc_off, int from, int to)
+    {
+        for(int p = row_ptr[k]; p < row_ptr[k + 1]; p++)
+        {
+            int j = col_idx[p];
+            if(j >= to)
+                break;
+            if(j >= from)
+                acc[acc_off + j] += a * values[p];
+        }
+    }
+
+    @Override int scatter_row(int k, float a, float[] acc, int[] marker, int i, int[] touched, int t)
+    {
+        for(int p = row_ptr[k]; p < row_ptr[k + 1]; p++)
+        {
+            int j = col_idx[p];
+            if(marker[j] != i)
+            {
+                marker[j] = i;
+                touched[t++] = j;
+                acc[j] = a * values[p];
+            }
+            else
+                acc[j] += a * values[p];
+        }
+        return t;
+    }
+
+    @Override int scatter_row(int k, long a, long[] acc, int[] marker, int i, int[] touched, int t)
+    {
+        for(int p = row_ptr[k]; p < row_ptr[k + 1]; p++)
+        {
+            int j = col_idx[p];
+            if(marker[j] != i)
+            {
+                marker[j] = i;
+                touched[t++] = j;
+                acc[j] = a * values[p];
+            }
+            else
+                acc[j] += a * values[p];
+        }
+        return t;
+    }
+
+    @Override void vectors_kernel(double[] x, double[] y, int k, int row_from, int row_to)
+    {
+        for(int i = row_from; i < row_to; i++)
+        {
+            if(k == 1)
+            {
+                double sum = 0;
+                for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+                    sum += values[p] * x[col_idx[p]];
+                y[i] = sum;
+                continue;
+            }
+            int y_row = i * k;
+            Arrays.fill(y, y_row, y_row + k, 0);
+            for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+            {
+                double a = values[p];
+                int x_row = col_idx[p] * k;
+                for(int v = 0; v < k; v++)
+                    y[y_row + v] += a * x[x_row + v];
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Row-major matrix of long entries, for integer products that overflow int.
+ * Products with other integral matrices are long, with float matrices float. Long arithmetic
+ * is not checked: a product entry beyond the long range wraps around.
+ */
+public final class LongDenseMatrix extends NarrowMatrix
+{
+    private final long[] entries;   /* row-major: (i,j) lives at i*col_count+j */
+
+    public LongDenseMatrix(int r, int c)
+    {
+        this(r, c, new long[dense_size(r, c)]);
+    }
+    /**
+     * wraps a ready row-major array of at least r*c entries, it is not copied
+     */
+    LongDenseMatrix(int r, int c, long[] entries)
+    {
+        super(r, c);
+        this.entries = entries;
+    }
+
+    /**
+     * loads a text or BinaryMatrixFile matrix of whole numbers
+     */
+    public static LongDenseMatrix load(String file_name) throws IOException
+    {
+        return of(NarrowMatrix.load(file_name, LONG).build());
+    }
+
+    /**
+     * @return a copy of m, whose entries must be whole numbers
+     */
+    public static LongDenseMatrix of(Matrix m)
+    {
+        LongDenseMatrix result = new LongDenseMatrix(m.get_row_count(), m.get_col_count());
+        replay(m, (i, j, value) -> result.entries[i * result.col_count + j] = to_integral(value, LONG, i, j));
+        return result;
+    }
+
+    /**
+     * row-major contents, shared with this matrix
+     */
+    long[] raw_entries()
+    {
+        return entries;
+    }
+
+    @Override public double get_entry(int i, int j)
+    {
+        return entries[i * col_count + j];
+    }
+    public void set_entry(int i, int j, long value)
+    {
+        entries[i * col_count + j] = value;
+    }
+
+    @Override int element_type()
+    {
+        return LONG;
+    }
+
+    @Override boolean is_sparse()
+    {
+        return false;
+    }
+
+    @Override long stored_count()
+    {
+        return (long) row_count * col_count;
+    }
+
+    @Override Matrix promote()
+    {
+        double[] values = new double[row_count * col_count];
+        for(int x = 0; x < values.length; x++)
+            values[x] = entries[x];
+        return new DenseMatrix(row_count, col_count, values);
+    }
+
+    @Override int gather_row(int i, int[] idx, float[] values)
+    {
+        int n = 0;
+        for(int k = 0, x = i * col_count; k < col_count; k++, x++)
+        {
+            if(entries[x] != 0)
+            {
+                idx[n] = k;
+                values[n++] = entries[x];
+            }
+        }
+        return n;
+    }
+
+    @Override void axpy_row(int k, float a, float[] acc, int acc_off, int from, int to)
+    {
+        int b = k * col_count;
+        for(int j = from; j < to; j++)
+            acc[acc_off + j] += a * entries[b + j];
+    }
+
+    @Override int gather_row(int i, int[] idx, long[] values)
+    {
+        int n = 0;
+        for(int k = 0, x = i * col_count; k < col_count; k++, x++)
+        {
+            if(entries[x] != 0)
+            {
+                idx[n] = k;
+                values[n++] = entries[x];
+            }
+        }
+        return n;
+    }
+
+    @Override void axpy_row(int k, long a, long[] acc, int acc_off, int from, int to)
+    {
+        int b = k * col_count;
+        for(int j = from; j < to; j++)
+            acc[acc_off + j] += a * entries[b + j];
+    }
+
+    @Override void vectors_kernel(double[] x, double[] y, int k, int row_from, int row_to)
+    {
+        for(int i = row_from; i < row_to; i++)
+        {
+            int a_row = i * col_count;
+            if(k == 1)
+            {
+                double sum = 0;
+                for(int c = 0; c < col_count; c++)
+                    sum += entries[a_row + c] * x[c];
+                y[i] = sum;
+                continue;
+            }
+            int y_row = i * k;
+            Arrays.fill(y, y_row, y_row + k, 0);
+            for(int c = 0; c < col_count; c++)
+            {
+                double a = entries[a_row + c];
+                if(a == 0)
+                    continue;
+                for(int v = 0; v < k; v++)
+                    y[y_row + v] += a * x[c * k + v];
+            }
+        }
+    }
+}
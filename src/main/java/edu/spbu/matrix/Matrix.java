@@ -1,5 +1,9 @@
 package edu.spbu.matrix;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /**
  *
  */
@@ -20,4 +24,116 @@ public interface Matrix
    */
   Matrix dmul(Matrix o);
 
+  /**
+   * асинхронное однопоточное умножение на executor
+   * @return future с произведением, исключение mul завершает его с ошибкой
+   */
+  default CompletableFuture<Matrix> mul_async(Matrix o, Executor executor)
+  {
+    return CompletableFuture.supplyAsync(() -> mul(o), executor);
+  }
+
+  /**
+   * mul_async на MatrixJobs.get_compute_executor()
+   */
+  default CompletableFuture<Matrix> mul_async(Matrix o)
+  {
+    return mul_async(o, MatrixJobs.get_compute_executor());
+  }
+
+  /**
+   * асинхронное многопоточное умножение, executor только запускает dmul
+   */
+  default CompletableFuture<Matrix> dmul_async(Matrix o, Executor executor)
+  {
+    return CompletableFuture.supplyAsync(() -> dmul(o), executor);
+  }
+
+  /**
+   * dmul_async на MatrixJobs.get_compute_executor()
+   */
+  default CompletableFuture<Matrix> dmul_async(Matrix o)
+  {
+    return dmul_async(o, MatrixJobs.get_compute_executor());
+  }
+
+  /**
+   * @return число строк
+   */
+  int get_row_count();
+
+  /**
+   * @return число столбцов
+   */
+  int get_col_count();
+
+  /**
+   * @return элемент в строке i, столбце j
+   */
+  double get_entry(int i, int j);
+
+  /**
+   * произведение на вектор: y = A x, без выделения памяти
+   * @param x вектор длины get_col_count(), не должен совпадать с y
+   * @param y вектор длины get_row_count(), перезаписывается
+   * @return y
+   */
+  default double[] mul_vector(double[] x, double[] y)
+  {
+    return mul_vectors(x, y, 1);
+  }
+
+  /**
+   * многопоточное произведение на вектор, строки делятся между потоками
+   */
+  default double[] dmul_vector(double[] x, double[] y)
+  {
+    return dmul_vectors(x, y, 1);
+  }
+
+  /**
+   * произведение на k векторов сразу: Y = A X
+   * @param x матрица get_col_count() x k по строкам: x[c*k + v] - элемент c вектора v
+   * @param y матрица get_row_count() x k по строкам, перезаписывается
+   * @param k число векторов
+   * @return y
+   */
+  default double[] mul_vectors(double[] x, double[] y, int k)
+  {
+    int rows = get_row_count();
+    int cols = get_col_count();
+    if(k < 1 || x.length < cols * k || y.length < rows * k)
+    {
+      throw new IllegalArgumentException("Cannot multiply " + rows + "*" + cols + " matrix by " + k
+                                         + " vectors in arrays of length " + x.length + " and " + y.length);
+    }
+    Arrays.fill(y, 0, rows * k, 0);
+    for(int i = 0; i < rows; i++)
+      for(int c = 0; c < cols; c++)
+      {
+        double a = get_entry(i, c);
+        if(a != 0)
+          for(int v = 0; v < k; v++)
+            y[i * k + v] += a * x[c * k + v];
+      }
+    return y;
+  }
+
+  /**
+   * многопоточное произведение на k векторов
+   */
+  default double[] dmul_vectors(double[] x, double[] y, int k)
+  {
+    return mul_vectors(x, y, k);
+  }
+
+  /**
+   * транспонированная матрица за O(1), без копирования элементов
+   * @return представление, читающее элементы этой матрицы
+   */
+  default Matrix transpose()
+  {
+    return new TransposedMatrix(this);
+  }
+
 }
@@ -0,0 +1,472 @@
+package edu.spbu.matrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * lazy matrix expression: mul, add and scale only record what is to be computed.
+ *
+ * evaluate() multiplies every product chain in the order with the fewest estimated multiply-adds,
+ * found by dynamic programming over operand shapes and densities, folds all scalars of a chain or a
+ * sum into one pass over a result the evaluation owns, and hands the arrays of dense intermediates
+ * over to later products of the same evaluation instead of allocating new ones.
+ */
+public abstract class MatrixExpression
+{
+    final int row_count;
+    final int col_count;
+    final double factor;        /* the expression is factor times its body */
+
+    private MatrixExpression(int r, int c, double factor)
+    {
+        row_count = r;
+        col_count = c;
+        this.factor = factor;
+    }
+
+    /**
+     * @return expression standing for m, m is read at evaluation time
+     */
+    public static MatrixExpression of(Matrix m)
+    {
+        return new Leaf(m, 1.0);
+    }
+
+    public int get_row_count()
+    {
+        return row_count;
+    }
+    public int get_col_count()
+    {
+        return col_count;
+    }
+
+    public MatrixExpression mul(Matrix o)
+    {
+        return mul(of(o));
+    }
+
+    /**
+     * @return this * o, nested products are flattened into one chain
+     */
+    public MatrixExpression mul(MatrixExpression o)
+    {
+        if(col_count != o.row_count)
+        {
+            throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
+                                               + o.row_count + "*" + o.col_count + "matrix");
+        }
+        List<MatrixExpression> factors = new ArrayList<>();
+        double scale = 1.0;
+        for(MatrixExpression e : new MatrixExpression[]{this, o})
+        {
+            if(e instanceof Product)
+            {
+                factors.addAll(Arrays.asList(((Product) e).factors));
+                scale *= e.factor;
+            }
+            else
+                factors.add(e);
+        }
+        return new Product(factors.toArray(new MatrixExpression[0]), scale);
+    }
+
+    public MatrixExpression add(Matrix o)
+    {
+        return add(of(o));
+    }
+
+    /**
+     * @return this + o, nested sums are flattened into one
+     */
+    public MatrixExpression add(MatrixExpression o)
+    {
+        if(row_count != o.row_count || col_count != o.col_count)
+        {
+            throw new IllegalArgumentException("Cannot add " + row_count + "*" + col_count + " matrix to "
+                                               + o.row_count + "*" + o.col_count + " matrix");
+        }
+        List<MatrixExpression> terms = new ArrayList<>();
+        for(MatrixExpression e : new MatrixExpression[]{this, o})
+        {
+            if(e instanceof Sum)
+            {
+                for(MatrixExpression t : ((Sum) e).terms)
+                    terms.add(t.scale(e.factor));
+            }
+            else
+                terms.add(e);
+        }
+        return new Sum(terms.toArray(new MatrixExpression[0]), 1.0);
+    }
+
+    /**
+     * @return value * this, nothing is computed until evaluation
+     */
+    public MatrixExpression scale(double value)
+    {
+        return with_factor(factor * value);
+    }
+
+    abstract MatrixExpression with_factor(double f);
+
+    /**
+     * single-threaded evaluation
+     * @return the value, a matrix wrapped by of() itself if nothing needs computing
+     */
+    public Matrix evaluate()
+    {
+        return evaluate(false);
+    }
+
+    /**
+     * @param parallel use dmul for the products and split sums between workers
+     */
+    public Matrix evaluate(boolean parallel)
+    {
+        return new Evaluation(parallel).result(this);
+    }
+
+    /**
+     * optimal multiplication order of a chain, cost of multiplying an m*n by an n*p operand is taken as
+     * m*n*p*dl*dr multiply-adds plus m*p for the result, where d is the estimated share of nonzeros
+     * of a sparse operand and 1 for anything else
+     * @return split[i][j] = k: factors i..j are computed as (i..k) * (k+1..j)
+     */
+    static int[][] chain_order(Matrix[] factors)
+    {
+        int n = factors.length;
+        double[][] cost = new double[n][n];
+        double[][] density = new double[n][n];
+        boolean[][] sparse = new boolean[n][n];
+        int[][] split = new int[n][n];
+        for(int i = 0; i < n; i++)
+        {
+            sparse[i][i] = factors[i] instanceof SparseMatrix;
+            density[i][i] = sparse[i][i] ? density((SparseMatrix) factors[i]) : 1.0;
+        }
+        for(int len = 2; len <= n; len++)
+        {
+            for(int i = 0; i + len <= n; i++)
+            {
+                int j = i + len - 1;
+                double m = factors[i].get_row_count();
+                double p = factors[j].get_col_count();
+                cost[i][j] = Double.POSITIVE_INFINITY;
+                for(int k = i; k < j; k++)
+                {
+                    double c = cost[i][k] + cost[k + 1][j]
+                               + m * factors[k].get_col_count() * p * density[i][k] * density[k + 1][j] + m * p;
+                    if(c < cost[i][j])
+                    {
+                        cost[i][j] = c;
+                        split[i][j] = k;
+                    }
+                }
+                /* entries are assumed to be independent: a zero needs all of the inner products to miss.
+                   A sparse x sparse product stays sparse, a mixed one only below the dense threshold */
+                int k = split[i][j];
+                double hit = density[i][k] * density[k + 1][j];
+                double estimate = -Math.expm1(factors[k].get_col_count() * Math.log1p(-hit));
+                sparse[i][j] = sparse[i][k] && sparse[k + 1][j]
+                               || (sparse[i][k] || sparse[k + 1][j])
+                                  && !MatrixFactory.prefers_dense((long) Math.ceil(estimate * m * p), (int) m, (int) p);
+                density[i][j] = sparse[i][j] ? estimate : 1.0;
+            }
+        }
+        return split;
+    }
+
+    private static double density(SparseMatrix m)
+    {
+        double cells = (double) m.get_row_count() * m.get_col_count();
+        return cells == 0 ? 0 : m.get_nnz() / cells;
+    }
+
+    private static final class Leaf extends MatrixExpression
+    {
+        final Matrix matrix;
+
+        Leaf(Matrix m, double factor)
+        {
+            super(m.get_row_count(), m.get_col_count(), factor);
+            matrix = m;
+        }
+        @Override MatrixExpression with_factor(double f)
+        {
+            return new Leaf(matrix, f);
+        }
+    }
+
+    private static final class Product extends MatrixExpression
+    {
+        final MatrixExpression[] factors;     /* at least two, none of them a Product */
+
+        Product(MatrixExpression[] factors, double factor)
+        {
+            super(factors[0].row_count, factors[factors.length - 1].col_count, factor);
+            this.factors = factors;
+        }
+        @Override MatrixExpression with_factor(double f)
+        {
+            return new Product(factors, f);
+        }
+    }
+
+    private static final class Sum extends MatrixExpression
+    {
+        final MatrixExpression[] terms;       /* at least two, none of them a Sum */
+
+        Sum(MatrixExpression[] terms, double factor)
+        {
+            super(terms[0].row_count, terms[0].col_count, factor);
+            this.terms = terms;
+        }
+        @Override MatrixExpression with_factor(double f)
+        {
+            return new Sum(terms, f);
+        }
+    }
+
+    /**
+     * factor * matrix, owned if the evaluation created the matrix and may update or recycle it
+     */
+    private static final class Operand
+    {
+        final Matrix matrix;
+        final double factor;
+        final boolean owned;
+
+        Operand(Matrix matrix, double factor, boolean owned)
+        {
+            this.matrix = matrix;
+            this.factor = factor;
+            this.owned = owned;
+        }
+    }
+
+    /**
+     * state of one evaluate() call: arrays of consumed dense intermediates wait in the pool
+     * for the next dense result that fits
+     */
+    private static final class Evaluation
+    {
+        private final boolean parallel;
+        private final List<double[]> pool = new ArrayList<>();
+
+        Evaluation(boolean parallel)
+        {
+            this.parallel = parallel;
+        }
+
+        Matrix result(MatrixExpression e)
+        {
+            Operand op = operand(e);
+            if(op.factor == 1.0)
+                return op.matrix;
+            if(op.owned && op.matrix instanceof DenseMatrix)
+            {
+                ((DenseMatrix) op.matrix).scale(op.factor);
+                return op.matrix;
+            }
+            if(op.owned && op.matrix instanceof SparseMatrix)
+            {
+                ((SparseMatrix) op.matrix).scale(op.factor);
+                return op.matrix;
+            }
+            return sum(new Operand[]{op}, 1.0).matrix;
+        }
+
+        private Operand operand(MatrixExpression e)
+        {
+            if(e instanceof Leaf)
+                return new Operand(((Leaf) e).matrix, e.factor, false);
+            if(e instanceof Sum)
+            {
+                MatrixExpression[] terms = ((Sum) e).terms;
+                Operand[] ops = new Operand[terms.length];
+                for(int t = 0; t < terms.length; t++)
+                    ops[t] = operand(terms[t]);
+                return sum(ops, e.factor);
+            }
+            MatrixExpression[] factors = ((Product) e).factors;
+            Operand[] ops = new Operand[factors.length];
+            Matrix[] matrices = new Matrix[factors.length];
+            double scale = e.factor;
+            for(int f = 0; f < factors.length; f++)
+            {
+                ops[f] = operand(factors[f]);
+                matrices[f] = ops[f].matrix;
+                scale *= ops[f].factor;
+            }
+            Matrix product = chain(ops, chain_order(matrices), 0, factors.length - 1).matrix;
+            return new Operand(product, scale, true);
+        }
+
+        /**
+         * multiplies factors i..j in the order split tells, scalars of the factors are left to the caller
+         */
+        private Operand chain(Operand[] ops, int[][] split, int i, int j)
+        {
+            if(i == j)
+                return ops[i];
+            Operand left = chain(ops, split, i, split[i][j]);
+            Operand right = chain(ops, split, split[i][j] + 1, j);
+            Matrix product = multiply(left.matrix, right.matrix);
+            release(left);
+            release(right);
+            return new Operand(product, 1.0, true);
+        }
+
+        private Matrix multiply(Matrix a, Matrix b)
+        {
+            boolean a_known = a instanceof DenseMatrix || a instanceof SparseMatrix;
+            boolean b_known = b instanceof DenseMatrix || b instanceof SparseMatrix;
+            if(!a_known || !b_known)
+                return parallel ? a.dmul(b) : a.mul(b);
+            double[] buffer = a instanceof SparseMatrix && b instanceof SparseMatrix ? null
+                            : take(a.get_row_count() * b.get_col_count());
+            Matrix product = a instanceof DenseMatrix ? ((DenseMatrix) a).multiply(b, buffer, parallel)
+                                                      : ((SparseMatrix) a).multiply(b, buffer, parallel);
+            if(buffer != null && !(product instanceof DenseMatrix && ((DenseMatrix) product).raw_entries() == buffer))
+                pool.add(buffer);
+            return product;
+        }
+
+        /**
+         * scale * sum of the terms in one pass, sparse if every term is
+         */
+        private Operand sum(Operand[] terms, double scale)
+        {
+            int rows = terms[0].matrix.get_row_count();
+            int cols = terms[0].matrix.get_col_count();
+            boolean sparse = true;
+            for(Operand t : terms)
+                sparse &= t.matrix instanceof SparseMatrix;
+            Matrix result;
+            if(sparse)
+                result = sparse_sum(terms, scale, rows, cols);
+            else
+            {
+                double[] c = take(rows * cols);
+                ParallelEngine.BlockKernel kernel = (row_from, row_to, col_from, col_to) ->
+                {
+                    for(Operand t : terms)
+                        add_rows(t.matrix, scale * t.factor, c, row_from, row_to);
+                };
+                if(parallel)
+                    ParallelEngine.run(rows, 1, DenseKernels.ROW_BLOCK, 1, kernel);
+                else
+                    kernel.compute(0, rows, 0, 1);
+                result = new DenseMatrix(rows, cols, c);
+            }
+            for(Operand t : terms)
+                release(t);
+            return new Operand(result, 1.0, true);
+        }
+
+        /**
+         * c += s * m over rows row_from..row_to, c is row-major
+         */
+        private static void add_rows(Matrix m, double s, double[] c, int row_from, int row_to)
+        {
+            int cols = m.get_col_count();
+            if(m instanceof DenseMatrix && !((DenseMatrix) m).is_column_major())
+            {
+                double[] src = ((DenseMatrix) m).raw_entries();
+                for(int x = row_from * cols; x < row_to * cols; x++)
+                    c[x] += s * src[x];
+                return;
+            }
+            if(m instanceof SparseMatrix)
+            {
+                SparseMatrix m1 = (SparseMatrix) m;
+                int[] ptr = m1.raw_row_ptr();
+                int[] idx = m1.raw_col_idx();
+                double[] values = m1.raw_values();
+                for(int i = row_from; i < row_to; i++)
+                    for(int p = ptr[i]; p < ptr[i + 1]; p++)
+                        c[i * cols + idx[p]] += s * values[p];
+                return;
+            }
+            for(int i = row_from; i < row_to; i++)
+                for(int j = 0; j < cols; j++)
+                    c[i * cols + j] += s * m.get_entry(i, j);
+        }
+
+        /**
+         * row by row merge through a dense accumulator, entries that cancel out are dropped
+         */
+        private static SparseMatrix sparse_sum(Operand[] terms, double scale, int rows, int cols)
+        {
+            int capacity = 0;
+            for(Operand t : terms)
+                capacity += ((SparseMatrix) t.matrix).get_nnz();
+            int[] row_ptr = new int[rows + 1];
+            int[] col_idx = new int[capacity];
+            double[] values = new double[capacity];
+            double[] accumulator = new double[cols];
+            int[] marker = new int[cols];
+            int[] touched = new int[cols];
+            Arrays.fill(marker, -1);
+            int nnz = 0;
+            for(int i = 0; i < rows; i++)
+            {
+                int count = 0;
+                for(Operand t : terms)
+                {
+                    SparseMatrix m = (SparseMatrix) t.matrix;
+                    int[] ptr = m.raw_row_ptr();
+                    int[] idx = m.raw_col_idx();
+                    double[] v = m.raw_values();
+                    double s = scale * t.factor;
+                    for(int p = ptr[i]; p < ptr[i + 1]; p++)
+                    {
+                        int j = idx[p];
+                        if(marker[j] != i)
+                        {
+                            marker[j] = i;
+                            accumulator[j] = 0;
+                            touched[count++] = j;
+                        }
+                        accumulator[j] += s * v[p];
+                    }
+                }
+                Arrays.sort(touched, 0, count);
+                for(int q = 0; q < count; q++)
+                {
+                    if(accumulator[touched[q]] != 0)
+                    {
+                        col_idx[nnz] = touched[q];
+                        values[nnz++] = accumulator[touched[q]];
+                    }
+                }
+                row_ptr[i + 1] = nnz;
+            }
+            return new SparseMatrix(rows, cols, row_ptr, col_idx, values);
+        }
+
+        /**
+         * @return zero-filled array of at least size entries, the smallest one in the pool that fits
+         */
+        private double[] take(int size)
+        {
+            int best = -1;
+            for(int b = 0; b < pool.size(); b++)
+                if(pool.get(b).length >= size && (best < 0 || pool.get(b).length < pool.get(best).length))
+                    best = b;
+            if(best < 0)
+                return new double[size];
+            double[] buffer = pool.remove(best);
+            Arrays.fill(buffer, 0, size, 0);
+            return buffer;
+        }
+
+        private void release(Operand op)
+        {
+            if(op.owned && op.matrix instanceof DenseMatrix)
+                pool.add(((DenseMatrix) op.matrix).raw_entries());
+        }
+    }
+}
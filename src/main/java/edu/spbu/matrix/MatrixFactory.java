@@ -0,0 +1,191 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * picks DenseMatrix or SparseMatrix by the share of nonzeros.
+ *
+ * CSR costs 12 bytes per nonzero against 8 per dense entry and its kernels do more work per
+ * multiply-add, so the break-even sits well below the 2/3 that memory alone would give.
+ * The same threshold decides the output format of mixed products.
+ */
+public final class MatrixFactory
+{
+    static final String THRESHOLD_PROPERTY = "edu.spbu.matrix.dense.threshold";
+    private static final int MIN_SAMPLE_ROWS = 16;  /* rows read before the loader trusts the running density */
+
+    /**
+     * share of nonzeros from which a matrix is kept dense
+     */
+    private static volatile double dense_threshold = threshold_property();
+
+    private MatrixFactory()
+    {
+    }
+
+    private static double threshold_property()
+    {
+        try
+        {
+            return Double.parseDouble(System.getProperty(THRESHOLD_PROPERTY, "0.25"));
+        }
+        catch(NumberFormatException e)
+        {
+            return 0.25;
+        }
+    }
+
+    public static double get_dense_threshold()
+    {
+        return dense_threshold;
+    }
+
+    /**
+     * @param value share of nonzeros from which matrices are dense, above 1 keeps everything sparse
+     */
+    public static void set_dense_threshold(double value)
+    {
+        dense_threshold = value;
+    }
+
+    /**
+     * loads a text or BinaryMatrixFile matrix in whichever representation suits its density.
+     * Text is read sparse and switches to dense as soon as the rows read so far are dense enough,
+     * so a dense file never sits in CSR form as a whole
+     * @param file_name source file name
+     */
+    public static Matrix load(String file_name) throws IOException
+    {
+        if(BinaryMatrixFile.is_binary(file_name))
+        {
+            BinaryMatrixFile.Header header;
+            try(FileChannel channel = FileChannel.open(Paths.get(file_name), StandardOpenOption.READ))
+            {
+                header = BinaryMatrixFile.read_header(channel);
+            }
+            /* dense files do not record their nonzero count, it is only known once they are read */
+            if(header.kind == BinaryMatrixFile.DENSE)
+                return choose(BinaryMatrixFile.read_dense(file_name));
+            if(prefers_dense(header.nnz, header.row_count, header.col_count))
+                return BinaryMatrixFile.read_dense(file_name);
+            return BinaryMatrixFile.read_sparse(file_name);
+        }
+        AdaptiveBuilder builder = new AdaptiveBuilder();
+        MatrixLoader.load(file_name, builder);
+        return builder.build();
+    }
+
+    /**
+     * @return m itself if it already is in the representation its density calls for, a converted copy otherwise.
+     * Matrices of other types are returned as they are
+     */
+    public static Matrix choose(Matrix m)
+    {
+        if(m instanceof SparseMatrix)
+        {
+            SparseMatrix s = (SparseMatrix) m;
+            return prefers_dense(s.get_nnz(), s.get_row_count(), s.get_col_count()) ? to_dense(s) : s;
+        }
+        if(m instanceof DenseMatrix)
+        {
+            double[] entries = ((DenseMatrix) m).raw_entries();
+            long nnz = 0;
+            for(int x = 0; x < m.get_row_count() * m.get_col_count(); x++)
+                if(entries[x] != 0)
+                    nnz++;
+            return prefers_dense(nnz, m.get_row_count(), m.get_col_count()) ? m : to_sparse(m);
+        }
+        return m;
+    }
+
+    static boolean prefers_dense(long nnz, int rows, int cols)
+    {
+        double cells = (double) rows * cols;
+        return cells > 0 && nnz >= dense_threshold * cells;
+    }
+
+    static SparseMatrix to_sparse(Matrix m)
+    {
+        CsrBuilder builder = new CsrBuilder(m.get_row_count(), 16);
+        for(int i = 0; i < m.get_row_count(); i++)
+        {
+            for(int j = 0; j < m.get_col_count(); j++)
+                builder.add(j, m.get_entry(i, j));
+            builder.end_row();
+        }
+        return builder.build(m.get_row_count(), m.get_col_count());
+    }
+
+    static DenseMatrix to_dense(SparseMatrix m)
+    {
+        DenseMatrix result = new DenseMatrix(m.get_row_count(), m.get_col_count());
+        m.scatter_into(result);
+        return result;
+    }
+
+    /**
+     * loader sink that collects CSR until the running density reaches the threshold,
+     * then replays what it has into a DenseBuilder and carries on there
+     */
+    private static final class AdaptiveBuilder implements MatrixLoader.Sink
+    {
+        private CsrBuilder sparse = new CsrBuilder(16, 16);
+        private DenseBuilder dense;
+        private long nnz = 0;
+        private int row_count = 0;
+        private int col_count = 0;
+
+        @Override public void entry(int i, int j, double value)
+        {
+            nnz++;
+            if(dense != null)
+                dense.entry(i, j, value);
+            else
+                sparse.add(j, value);
+        }
+
+        @Override public void end_row(int i, int col_count)
+        {
+            this.col_count = col_count;
+            row_count = i + 1;
+            if(dense != null)
+            {
+                dense.end_row(i, col_count);
+                return;
+            }
+            sparse.end_row();
+            if(row_count >= MIN_SAMPLE_ROWS && prefers_dense(nnz, row_count, col_count))
+            {
+                SparseMatrix so_far = sparse.build(row_count, col_count);
+                int[] row_ptr = so_far.raw_row_ptr();
+                int[] col_idx = so_far.raw_col_idx();
+                double[] values = so_far.raw_values();
+                dense = new DenseBuilder();
+                for(int r = 0; r < row_count; r++)
+                {
+                    for(int p = row_ptr[r]; p < row_ptr[r + 1]; p++)
+                        dense.entry(r, col_idx[p], values[p]);
+                    dense.end_row(r, col_count);
+                }
+                sparse = null;
+            }
+        }
+
+        /**
+         * the decision is made again on the whole file, a dense start may be followed by empty rows
+         */
+        Matrix build()
+        {
+            if(dense == null)
+            {
+                SparseMatrix result = sparse.build(row_count, col_count);
+                return prefers_dense(nnz, row_count, col_count) ? to_dense(result) : result;
+            }
+            DenseMatrix result = new DenseMatrix(row_count, col_count, dense.to_array());
+            return prefers_dense(nnz, row_count, col_count) ? result : to_sparse(result);
+        }
+    }
+}
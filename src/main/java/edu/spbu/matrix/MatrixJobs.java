@@ -0,0 +1,201 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * CompletableFuture pipelines over matrices: loads and writes run on the I/O executor, products
+ * (Matrix.mul_async, dmul_async, product_async) on the compute executor, so
+ *
+ *     MatrixJobs.product_async(MatrixJobs.load_async(a), MatrixJobs.load_async(b), true)
+ *               .thenCompose(c -> MatrixJobs.write_async(c, result))
+ *
+ * reads both operands at once and starts multiplying as soon as the second one is in.
+ * Failures complete the futures exceptionally with the original exception, an IOException for
+ * a missing file. The I/O executor defaults to a pool of daemon threads created on demand, the
+ * compute one to the common ForkJoinPool; dmul itself still runs on ParallelEngine.
+ */
+public final class MatrixJobs
+{
+    /**
+     * a load or a write, anything that may throw an IOException
+     */
+    public interface IoTask<T>
+    {
+        T run() throws IOException;
+    }
+
+    private static volatile Executor io_executor = default_io_executor();
+    private static volatile Executor compute_executor = ForkJoinPool.commonPool();
+
+    private MatrixJobs()
+    {
+    }
+
+    private static ExecutorService default_io_executor()
+    {
+        return Executors.newCachedThreadPool(r ->
+        {
+            Thread t = new Thread(r, "matrix-io");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static Executor get_io_executor()
+    {
+        return io_executor;
+    }
+
+    /**
+     * @param executor runs the loads and writes started afterwards
+     */
+    public static void set_io_executor(Executor executor)
+    {
+        if(executor == null)
+            throw new IllegalArgumentException("No I/O executor");
+        io_executor = executor;
+    }
+
+    public static Executor get_compute_executor()
+    {
+        return compute_executor;
+    }
+
+    /**
+     * @param executor runs the products started afterwards without an executor of their own
+     */
+    public static void set_compute_executor(Executor executor)
+    {
+        if(executor == null)
+            throw new IllegalArgumentException("No compute executor");
+        compute_executor = executor;
+    }
+
+    /**
+     * runs task on executor
+     * @return future completed with its result, or exceptionally with whatever it threw
+     */
+    public static <T> CompletableFuture<T> io_async(IoTask<T> task, Executor executor)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try
+        {
+            executor.execute(() ->
+            {
+                try
+                {
+                    result.complete(task.run());
+                }
+                catch(IOException | RuntimeException | Error e)
+                {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
+        {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * io_async on the I/O executor
+     */
+    public static <T> CompletableFuture<T> io_async(IoTask<T> task)
+    {
+        return io_async(task, io_executor);
+    }
+
+    /**
+     * MatrixFactory.load on the I/O executor, dense or sparse by density
+     */
+    public static CompletableFuture<Matrix> load_async(String file_name)
+    {
+        return io_async(() -> MatrixFactory.load(file_name));
+    }
+
+    /**
+     * loads a text or binary file as a DenseMatrix on the I/O executor
+     */
+    public static CompletableFuture<DenseMatrix> load_dense_async(String file_name)
+    {
+        return io_async(() -> DenseMatrix.read(file_name));
+    }
+
+    /**
+     * loads a text or binary file as a SparseMatrix on the I/O executor
+     */
+    public static CompletableFuture<SparseMatrix> load_sparse_async(String file_name)
+    {
+        return io_async(() -> SparseMatrix.read(file_name));
+    }
+
+    /**
+     * writes m as a BinaryMatrixFile on the I/O executor, sparse for a SparseMatrix and dense otherwise
+     * @return future completed with file_name once the file is closed
+     */
+    public static CompletableFuture<String> write_async(Matrix m, String file_name)
+    {
+        return io_async(() ->
+        {
+            write(m, file_name);
+            return file_name;
+        });
+    }
+
+    private static void write(Matrix m, String file_name) throws IOException
+    {
+        if(m instanceof NarrowMatrix)
+            m = ((NarrowMatrix) m).promote();
+        if(m instanceof DenseMatrix)
+        {
+            ((DenseMatrix) m).write_binary(file_name);
+            return;
+        }
+        if(m instanceof SparseMatrix)
+        {
+            ((SparseMatrix) m).write_binary(file_name);
+            return;
+        }
+        int cols = m.get_col_count();
+        double[] row = new double[cols];
+        int[] nonzero_cols = new int[cols];
+        double[] values = new double[cols];
+        try(BinaryMatrixFile.RowWriter writer = BinaryMatrixFile.open_dense(file_name, m.get_row_count(), cols))
+        {
+            for(int i = 0; i < m.get_row_count(); i++)
+            {
+                OffHeapDenseMatrix.copy_block(m, i, 0, 1, cols, row);
+                int count = 0;
+                for(int j = 0; j < cols; j++)
+                {
+                    if(row[j] != 0)
+                    {
+                        nonzero_cols[count] = j;
+                        values[count++] = row[j];
+                    }
+                }
+                writer.write_row(nonzero_cols, values, 0, count);
+            }
+        }
+    }
+
+    /**
+     * multiplies the operands once both are complete, on the compute executor
+     * @param parallel dmul instead of mul
+     */
+    public static CompletableFuture<Matrix> product_async(CompletionStage<? extends Matrix> a,
+                                                          CompletionStage<? extends Matrix> b, boolean parallel)
+    {
+        return a.thenCombineAsync(b, (x, y) -> parallel ? x.dmul(y) : x.mul(y), compute_executor)
+                .toCompletableFuture();
+    }
+}
@@ -0,0 +1,237 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streaming parser for matrix text files (one row per line, values separated by spaces,
+ * as written by MatrixGenerator). Numbers are parsed straight from the bytes, only the
+ * nonzeros are handed to the sink. A blank line or the end of file ends the matrix.
+ */
+final class MatrixLoader
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int EXACT_DIGITS = 15;    /* mantissas this short are exact doubles */
+    private static final int MAX_DIGITS = 18;      /* mantissas this short fit in a long */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * receives the parsed matrix row by row
+     */
+    interface Sink
+    {
+        /**
+         * nonzero value at (i,j), rows arrive in order and columns ascend within a row
+         */
+        void entry(int i, int j, double value);
+
+        /**
+         * row i is complete, every row has col_count values
+         */
+        void end_row(int i, int col_count);
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] bytes = buffer.array();
+    private int pos = 0;
+    private int limit = 0;
+    private char[] token = new char[32];   /* copy of the current token for the slow path */
+    private int last;                      /* character that ended the last number */
+
+    private MatrixLoader(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * parses file_name into sink
+     * @return number of rows read
+     */
+    static int load(String file_name, Sink sink) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(file_name), StandardOpenOption.READ))
+        {
+            return new MatrixLoader(channel).parse(sink);
+        }
+    }
+
+    private int read() throws IOException
+    {
+        if(pos == limit)
+        {
+            buffer.clear();
+            int n;
+            do
+            {
+                n = channel.read(buffer);
+            }
+            while(n == 0);
+            if(n < 0)
+                return -1;
+            pos = 0;
+            limit = n;
+        }
+        return bytes[pos++] & 0xFF;
+    }
+
+    private int parse(Sink sink) throws IOException
+    {
+        int row = 0;
+        int col = 0;
+        int col_count = -1;
+        int c = read();
+        while(true)
+        {
+            if(c == ' ' || c == '\t' || c == '\r')
+            {
+                c = read();
+                continue;
+            }
+            if(c == '\n' || c == -1)
+            {
+                if(col == 0)
+                    break; /* blank line or end of file */
+                if(col_count < 0)
+                    col_count = col;
+                else if(col != col_count)
+                    throw new IOException("Row " + row + " has " + col + " entries, expected " + col_count);
+                sink.end_row(row, col_count);
+                row++;
+                col = 0;
+                if(c == -1)
+                    break;
+                c = read();
+                continue;
+            }
+            if(col_count >= 0 && col >= col_count)
+                throw new IOException("Row " + row + " has more than " + col_count + " entries");
+            double value = parse_number(c);
+            if(value != 0.0)
+                sink.entry(row, col, value);
+            col++;
+            c = last;
+        }
+        return row;
+    }
+
+    private static boolean is_delimiter(int c)
+    {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == -1;
+    }
+
+    /**
+     * parses the number starting with c, the character after it is left in last
+     */
+    private double parse_number(int c) throws IOException
+    {
+        if(c == '0')
+        {
+            /* ~90% of our tokens */
+            int next = read();
+            if(is_delimiter(next))
+            {
+                last = next;
+                return 0.0;
+            }
+            token[0] = '0';
+            return parse_general(next, 1);
+        }
+        return parse_general(c, 0);
+    }
+
+    /**
+     * sign, digits, optional fraction and exponent. Integers and short decimals are converted
+     * exactly here, anything else (long mantissas, huge exponents, NaN...) goes to Double.parseDouble
+     * @param length characters of the token already consumed, only a leading '0' is possible
+     */
+    private double parse_general(int c, int length) throws IOException
+    {
+        boolean negative = false;
+        boolean fast = true;
+        boolean seen_digit = length > 0;
+        long mantissa = 0;
+        int digits = 0;          /* significant digits in mantissa */
+        int scale = 0;           /* power of ten the mantissa has to be multiplied by */
+        int exponent = 0;
+        boolean exponent_negative = false;
+        boolean seen_exponent_digit = false;
+        int state = 0;           /* 0 integer part, 1 fraction, 2 exponent */
+        if(length == 0 && (c == '-' || c == '+'))
+        {
+            negative = c == '-';
+            token[length++] = (char) c;
+            c = read();
+        }
+        for(; !is_delimiter(c); c = read())
+        {
+            if(length == token.length)
+                token = Arrays.copyOf(token, 2 * length);
+            token[length++] = (char) c;
+            if(c >= '0' && c <= '9')
+            {
+                int d = c - '0';
+                if(state == 2)
+                {
+                    exponent = Math.min(10 * exponent + d, 1000);
+                    seen_exponent_digit = true;
+                    continue;
+                }
+                seen_digit = true;
+                if(mantissa == 0 && d == 0)
+                {
+                    if(state == 1)
+                        scale--; /* leading zeros of the fraction */
+                }
+                else if(digits < MAX_DIGITS)
+                {
+                    mantissa = 10 * mantissa + d;
+                    digits++;
+                    if(state == 1)
+                        scale--;
+                }
+                else
+                    fast = false;
+            }
+            else if(c == '.' && state == 0)
+                state = 1;
+            else if((c == 'e' || c == 'E') && state < 2 && seen_digit)
+                state = 2;
+            else if((c == '-' || c == '+') && state == 2 && !seen_exponent_digit
+                    && (token[length - 2] == 'e' || token[length - 2] == 'E'))
+                exponent_negative = c == '-';
+            else
+                fast = false;
+        }
+        last = c;
+        if(fast && seen_digit && (state < 2 || seen_exponent_digit))
+        {
+            int power = scale + (exponent_negative ? -exponent : exponent);
+            if(mantissa == 0)
+                return negative ? -0.0 : 0.0;
+            double value = Double.NaN;
+            if(power == 0)
+                value = mantissa; /* up to MAX_DIGITS digits, the conversion rounds once */
+            else if(digits <= EXACT_DIGITS && power > 0 && power < POWERS_OF_TEN.length)
+                value = mantissa * POWERS_OF_TEN[power];
+            else if(digits <= EXACT_DIGITS && power < 0 && -power < POWERS_OF_TEN.length)
+                value = mantissa / POWERS_OF_TEN[-power];
+            if(!Double.isNaN(value))
+                return negative ? -value : value;
+        }
+        try
+        {
+            return Double.parseDouble(new String(token, 0, length));
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IOException("Malformed number '" + new String(token, 0, length) + "'", e);
+        }
+    }
+}
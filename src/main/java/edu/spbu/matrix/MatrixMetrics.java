@@ -0,0 +1,446 @@
+package edu.spbu.matrix;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * instrumentation of mul/dmul and the matrix-vector products.
+ *
+ * Disabled (the default) an operation pays one volatile read. Enabled, every operation is timed,
+ * described by an OperationRecord, added to the per-kernel totals exposed over JMX and passed to
+ * the listeners on the thread that ran it. Set -Dedu.spbu.matrix.metrics=true to start enabled.
+ *
+ * While an operation runs, its Usage is attached to the calling thread and, through
+ * ParallelEngine, to every worker running a part of it: the parts are counted there and the
+ * kernels add the temporaries they allocate with scratch().
+ */
+public final class MatrixMetrics
+{
+    static final String ENABLED_PROPERTY = "edu.spbu.matrix.metrics";
+    static final String OBJECT_NAME = "edu.spbu.matrix:type=MatrixMetrics";
+
+    /**
+     * receives every record while metrics are enabled, it must be quick and thread-safe
+     */
+    public interface Listener
+    {
+        void operation(OperationRecord record);
+    }
+
+    /**
+     * the product or matrix-vector product being recorded
+     */
+    interface Operation<T, E extends Exception>
+    {
+        T run() throws E;
+    }
+
+    /**
+     * what one operation used: the parts ParallelEngine ran, the threads they ran on and the scratch bytes
+     */
+    private static final class Usage
+    {
+        private final LongAdder partitions = new LongAdder();
+        private final LongAdder scratch = new LongAdder();
+        private final Set<Long> threads = ConcurrentHashMap.newKeySet();
+
+        void add(Usage inner)
+        {
+            partitions.add(inner.partitions.sum());
+            scratch.add(inner.scratch.sum());
+            threads.addAll(inner.threads);
+        }
+    }
+
+    private static volatile boolean enabled = false;
+    private static volatile boolean registered = false;
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private static final Totals totals = new Totals();
+    private static final ThreadLocal<Usage> usage = new ThreadLocal<>();
+
+    static
+    {
+        if(Boolean.getBoolean(ENABLED_PROPERTY))
+            set_enabled(true);
+    }
+
+    private MatrixMetrics()
+    {
+    }
+
+    public static boolean is_enabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * turning metrics on registers the MXBean if it is not registered yet
+     */
+    public static void set_enabled(boolean value)
+    {
+        if(value)
+            register_mbean();
+        enabled = value;
+    }
+
+    public static void add_listener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public static void remove_listener(Listener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the bean behind the JMX totals
+     */
+    public static MatrixMetricsMXBean totals()
+    {
+        return totals;
+    }
+
+    /**
+     * registers the totals with the platform MBean server as edu.spbu.matrix:type=MatrixMetrics, once
+     */
+    public static synchronized void register_mbean()
+    {
+        if(registered)
+            return;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(totals, new ObjectName(OBJECT_NAME));
+        }
+        catch(InstanceAlreadyExistsException e)
+        {
+            /* registered by another copy of this class, its totals stay visible */
+        }
+        catch(JMException e)
+        {
+            throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+        }
+        registered = true;
+    }
+
+    /**
+     * runs and records a matrix product, nested products are added to the usage of this one
+     */
+    static <E extends Exception> Matrix product(String operation, Matrix a, Matrix b,
+                                                Operation<Matrix, E> product) throws E
+    {
+        Usage used = new Usage();
+        long start = System.nanoTime();
+        Matrix result = run(used, product);
+        long nanos = System.nanoTime() - start;
+        int m = a.get_row_count();
+        int n = a.get_col_count();
+        int p = b.get_col_count();
+        boolean strassen = a instanceof DenseMatrix && !((DenseMatrix) a).is_column_major()
+                           && b instanceof DenseMatrix && !((DenseMatrix) b).is_column_major()
+                           && StrassenKernel.applies(m, n, p);
+        String kernel = strassen ? "strassen" : kind(a) + "*" + kind(b) + "->" + kind(result);
+        record(new OperationRecord(operation, kernel, m, n, stored(a), b.get_row_count(), p, stored(b),
+                                   2 * multiply_adds(a, b), nanos, threads(used), partitions(used),
+                                   storage_bytes(result), used.scratch.sum()));
+        return result;
+    }
+
+    /**
+     * runs and records a product of a with k vectors, written into arrays of the caller
+     */
+    static void vectors(String operation, Matrix a, int k, Runnable product)
+    {
+        Usage used = new Usage();
+        long start = System.nanoTime();
+        run(used, () ->
+        {
+            product.run();
+            return null;
+        });
+        long nanos = System.nanoTime() - start;
+        long nnz = stored(a);
+        record(new OperationRecord(operation, kind(a) + "*vectors", a.get_row_count(), a.get_col_count(), nnz,
+                                   a.get_col_count(), k, (long) a.get_col_count() * k, 2 * nnz * k, nanos,
+                                   threads(used), partitions(used), 0, used.scratch.sum()));
+    }
+
+    private static <T, E extends Exception> T run(Usage used, Operation<T, E> operation) throws E
+    {
+        Usage outer = usage.get();
+        usage.set(used);
+        try
+        {
+            return operation.run();
+        }
+        finally
+        {
+            if(outer == null)
+                usage.remove();
+            else
+            {
+                usage.set(outer);
+                outer.add(used);
+            }
+        }
+    }
+
+    /* an operation ParallelEngine never split ran whole on the calling thread */
+    private static int threads(Usage used)
+    {
+        return Math.max(used.threads.size(), 1);
+    }
+
+    private static long partitions(Usage used)
+    {
+        return Math.max(used.partitions.sum(), 1);
+    }
+
+    /**
+     * @return kernel counting every call as a part of the operation recorded on this thread, with that
+     *         operation attached to the thread running the part; kernel itself if none is recorded
+     */
+    static ParallelEngine.BlockKernel counted(ParallelEngine.BlockKernel kernel)
+    {
+        Usage used = enabled ? usage.get() : null;
+        if(used == null)
+            return kernel;
+        return (row_from, row_to, col_from, col_to) -> run_part(used, () ->
+        {
+            kernel.compute(row_from, row_to, col_from, col_to);
+            return null;
+        });
+    }
+
+    /**
+     * same for a part submitted to an executor of its own
+     */
+    static <T> Callable<T> counted(Callable<T> part)
+    {
+        Usage used = enabled ? usage.get() : null;
+        if(used == null)
+            return part;
+        return () -> run_part(used, part::call);
+    }
+
+    private static <T, E extends Exception> T run_part(Usage used, Operation<T, E> part) throws E
+    {
+        used.partitions.increment();
+        used.threads.add(Thread.currentThread().getId());
+        Usage outer = usage.get();
+        usage.set(used);
+        try
+        {
+            return part.run();
+        }
+        finally
+        {
+            if(outer == null)
+                usage.remove();
+            else
+                usage.set(outer);
+        }
+    }
+
+    /**
+     * adds bytes of temporaries to the operation recorded on this thread, if any
+     */
+    static void scratch(long bytes)
+    {
+        if(!enabled)
+            return;
+        Usage used = usage.get();
+        if(used != null)
+            used.scratch.add(bytes);
+    }
+
+    private static void record(OperationRecord record)
+    {
+        totals.add(record);
+        for(Listener listener : listeners)
+        {
+            try
+            {
+                listener.operation(record);
+            }
+            catch(RuntimeException e)
+            {
+                /* a broken listener must not fail the multiplication, it is only counted */
+                totals.listener_failures.increment();
+            }
+        }
+    }
+
+    private static String kind(Matrix m)
+    {
+        if(m instanceof DenseMatrix)
+            return ((DenseMatrix) m).is_column_major() ? "dense_t" : "dense";
+        if(m instanceof SparseMatrix)
+            return ((SparseMatrix) m).is_column_compressed() ? "csc" : "csr";
+        if(m instanceof OffHeapDenseMatrix)
+            return "off_heap";
+        if(m instanceof NarrowMatrix)
+            return ((NarrowMatrix) m).kind();
+        return "matrix";
+    }
+
+    /**
+     * @return nonzeros of a sparse matrix, every entry of anything else
+     */
+    private static long stored(Matrix m)
+    {
+        if(m instanceof SparseMatrix)
+            return ((SparseMatrix) m).get_nnz();
+        if(m instanceof NarrowMatrix)
+            return ((NarrowMatrix) m).stored_count();
+        return (long) m.get_row_count() * m.get_col_count();
+    }
+
+    private static boolean is_sparse(Matrix m)
+    {
+        return m instanceof SparseMatrix || m instanceof NarrowMatrix && ((NarrowMatrix) m).is_sparse();
+    }
+
+    /**
+     * multiply-adds the kernels perform: every nonzero of a sparse left operand meets a row of
+     * the right one, every column of a dense left operand meets the nonzeros of a sparse right one
+     */
+    private static long multiply_adds(Matrix a, Matrix b)
+    {
+        if(a instanceof SparseMatrix && b instanceof SparseMatrix)
+        {
+            int[] a_idx = ((SparseMatrix) a).raw_col_idx();
+            int[] b_ptr = ((SparseMatrix) b).raw_row_ptr();
+            long count = 0;
+            for(int q = 0; q < ((SparseMatrix) a).get_nnz(); q++)
+                count += b_ptr[a_idx[q] + 1] - b_ptr[a_idx[q]];
+            return count;
+        }
+        if(a instanceof NarrowSparseMatrix && b instanceof NarrowSparseMatrix)
+        {
+            int[] a_idx = ((NarrowSparseMatrix) a).col_idx;
+            int[] b_ptr = ((NarrowSparseMatrix) b).row_ptr;
+            long count = 0;
+            for(int q = 0; q < ((NarrowSparseMatrix) a).get_nnz(); q++)
+                count += b_ptr[a_idx[q] + 1] - b_ptr[a_idx[q]];
+            return count;
+        }
+        if(is_sparse(a))
+            return stored(a) * b.get_col_count();
+        if(is_sparse(b))
+            return a.get_row_count() * stored(b);
+        return (long) a.get_row_count() * a.get_col_count() * b.get_col_count();
+    }
+
+    /**
+     * storage estimate: 8 bytes per dense entry, 12 per nonzero plus the row pointers,
+     * less for the narrow types
+     */
+    static long storage_bytes(Matrix m)
+    {
+        if(m instanceof NarrowMatrix)
+        {
+            NarrowMatrix n = (NarrowMatrix) m;
+            int width = n.element_type() == NarrowMatrix.LONG ? 8 : 4;
+            if(n.is_sparse())
+                return 4L * (n.row_count + 1) + (4L + width) * n.stored_count();
+            return width * n.stored_count();
+        }
+        if(m instanceof SparseMatrix)
+            return 4L * (Math.max(m.get_row_count(), m.get_col_count()) + 1) + 12L * ((SparseMatrix) m).get_nnz();
+        return 8L * m.get_row_count() * m.get_col_count();
+    }
+
+    /**
+     * running totals, overall and per kernel
+     */
+    private static final class Totals implements MatrixMetricsMXBean
+    {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder flops = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder listener_failures = new LongAdder();
+        private final Map<String, LongAdder[]> kernels = new ConcurrentHashMap<>();   /* count, nanos, flops */
+
+        void add(OperationRecord record)
+        {
+            count.increment();
+            flops.add(record.get_flops());
+            nanos.add(record.get_nanos());
+            bytes.add(record.get_bytes_allocated());
+            LongAdder[] kernel = kernels.computeIfAbsent(record.get_kernel(),
+                                                         k -> new LongAdder[]{new LongAdder(), new LongAdder(), new LongAdder()});
+            kernel[0].increment();
+            kernel[1].add(record.get_nanos());
+            kernel[2].add(record.get_flops());
+        }
+
+        @Override public boolean isEnabled()
+        {
+            return is_enabled();
+        }
+        @Override public void setEnabled(boolean value)
+        {
+            set_enabled(value);
+        }
+        @Override public long getOperationCount()
+        {
+            return count.sum();
+        }
+        @Override public long getTotalFlops()
+        {
+            return flops.sum();
+        }
+        @Override public long getTotalNanos()
+        {
+            return nanos.sum();
+        }
+        @Override public long getBytesAllocated()
+        {
+            return bytes.sum();
+        }
+        @Override public long getListenerFailures()
+        {
+            return listener_failures.sum();
+        }
+        @Override public Map<String, Long> getOperationsByKernel()
+        {
+            return by_kernel(0);
+        }
+        @Override public Map<String, Long> getNanosByKernel()
+        {
+            return by_kernel(1);
+        }
+        @Override public Map<String, Long> getFlopsByKernel()
+        {
+            return by_kernel(2);
+        }
+        private Map<String, Long> by_kernel(int field)
+        {
+            Map<String, Long> result = new TreeMap<>();
+            for(Map.Entry<String, LongAdder[]> e : kernels.entrySet())
+                result.put(e.getKey(), e.getValue()[field].sum());
+            return result;
+        }
+        @Override public void reset()
+        {
+            count.reset();
+            flops.reset();
+            nanos.reset();
+            bytes.reset();
+            listener_failures.reset();
+            kernels.clear();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package edu.spbu.matrix;
+
+import java.util.Map;
+
+/**
+ * JMX view of MatrixMetrics, registered as edu.spbu.matrix:type=MatrixMetrics.
+ * Totals cover the operations recorded while metrics were enabled
+ */
+public interface MatrixMetricsMXBean
+{
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getOperationCount();
+
+    long getTotalFlops();
+
+    long getTotalNanos();
+
+    /**
+     * @return results plus temporaries, see OperationRecord.get_bytes_allocated
+     */
+    long getBytesAllocated();
+
+    /**
+     * @return records a listener threw on, the operations themselves went through
+     */
+    long getListenerFailures();
+
+    /**
+     * @return operation count per kernel, such as "csr*dense->dense" or "strassen"
+     */
+    Map<String, Long> getOperationsByKernel();
+
+    Map<String, Long> getNanosByKernel();
+
+    Map<String, Long> getFlopsByKernel();
+
+    /**
+     * zeroes every total
+     */
+    void reset();
+}
@@ -0,0 +1,159 @@
+package edu.spbu.matrix;
+
+/**
+ * DenseKernels for the narrow element types: the same blocking and four-row micro-kernel
+ * over flat row-major float, int and long arrays. Int operands are multiplied in long, so each
+ * product of two entries fits; the sums, like every long sum here, wrap around on overflow
+ * exactly as Java long arithmetic does and are not checked
+ */
+final class NarrowKernels
+{
+    private NarrowKernels()
+    {
+    }
+
+    /**
+     * c[row_from..row_to) x [col_from..col_to) += a * b, a is (any rows) x inner,
+     * b is inner x col_count, c is (any rows) x col_count
+     */
+    static void multiply(float[] a, float[] b, float[] c, int inner, int col_count,
+                         int row_from, int row_to, int col_from, int col_to)
+    {
+        for(int jj = col_from; jj < col_to; jj += DenseKernels.COL_BLOCK)
+        {
+            int j_end = Math.min(jj + DenseKernels.COL_BLOCK, col_to);
+            for(int kk = 0; kk < inner; kk += DenseKernels.DEPTH_BLOCK)
+            {
+                int k_end = Math.min(kk + DenseKernels.DEPTH_BLOCK, inner);
+                for(int i = row_from; i < row_to; i++)
+                    multiply_row(a, i * inner, b, col_count, c, i * col_count, kk, k_end, jj, j_end);
+            }
+        }
+    }
+
+    private static void multiply_row(float[] a, int a_row, float[] b, int ldb, float[] c, int c_row,
+                                     int k_from, int k_to, int j_from, int j_to)
+    {
+        int k = k_from;
+        for(; k + 3 < k_to; k += 4)
+        {
+            float x0 = a[a_row + k];
+            float x1 = a[a_row + k + 1];
+            float x2 = a[a_row + k + 2];
+            float x3 = a[a_row + k + 3];
+            if(x0 == 0 && x1 == 0 && x2 == 0 && x3 == 0)
+                continue;
+            int b0 = k * ldb;
+            int b1 = b0 + ldb;
+            int b2 = b1 + ldb;
+            int b3 = b2 + ldb;
+            for(int j = j_from; j < j_to; j++)
+                c[c_row + j] += x0 * b[b0 + j] + x1 * b[b1 + j] + x2 * b[b2 + j] + x3 * b[b3 + j];
+        }
+        for(; k < k_to; k++)
+        {
+            float x = a[a_row + k];
+            if(x == 0)
+                continue;
+            int b0 = k * ldb;
+            for(int j = j_from; j < j_to; j++)
+                c[c_row + j] += x * b[b0 + j];
+        }
+    }
+
+    /**
+     * long kernel, same loops as the float one; sums wrap around on overflow
+     */
+    static void multiply(long[] a, long[] b, long[] c, int inner, int col_count,
+                         int row_from, int row_to, int col_from, int col_to)
+    {
+        for(int jj = col_from; jj < col_to; jj += DenseKernels.COL_BLOCK)
+        {
+            int j_end = Math.min(jj + DenseKernels.COL_BLOCK, col_to);
+            for(int kk = 0; kk < inner; kk += DenseKernels.DEPTH_BLOCK)
+            {
+                int k_end = Math.min(kk + DenseKernels.DEPTH_BLOCK, inner);
+                for(int i = row_from; i < row_to; i++)
+                    multiply_row(a, i * inner, b, col_count, c, i * col_count, kk, k_end, jj, j_end);
+            }
+        }
+    }
+
+    private static void multiply_row(long[] a, int a_row, long[] b, int ldb, long[] c, int c_row,
+                                     int k_from, int k_to, int j_from, int j_to)
+    {
+        int k = k_from;
+        for(; k + 3 < k_to; k += 4)
+        {
+            long x0 = a[a_row + k];
+            long x1 = a[a_row + k + 1];
+            long x2 = a[a_row + k + 2];
+            long x3 = a[a_row + k + 3];
+            if(x0 == 0 && x1 == 0 && x2 == 0 && x3 == 0)
+                continue;
+            int b0 = k * ldb;
+            int b1 = b0 + ldb;
+            int b2 = b1 + ldb;
+            int b3 = b2 + ldb;
+            for(int j = j_from; j < j_to; j++)
+                c[c_row + j] += x0 * b[b0 + j] + x1 * b[b1 + j] + x2 * b[b2 + j] + x3 * b[b3 + j];
+        }
+        for(; k < k_to; k++)
+        {
+            long x = a[a_row + k];
+            if(x == 0)
+                continue;
+            int b0 = k * ldb;
+            for(int j = j_from; j < j_to; j++)
+                c[c_row + j] += x * b[b0 + j];
+        }
+    }
+
+    /**
+     * long kernel for int operands, widened to long as they are read
+     */
+    static void multiply(int[] a, int[] b, long[] c, int inner, int col_count,
+                         int row_from, int row_to, int col_from, int col_to)
+    {
+        for(int jj = col_from; jj < col_to; jj += DenseKernels.COL_BLOCK)
+        {
+            int j_end = Math.min(jj + DenseKernels.COL_BLOCK, col_to);
+            for(int kk = 0; kk < inner; kk += DenseKernels.DEPTH_BLOCK)
+            {
+                int k_end = Math.min(kk + DenseKernels.DEPTH_BLOCK, inner);
+                for(int i = row_from; i < row_to; i++)
+                    multiply_row(a, i * inner, b, col_count, c, i * col_count, kk, k_end, jj, j_end);
+            }
+        }
+    }
+
+    private static void multiply_row(int[] a, int a_row, int[] b, int ldb, long[] c, int c_row,
+                                     int k_from, int k_to, int j_from, int j_to)
+    {
+        int k = k_from;
+        for(; k + 3 < k_to; k += 4)
+        {
+            long x0 = a[a_row + k];
+            long x1 = a[a_row + k + 1];
+            long x2 = a[a_row + k + 2];
+            long x3 = a[a_row + k + 3];
+            if(x0 == 0 && x1 == 0 && x2 == 0 && x3 == 0)
+                continue;
+            int b0 = k * ldb;
+            int b1 = b0 + ldb;
+            int b2 = b1 + ldb;
+            int b3 = b2 + ldb;
+            for(int j = j_from; j < j_to; j++)
+                c[c_row + j] += x0 * b[b0 + j] + x1 * b[b1 + j] + x2 * b[b2 + j] + x3 * b[b3 + j];
+        }
+        for(; k < k_to; k++)
+        {
+            long x = a[a_row + k];
+            if(x == 0)
+                continue;
+            int b0 = k * ldb;
+            for(int j = j_from; j < j_to; j++)
+                c[c_row + j] += x * b[b0 + j];
+        }
+    }
+}
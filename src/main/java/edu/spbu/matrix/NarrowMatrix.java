@@ -0,0 +1,449 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Base of the narrow-precision matrices: FloatDenseMatrix, IntDenseMatrix, LongDenseMatrix
+ * and the FloatSparseMatrix, IntSparseMatrix, LongSparseMatrix CSR counterparts.
+ *
+ * Products of two narrow matrices stay narrow and are accumulated in the result type:
+ * integers multiply into long matrices, anything with a float operand into float ones.
+ * Two sparse operands give a sparse product, anything else a dense one. A double operand
+ * promotes the narrow one to DenseMatrix or SparseMatrix and the double kernels take over.
+ */
+abstract class NarrowMatrix implements Matrix
+{
+    static final int INT = 0;
+    static final int LONG = 1;
+    static final int FLOAT = 2;
+    private static final String[] TYPE_NAMES = {"int", "long", "float"};
+
+    final int row_count;
+    final int col_count;
+
+    NarrowMatrix(int row_count, int col_count)
+    {
+        if(row_count < 0 || col_count < 0)
+            throw new IllegalArgumentException("Negative matrix size " + row_count + "*" + col_count);
+        this.row_count = row_count;
+        this.col_count = col_count;
+    }
+
+    @Override public int get_row_count()
+    {
+        return row_count;
+    }
+    @Override public int get_col_count()
+    {
+        return col_count;
+    }
+
+    /**
+     * @return INT, LONG or FLOAT
+     */
+    abstract int element_type();
+
+    abstract boolean is_sparse();
+
+    /**
+     * @return every entry of a dense matrix, the nonzeros of a sparse one
+     */
+    abstract long stored_count();
+
+    /**
+     * @return a DenseMatrix or SparseMatrix copy with the same entries
+     */
+    abstract Matrix promote();
+
+    /**
+     * copies the nonzeros of row i into idx and values, in ascending column order
+     * @return their count
+     */
+    abstract int gather_row(int i, int[] idx, float[] values);
+
+    /**
+     * gather_row for an integral matrix
+     */
+    int gather_row(int i, int[] idx, long[] values)
+    {
+        throw new IllegalStateException(kind() + " entries are not integral");
+    }
+
+    /**
+     * acc[acc_off + j] += a * (k, j) for every column j of row k in [from, to)
+     */
+    abstract void axpy_row(int k, float a, float[] acc, int acc_off, int from, int to);
+
+    /**
+     * axpy_row for an integral matrix
+     */
+    void axpy_row(int k, long a, long[] acc, int acc_off, int from, int to)
+    {
+        throw new IllegalStateException(kind() + " entries are not integral");
+    }
+
+    /**
+     * rows row_from..row_to of y = A x for k vectors laid out as in mul_vectors
+     */
+    abstract void vectors_kernel(double[] x, double[] y, int k, int row_from, int row_to);
+
+    /**
+     * @return element type and storage, "float_dense" or "int_csr" style
+     */
+    String kind()
+    {
+        return TYPE_NAMES[element_type()] + (is_sparse() ? "_csr" : "_dense");
+    }
+
+    /**
+     * single-threaded multiplication
+     * @param o the other matrix
+     * @return the product
+     */
+    @Override public Matrix mul(Matrix o)
+    {
+        if(!MatrixMetrics.is_enabled())
+            return multiply(o, false);
+        return MatrixMetrics.product("mul", this, o, () -> multiply(o, false));
+    }
+
+    /**
+     * multi-threaded multiplication
+     * @param o the other matrix
+     * @return the product
+     */
+    @Override public Matrix dmul(Matrix o)
+    {
+        if(!MatrixMetrics.is_enabled())
+            return multiply(o, true);
+        return MatrixMetrics.product("dmul", this, o, () -> multiply(o, true));
+    }
+
+    /**
+     * y = A x, x[c*k + v] is entry c of vector v, y is laid out alike and overwritten
+     */
+    @Override public double[] mul_vectors(double[] x, double[] y, int k)
+    {
+        vectors_check(x, y, k);
+        if(!MatrixMetrics.is_enabled())
+            vectors_kernel(x, y, k, 0, row_count);
+        else
+            MatrixMetrics.vectors("mul_vectors", this, k, () -> vectors_kernel(x, y, k, 0, row_count));
+        return y;
+    }
+
+    /**
+     * parallel mul_vectors, rows of y are split between the workers
+     */
+    @Override public double[] dmul_vectors(double[] x, double[] y, int k)
+    {
+        vectors_check(x, y, k);
+        if(!MatrixMetrics.is_enabled())
+            parallel_vectors(x, y, k);
+        else
+            MatrixMetrics.vectors("dmul_vectors", this, k, () -> parallel_vectors(x, y, k));
+        return y;
+    }
+
+    private void parallel_vectors(double[] x, double[] y, int k)
+    {
+        ParallelEngine.run(row_count, 1, DenseKernels.ROW_BLOCK, 1,
+                           (row_from, row_to, col_from, col_to) -> vectors_kernel(x, y, k, row_from, row_to));
+    }
+
+    private void vectors_check(double[] x, double[] y, int k)
+    {
+        if(k < 1 || x.length < col_count * k || y.length < row_count * k)
+        {
+            throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by " + k
+                                               + " vectors in arrays of length " + x.length + " and " + y.length);
+        }
+    }
+
+    private Matrix multiply(Matrix o, boolean parallel)
+    {
+        if(!(o instanceof NarrowMatrix))
+        {
+            Matrix a = promote();
+            MatrixMetrics.scratch(MatrixMetrics.storage_bytes(a));
+            return a instanceof DenseMatrix ? ((DenseMatrix) a).multiply(o, null, parallel)
+                                            : ((SparseMatrix) a).multiply(o, null, parallel);
+        }
+        NarrowMatrix b = (NarrowMatrix) o;
+        if(col_count != b.row_count)
+        {
+            throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
+                                               + b.row_count + "*" + b.col_count + "matrix");
+        }
+        boolean integral = element_type() != FLOAT && b.element_type() != FLOAT;
+        if(is_sparse() && b.is_sparse())
+            return sparse_product((NarrowSparseMatrix) b, integral, parallel);
+        if(!is_sparse() && !b.is_sparse())
+            return blocked_product(b, integral, parallel);
+        return dense_product(b, integral, parallel);
+    }
+
+    /**
+     * two dense operands: the narrower one is widened to the type of the other, int only meets int,
+     * and NarrowKernels multiplies them in that type
+     */
+    private Matrix blocked_product(NarrowMatrix b, boolean integral, boolean parallel)
+    {
+        int type = !integral ? FLOAT : element_type() == INT && b.element_type() == INT ? INT : LONG;
+        NarrowMatrix a = widen(this, type);
+        NarrowMatrix b1 = widen(b, type);
+        int cols = b.col_count;
+        long[] c_long = integral ? new long[dense_size(row_count, cols)] : null;
+        float[] c_float = integral ? null : new float[dense_size(row_count, cols)];
+        ParallelEngine.BlockKernel kernel = (row_from, row_to, col_from, col_to) ->
+        {
+            if(type == FLOAT)
+                NarrowKernels.multiply(((FloatDenseMatrix) a).raw_entries(), ((FloatDenseMatrix) b1).raw_entries(), c_float,
+                                       col_count, cols, row_from, row_to, col_from, col_to);
+            else if(type == INT)
+                NarrowKernels.multiply(((IntDenseMatrix) a).raw_entries(), ((IntDenseMatrix) b1).raw_entries(), c_long,
+                                       col_count, cols, row_from, row_to, col_from, col_to);
+            else
+                NarrowKernels.multiply(((LongDenseMatrix) a).raw_entries(), ((LongDenseMatrix) b1).raw_entries(), c_long,
+                                       col_count, cols, row_from, row_to, col_from, col_to);
+        };
+        if(!parallel)
+            kernel.compute(0, row_count, 0, cols);
+        else
+            ParallelEngine.run(row_count, cols, DenseKernels.ROW_BLOCK / 8, DenseKernels.COL_BLOCK, kernel);
+        return integral ? new LongDenseMatrix(row_count, cols, c_long) : new FloatDenseMatrix(row_count, cols, c_float);
+    }
+
+    private static NarrowMatrix widen(NarrowMatrix m, int type)
+    {
+        if(m.element_type() == type)
+            return m;
+        NarrowMatrix copy = type == FLOAT ? FloatDenseMatrix.of(m) : LongDenseMatrix.of(m);
+        MatrixMetrics.scratch(MatrixMetrics.storage_bytes(copy));
+        return copy;
+    }
+
+    /**
+     * a sparse operand on either side, the product is dense:
+     * row by row, each nonzero (i,k) of this adds a slice of row k of b to row i of the product.
+     * Dense rows of b are taken COL_BLOCK columns at a time so the slice of the product stays in L1
+     */
+    private Matrix dense_product(NarrowMatrix b, boolean integral, boolean parallel)
+    {
+        int cols = b.col_count;
+        long[] c_long = integral ? new long[dense_size(row_count, cols)] : null;
+        float[] c_float = integral ? null : new float[dense_size(row_count, cols)];
+        ParallelEngine.BlockKernel kernel = (row_from, row_to, col_from, col_to) ->
+        {
+            int[] idx = new int[col_count];
+            long[] a_long = integral ? new long[col_count] : null;
+            float[] a_float = integral ? null : new float[col_count];
+            MatrixMetrics.scratch((integral ? 12L : 8L) * col_count);
+            for(int from = col_from; from < col_to; )
+            {
+                /* a sparse row of b is scanned whole, slicing it would only repeat the scan */
+                int to = b.is_sparse() ? col_to : Math.min(col_to, from + DenseKernels.COL_BLOCK);
+                for(int i = row_from; i < row_to; i++)
+                {
+                    if(integral)
+                    {
+                        int n = gather_row(i, idx, a_long);
+                        for(int q = 0; q < n; q++)
+                            b.axpy_row(idx[q], a_long[q], c_long, i * cols, from, to);
+                    }
+                    else
+                    {
+                        int n = gather_row(i, idx, a_float);
+                        for(int q = 0; q < n; q++)
+                            b.axpy_row(idx[q], a_float[q], c_float, i * cols, from, to);
+                    }
+                }
+                from = to;
+            }
+        };
+        if(!parallel)
+            kernel.compute(0, row_count, 0, cols);
+        else
+            ParallelEngine.run(row_count, cols, DenseKernels.ROW_BLOCK / 8,
+                               b.is_sparse() ? cols : DenseKernels.COL_BLOCK, kernel);
+        return integral ? new LongDenseMatrix(row_count, cols, c_long) : new FloatDenseMatrix(row_count, cols, c_float);
+    }
+
+    /**
+     * Gustavson: every row of the product is accumulated densely, the columns it touched are
+     * marked and collected in order, by walking the marker when the row is dense enough. Each range of rows fills a builder of its own,
+     * the builders are concatenated at the end
+     */
+    private Matrix sparse_product(NarrowSparseMatrix b, boolean integral, boolean parallel)
+    {
+        NarrowSparseMatrix a = (NarrowSparseMatrix) this;
+        int cols = b.col_count;
+        int[] bounds = new int[]{0, row_count};
+        if(parallel)
+        {
+            long[] prefix = new long[row_count + 1];
+            MatrixMetrics.scratch(8L * prefix.length);
+            for(int i = 0; i < row_count; i++)
+            {
+                long work = 1;
+                for(int p = a.row_ptr[i]; p < a.row_ptr[i + 1]; p++)
+                    work += b.row_ptr[a.col_idx[p] + 1] - b.row_ptr[a.col_idx[p]];
+                prefix[i + 1] = prefix[i] + work;
+            }
+            bounds = ParallelEngine.balanced_bounds(prefix, ParallelEngine.partition_count());
+        }
+        int[] range_bounds = bounds;
+        NarrowSparseMatrix.Builder[] parts = new NarrowSparseMatrix.Builder[bounds.length - 1];
+        ParallelEngine.run_ranges(bounds, 1, (row_from, row_to, col_from, col_to) ->
+        {
+            NarrowSparseMatrix.Builder part = new NarrowSparseMatrix.Builder(integral ? LONG : FLOAT, row_to - row_from, 16);
+            int[] idx = new int[col_count];
+            long[] a_long = integral ? new long[col_count] : null;
+            float[] a_float = integral ? null : new float[col_count];
+            long[] acc_long = integral ? new long[cols] : null;
+            float[] acc_float = integral ? null : new float[cols];
+            int[] marker = new int[cols];
+            int[] touched = new int[cols];
+            MatrixMetrics.scratch((integral ? 12L : 8L) * col_count + (integral ? 16L : 12L) * cols);
+            Arrays.fill(marker, -1);
+            for(int i = row_from; i < row_to; i++)
+            {
+                int n = integral ? gather_row(i, idx, a_long) : gather_row(i, idx, a_float);
+                int t = 0;
+                for(int q = 0; q < n; q++)
+                {
+                    if(integral)
+                        t = b.scatter_row(idx[q], a_long[q], acc_long, marker, i, touched, t);
+                    else
+                        t = b.scatter_row(idx[q], a_float[q], acc_float, marker, i, touched, t);
+                }
+                if(8 * t > cols)
+                {
+                    t = 0;
+                    for(int j = 0; j < cols; j++)
+                        if(marker[j] == i)
+                            touched[t++] = j;
+                }
+                else
+                    Arrays.sort(touched, 0, t);
+                for(int x = 0; x < t; x++)
+                {
+                    if(integral)
+                        part.add(touched[x], acc_long[touched[x]]);
+                    else
+                        part.add(touched[x], acc_float[touched[x]]);
+                }
+                part.end_row();
+            }
+            parts[Arrays.binarySearch(range_bounds, row_from)] = part;
+        });
+        for(int x = 1; x < parts.length; x++)
+            parts[0].append(parts[x]);
+        return parts[0].build(row_count, cols);
+    }
+
+    /**
+     * compares entry by entry, matrices of any type with the same entries are equal
+     */
+    @Override public boolean equals(Object o)
+    {
+        if(!(o instanceof Matrix))
+            return false;
+        Matrix o1 = (Matrix) o;
+        if(row_count != o1.get_row_count() || col_count != o1.get_col_count())
+            return false;
+        for(int i = 0; i < row_count; i++)
+            for(int j = 0; j < col_count; j++)
+                if(get_entry(i, j) != o1.get_entry(i, j))
+                    return false;
+        return true;
+    }
+
+    /**
+     * reads a text or BinaryMatrixFile matrix as CSR of the given element type.
+     * Integral types reject entries that are not whole numbers
+     */
+    static NarrowSparseMatrix.Builder load(String file_name, int type) throws IOException
+    {
+        if(BinaryMatrixFile.is_binary(file_name))
+        {
+            SparseMatrix m = BinaryMatrixFile.read_sparse(file_name);
+            NarrowSparseMatrix.Builder builder = new NarrowSparseMatrix.Builder(type, m.get_row_count(), m.get_nnz());
+            builder.add_all(m);
+            return builder;
+        }
+        NarrowSparseMatrix.Builder builder = new NarrowSparseMatrix.Builder(type, 16, 16);
+        MatrixLoader.load(file_name, builder);
+        return builder;
+    }
+
+    /**
+     * @return r*c, the length of a dense array of r rows and c columns
+     */
+    static int dense_size(int r, int c)
+    {
+        if(r < 0 || c < 0)
+            throw new IllegalArgumentException("Negative matrix size " + r + "*" + c);
+        if((long) r * c > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException(r + "*" + c + " matrix does not fit in an array");
+        return r * c;
+    }
+
+    /**
+     * receives the nonzeros of a matrix from replay
+     */
+    interface EntryConsumer
+    {
+        void entry(int i, int j, double value);
+    }
+
+    /**
+     * hands every nonzero of m to consumer, row by row with columns ascending.
+     * Sparse matrices of either kind go through their CSR arrays, anything else through get_entry
+     */
+    static void replay(Matrix m, EntryConsumer consumer)
+    {
+        if(m instanceof SparseMatrix)
+        {
+            SparseMatrix s = (SparseMatrix) m;
+            int[] ptr = s.raw_row_ptr();
+            int[] idx = s.raw_col_idx();
+            double[] values = s.raw_values();
+            for(int i = 0; i < s.get_row_count(); i++)
+                for(int p = ptr[i]; p < ptr[i + 1]; p++)
+                    consumer.entry(i, idx[p], values[p]);
+        }
+        else if(m instanceof NarrowSparseMatrix)
+        {
+            NarrowSparseMatrix s = (NarrowSparseMatrix) m;
+            for(int i = 0; i < s.row_count; i++)
+                for(int p = s.row_ptr[i]; p < s.row_ptr[i + 1]; p++)
+                    consumer.entry(i, s.col_idx[p], s.value(p));
+        }
+        else
+        {
+            for(int i = 0; i < m.get_row_count(); i++)
+            {
+                for(int j = 0; j < m.get_col_count(); j++)
+                {
+                    double value = m.get_entry(i, j);
+                    if(value != 0)
+                        consumer.entry(i, j, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if value is not a whole number in the range of type
+     */
+    static long to_integral(double value, int type, int i, int j)
+    {
+        long v = (long) value;
+        if(v != value || (type == INT && (int) v != v))
+            throw new IllegalArgumentException("Entry (" + i + "," + j + ") = " + value + " is not a "
+                                               + TYPE_NAMES[type]);
+        return v;
+    }
+}
@@ -0,0 +1,237 @@
+package edu.spbu.matrix;
+
+import java.util.Arrays;
+
+/**
+ * CSR structure shared by FloatSparseMatrix, IntSparseMatrix and LongSparseMatrix,
+ * the subclasses only add the values array
+ */
+abstract class NarrowSparseMatrix extends NarrowMatrix
+{
+    final int[] row_ptr;   /* row i holds positions row_ptr[i]..row_ptr[i+1] */
+    final int[] col_idx;   /* column of every nonzero, ascending within a row */
+
+    NarrowSparseMatrix(int row_count, int col_count, int[] row_ptr, int[] col_idx)
+    {
+        super(row_count, col_count);
+        this.row_ptr = row_ptr;
+        this.col_idx = col_idx;
+    }
+
+    /**
+     * @return value at position p of the CSR arrays
+     */
+    abstract double value(int p);
+
+    /**
+     * Gustavson step for row i of a product: acc[j] += a * (k, j) for the nonzeros of row k.
+     * A column met for the first time in row i is marked with i, appended to touched and
+     * its accumulator overwritten instead
+     * @return the new count of touched columns
+     */
+    abstract int scatter_row(int k, float a, float[] acc, int[] marker, int i, int[] touched, int t);
+
+    /**
+     * scatter_row for an integral matrix
+     */
+    int scatter_row(int k, long a, long[] acc, int[] marker, int i, int[] touched, int t)
+    {
+        throw new IllegalStateException(kind() + " entries are not integral");
+    }
+
+    @Override public double get_entry(int i, int j)
+    {
+        int p = Arrays.binarySearch(col_idx, row_ptr[i], row_ptr[i + 1], j);
+        return p < 0 ? 0 : value(p);
+    }
+
+    public int get_nnz()
+    {
+        return row_ptr[row_count];
+    }
+
+    @Override boolean is_sparse()
+    {
+        return true;
+    }
+
+    @Override long stored_count()
+    {
+        return get_nnz();
+    }
+
+    @Override Matrix promote()
+    {
+        int nnz = get_nnz();
+        double[] values = new double[nnz];
+        for(int p = 0; p < nnz; p++)
+            values[p] = value(p);
+        return new SparseMatrix(row_count, col_count, row_ptr.clone(), Arrays.copyOf(col_idx, nnz), values);
+    }
+
+    /**
+     * appends nonzeros row by row into CSR arrays of one element type, for the loaders and the products
+     */
+    static final class Builder implements MatrixLoader.Sink
+    {
+        final int type;
+        private int row_count = 0;
+        private int col_count = 0;
+        private int nnz = 0;
+        private int[] row_ptr;
+        private int[] col_idx;
+        private long[] long_values;     /* INT and LONG */
+        private float[] float_values;   /* FLOAT */
+
+        Builder(int type, int expected_rows, int expected_nnz)
+        {
+            this.type = type;
+            row_ptr = new int[Math.max(expected_rows, 1) + 1];
+            col_idx = new int[Math.max(expected_nnz, 1)];
+            if(type == FLOAT)
+                float_values = new float[col_idx.length];
+            else
+                long_values = new long[col_idx.length];
+        }
+
+        private void grow(int capacity)
+        {
+            capacity = Math.max(capacity, 2 * col_idx.length);
+            col_idx = Arrays.copyOf(col_idx, capacity);
+            if(type == FLOAT)
+                float_values = Arrays.copyOf(float_values, capacity);
+            else
+                long_values = Arrays.copyOf(long_values, capacity);
+        }
+
+        /**
+         * appends a nonzero of an integral builder to the current row, columns must ascend
+         */
+        void add(int j, long value)
+        {
+            if(value == 0)
+                return;
+            if(nnz == col_idx.length)
+                grow(nnz + 1);
+            col_idx[nnz] = j;
+            long_values[nnz++] = value;
+        }
+
+        /**
+         * appends a nonzero of a float builder to the current row, columns must ascend
+         */
+        void add(int j, float value)
+        {
+            if(value == 0)
+                return;
+            if(nnz == col_idx.length)
+                grow(nnz + 1);
+            col_idx[nnz] = j;
+            float_values[nnz++] = value;
+        }
+
+        /**
+         * closes the current row, the next add goes to the following row
+         */
+        void end_row()
+        {
+            if(row_count + 2 > row_ptr.length)
+                row_ptr = Arrays.copyOf(row_ptr, 2 * row_ptr.length);
+            row_count++;
+            row_ptr[row_count] = nnz;
+        }
+
+        @Override public void entry(int i, int j, double value)
+        {
+            if(type == FLOAT)
+                add(j, (float) value);
+            else
+                add(j, to_integral(value, type, i, j));
+        }
+
+        @Override public void end_row(int i, int col_count)
+        {
+            this.col_count = col_count;
+            end_row();
+        }
+
+        /**
+         * appends every row of m, converted to the element type
+         */
+        void add_all(Matrix m)
+        {
+            int first = row_count;
+            col_count = m.get_col_count();
+            replay(m, (i, j, value) ->
+            {
+                while(row_count < first + i)
+                    end_row();
+                entry(first + i, j, value);
+            });
+            while(row_count < first + m.get_row_count())
+                end_row();
+        }
+
+        /**
+         * appends every row of other after the rows of this builder
+         */
+        void append(Builder other)
+        {
+            int base = nnz;
+            for(int r = 1; r <= other.row_count; r++)
+            {
+                if(row_count + 2 > row_ptr.length)
+                    row_ptr = Arrays.copyOf(row_ptr, Math.max(2 * row_ptr.length, row_count + other.row_count + 1));
+                row_ptr[++row_count] = base + other.row_ptr[r];
+            }
+            if(col_idx.length < base + other.nnz)
+                grow(base + other.nnz);
+            System.arraycopy(other.col_idx, 0, col_idx, base, other.nnz);
+            if(type == FLOAT)
+                System.arraycopy(other.float_values, 0, float_values, base, other.nnz);
+            else
+                System.arraycopy(other.long_values, 0, long_values, base, other.nnz);
+            nnz += other.nnz;
+        }
+
+        int get_row_count()
+        {
+            return row_count;
+        }
+
+        int get_col_count()
+        {
+            return col_count;
+        }
+
+        /**
+         * @param rows row count of the matrix, rows never closed are empty
+         * @param cols column count of the matrix
+         * @return an IntSparseMatrix, LongSparseMatrix or FloatSparseMatrix by the builder type,
+         * the builder must not be used afterwards
+         */
+        NarrowSparseMatrix build(int rows, int cols)
+        {
+            int[] ptr = Arrays.copyOf(row_ptr, rows + 1);
+            for(int i = row_count + 1; i <= rows; i++)
+                ptr[i] = nnz;
+            int[] idx = Arrays.copyOf(col_idx, nnz);
+            if(type == FLOAT)
+                return new FloatSparseMatrix(rows, cols, ptr, idx, Arrays.copyOf(float_values, nnz));
+            if(type == LONG)
+                return new LongSparseMatrix(rows, cols, ptr, idx, Arrays.copyOf(long_values, nnz));
+            int[] values = new int[nnz];
+            for(int p = 0; p < nnz; p++)
+                values[p] = (int) long_values[p];
+            return new IntSparseMatrix(rows, cols, ptr, idx, values);
+        }
+
+        /**
+         * @return the matrix built so far, in the builder's own row and column counts
+         */
+        NarrowSparseMatrix build()
+        {
+            return build(row_count, col_count);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package edu.spbu.matrix;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Dense matrix stored outside the Java heap, either in direct buffers or in a memory-mapped
+ * BinaryMatrixFile, so operands far larger than the heap cost nothing to the GC.
+ *
+ * Rows are split into chunks of at most 1 GB, each chunk is one buffer, row-major inside.
+ * The memory is released by close(), after which every operation throws IllegalStateException;
+ * close() must not run concurrently with other operations on the same matrix.
+ * Direct buffers count against -XX:MaxDirectMemorySize, mapped files do not.
+ *
+ * Products involving an OffHeapDenseMatrix on either side are OffHeapDenseMatrix too, computed
+ * tile by tile through small on-heap panels.
+ */
+public final class OffHeapDenseMatrix implements Matrix, AutoCloseable
+{
+    static final int TILE_ROWS = 256;
+    static final int TILE_DEPTH = DenseKernels.DEPTH_BLOCK;
+    static final int TILE_COLS = 1024;
+    private static final long CHUNK_SIZE = 1L << 30;  /* bytes per buffer, a buffer is capped at 2 GB */
+
+    private final int row_count;
+    private final int col_count;
+    private final int chunk_rows;                /* rows per chunk, the last one may hold fewer */
+    private volatile DoubleBuffer[] chunks;      /* row chunks, null once closed */
+    private ByteBuffer[] buffers;                /* the buffers behind chunks, released by close */
+
+    /**
+     * allocates a zero-filled matrix in direct memory
+     * @param row_count row count
+     * @param col_count column count
+     */
+    public OffHeapDenseMatrix(int row_count, int col_count)
+    {
+        this(row_count, col_count, allocate(row_count, col_count));
+    }
+
+    private OffHeapDenseMatrix(int row_count, int col_count, ByteBuffer[] buffers)
+    {
+        this.row_count = row_count;
+        this.col_count = col_count;
+        this.chunk_rows = chunk_rows(col_count);
+        this.buffers = buffers;
+        DoubleBuffer[] chunks = new DoubleBuffer[buffers.length];
+        for(int c = 0; c < buffers.length; c++)
+            chunks[c] = buffers[c].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        this.chunks = chunks;
+    }
+
+    private static int chunk_rows(int col_count)
+    {
+        if(8L * col_count > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Row of " + col_count + " entries does not fit in a buffer");
+        return col_count == 0 ? Integer.MAX_VALUE : (int) Math.max(1, CHUNK_SIZE / (8L * col_count));
+    }
+
+    /**
+     * @return byte size of every chunk of a row_count x col_count matrix
+     */
+    private static long[] chunk_sizes(int row_count, int col_count)
+    {
+        int chunk_rows = chunk_rows(col_count);
+        long[] sizes = new long[row_count == 0 ? 0 : (row_count - 1) / chunk_rows + 1];
+        for(int c = 0; c < sizes.length; c++)
+            sizes[c] = 8L * Math.min(chunk_rows, row_count - c * chunk_rows) * col_count;
+        return sizes;
+    }
+
+    private static ByteBuffer[] allocate(int row_count, int col_count)
+    {
+        long[] sizes = chunk_sizes(row_count, col_count);
+        ByteBuffer[] buffers = new ByteBuffer[sizes.length];
+        try
+        {
+            for(int c = 0; c < sizes.length; c++)
+                buffers[c] = ByteBuffer.allocateDirect((int) sizes[c]);
+        }
+        catch(OutOfMemoryError e)
+        {
+            release_all(buffers); /* do not leave the chunks we did get to the GC, they may be huge */
+            throw e;
+        }
+        return buffers;
+    }
+
+    private static ByteBuffer[] map_chunks(FileChannel channel, int row_count, int col_count, boolean writable)
+            throws IOException
+    {
+        long[] sizes = chunk_sizes(row_count, col_count);
+        ByteBuffer[] buffers = new ByteBuffer[sizes.length];
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        long position = BinaryMatrixFile.HEADER_SIZE;
+        try
+        {
+            for(int c = 0; c < sizes.length; c++)
+            {
+                buffers[c] = channel.map(mode, position, sizes[c]);
+                position += sizes[c];
+            }
+        }
+        catch(IOException | RuntimeException e)
+        {
+            release_all(buffers);
+            throw e;
+        }
+        return buffers;
+    }
+
+    /**
+     * maps a dense BinaryMatrixFile without copying it, changes go straight to the file when writable
+     * @param file_name dense binary matrix file
+     * @param writable map read-write instead of read-only
+     */
+    public static OffHeapDenseMatrix map(String file_name, boolean writable) throws IOException
+    {
+        try(FileChannel channel = writable
+                ? FileChannel.open(Paths.get(file_name), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(Paths.get(file_name), StandardOpenOption.READ))
+        {
+            BinaryMatrixFile.Header header = BinaryMatrixFile.read_header(channel);
+            if(header.kind != BinaryMatrixFile.DENSE)
+                throw new IOException(file_name + " is not a dense binary matrix file");
+            return new OffHeapDenseMatrix(header.row_count, header.col_count,
+                                          map_chunks(channel, header.row_count, header.col_count, writable));
+        }
+    }
+
+    /**
+     * creates a zero-filled dense BinaryMatrixFile and maps it read-write
+     * @param file_name file to create, overwritten if it exists
+     */
+    public static OffHeapDenseMatrix create(String file_name, int row_count, int col_count) throws IOException
+    {
+        chunk_rows(col_count);
+        try(FileChannel channel = FileChannel.open(Paths.get(file_name), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            BinaryMatrixFile.write_header(channel, BinaryMatrixFile.DENSE, row_count, col_count, 0);
+            /* grows the file sparsely, the body reads back as zeros */
+            long end = BinaryMatrixFile.HEADER_SIZE + 8L * row_count * col_count;
+            if(end > BinaryMatrixFile.HEADER_SIZE)
+                channel.write(ByteBuffer.allocate(1), end - 1);
+            return new OffHeapDenseMatrix(row_count, col_count, map_chunks(channel, row_count, col_count, true));
+        }
+    }
+
+    /**
+     * copies any matrix into direct memory
+     */
+    public static OffHeapDenseMatrix copy_of(Matrix m)
+    {
+        OffHeapDenseMatrix result = new OffHeapDenseMatrix(m.get_row_count(), m.get_col_count());
+        int cols = result.col_count;
+        int panel_rows = Math.max(1, Math.min(TILE_ROWS, TILE_DEPTH * TILE_COLS / Math.max(cols, 1)));
+        double[] panel = new double[panel_rows * cols];
+        for(int i = 0; i < result.row_count; i += panel_rows)
+        {
+            int rows = Math.min(panel_rows, result.row_count - i);
+            copy_block(m, i, 0, rows, cols, panel);
+            result.put_block(i, 0, rows, cols, panel);
+        }
+        return result;
+    }
+
+    /**
+     * writes the matrix as a dense BinaryMatrixFile
+     */
+    public void write_binary(String file_name) throws IOException
+    {
+        ByteBuffer[] owned = buffers_snapshot();
+        try(FileChannel channel = FileChannel.open(Paths.get(file_name), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long position = BinaryMatrixFile.HEADER_SIZE;
+            for(ByteBuffer buffer : owned)
+            {
+                ByteBuffer bytes = buffer.duplicate();
+                bytes.clear();
+                while(bytes.hasRemaining())
+                    position += channel.write(bytes, position);
+            }
+            BinaryMatrixFile.write_header(channel, BinaryMatrixFile.DENSE, row_count, col_count, 0);
+        }
+    }
+
+    @Override public int get_row_count()
+    {
+        return row_count;
+    }
+    @Override public int get_col_count()
+    {
+        return col_count;
+    }
+    @Override public double get_entry(int i, int j)
+    {
+        check_index(i, j);
+        return open_chunks()[i / chunk_rows].get((i % chunk_rows) * col_count + j);
+    }
+    public void set_entry(int i, int j, double value)
+    {
+        check_index(i, j);
+        open_chunks()[i / chunk_rows].put((i % chunk_rows) * col_count + j, value);
+    }
+    public void add_to_entry(int i, int j, double value)
+    {
+        check_index(i, j);
+        DoubleBuffer chunk = open_chunks()[i / chunk_rows];
+        int index = (i % chunk_rows) * col_count + j;
+        chunk.put(index, chunk.get(index) + value);
+    }
+
+    /**
+     * @return true until close() is called
+     */
+    public boolean is_open()
+    {
+        return chunks != null;
+    }
+
+    /**
+     * releases the off-heap memory (or unmaps the file) right away instead of waiting for the GC
+     */
+    @Override public void close()
+    {
+        ByteBuffer[] owned;
+        synchronized(this)
+        {
+            if(chunks == null)
+                return;
+            chunks = null;
+            owned = buffers;
+            buffers = null;
+        }
+        release_all(owned);
+    }
+
+    private DoubleBuffer[] open_chunks()
+    {
+        DoubleBuffer[] current = chunks;
+        if(current == null)
+            throw new IllegalStateException("Off-heap matrix is closed");
+        return current;
+    }
+
+    private synchronized ByteBuffer[] buffers_snapshot()
+    {
+        if(buffers == null)
+            throw new IllegalStateException("Off-heap matrix is closed");
+        return buffers;
+    }
+
+    private void check_index(int i, int j)
+    {
+        /* a bad column would silently land in the next row of the chunk */
+        if(i < 0 || i >= row_count || j < 0 || j >= col_count)
+            throw new IndexOutOfBoundsException("(" + i + "," + j + ") outside " + row_count + "*" + col_count + " matrix");
+    }
+
+    /**
+     * copies rows x cols entries starting at (i0, j0) into dst, row-major with leading dimension cols
+     */
+    void get_block(int i0, int j0, int rows, int cols, double[] dst)
+    {
+        DoubleBuffer[] chunks = open_chunks();
+        for(int r = 0; r < rows; r++)
+        {
+            int i = i0 + r;
+            DoubleBuffer row = chunks[i / chunk_rows].duplicate();
+            row.position((i % chunk_rows) * col_count + j0);
+            row.get(dst, r * cols, cols);
+        }
+    }
+
+    /**
+     * inverse of get_block
+     */
+    void put_block(int i0, int j0, int rows, int cols, double[] src)
+    {
+        DoubleBuffer[] chunks = open_chunks();
+        for(int r = 0; r < rows; r++)
+        {
+            int i = i0 + r;
+            DoubleBuffer row = chunks[i / chunk_rows].duplicate();
+            row.position((i % chunk_rows) * col_count + j0);
+            row.put(src, r * cols, cols);
+        }
+    }
+
+    @Override public Matrix mul(Matrix o)
+    {
+        if(!MatrixMetrics.is_enabled())
+            return multiply(this, o, false);
+        return MatrixMetrics.product("mul", this, o, () -> multiply(this, o, false));
+    }
+
+    @Override public Matrix dmul(Matrix o)
+    {
+        if(!MatrixMetrics.is_enabled())
+            return multiply(this, o, true);
+        return MatrixMetrics.product("dmul", this, o, () -> multiply(this, o, true));
+    }
+
+    /**
+     * a * b tile by tile for operands of any type. If either one is an OffHeapDenseMatrix the product
+     * is a new OffHeapDenseMatrix and only one tile of a, b and the product per worker is ever on the
+     * heap, otherwise the tiles are accumulated straight into a row-major DenseMatrix.
+     * DenseMatrix tiles are read in place, in either layout.
+     * @param parallel spread the product tiles over ParallelEngine
+     */
+    static Matrix multiply(Matrix a, Matrix b, boolean parallel)
+    {
+        int rows = a.get_row_count();
+        int inner = a.get_col_count();
+        int cols = b.get_col_count();
+        if(inner != b.get_row_count())
+        {
+            throw new IllegalArgumentException("Cannot multiply " + rows + "*" + inner + " matrix by "
+                                               + b.get_row_count() + "*" + cols + "matrix");
+        }
+        OffHeapDenseMatrix off_heap = a instanceof OffHeapDenseMatrix || b instanceof OffHeapDenseMatrix
+                                      ? new OffHeapDenseMatrix(rows, cols) : null;
+        DenseMatrix on_heap = off_heap == null ? new DenseMatrix(rows, cols) : null;
+        ParallelEngine.BlockKernel kernel = (row_from, row_to, col_from, col_to) ->
+        {
+            double[] a_tile = a instanceof DenseMatrix ? null : new double[TILE_ROWS * TILE_DEPTH];
+            double[] b_tile = b instanceof DenseMatrix ? null : new double[TILE_DEPTH * TILE_COLS];
+            double[] c_tile = off_heap == null ? null : new double[TILE_ROWS * TILE_COLS];
+            MatrixMetrics.scratch(8L * ((a_tile == null ? 0 : a_tile.length) + (b_tile == null ? 0 : b_tile.length)
+                                        + (c_tile == null ? 0 : c_tile.length)));
+            for(int ii = row_from; ii < row_to; ii += TILE_ROWS)
+            {
+                int tile_rows = Math.min(TILE_ROWS, row_to - ii);
+                for(int jj = col_from; jj < col_to; jj += TILE_COLS)
+                {
+                    int tile_cols = Math.min(TILE_COLS, col_to - jj);
+                    double[] c = c_tile;
+                    int c_offset = 0, ldc = tile_cols;
+                    if(c_tile == null)
+                    {
+                        c = on_heap.raw_entries();
+                        c_offset = ii * cols + jj;
+                        ldc = cols;
+                    }
+                    else
+                        Arrays.fill(c_tile, 0, tile_rows * tile_cols, 0);
+                    for(int kk = 0; kk < inner; kk += TILE_DEPTH)
+                    {
+                        int depth = Math.min(TILE_DEPTH, inner - kk);
+                        double[] a_src = a_tile, b_src = b_tile;
+                        int a_offset = 0, a_row = depth, a_col = 1, b_offset = 0, b_row = tile_cols, b_col = 1;
+                        if(a_tile == null)
+                        {
+                            DenseMatrix a1 = (DenseMatrix) a;
+                            a_src = a1.raw_entries();
+                            a_row = a1.is_column_major() ? 1 : inner;
+                            a_col = a1.is_column_major() ? rows : 1;
+                            a_offset = ii * a_row + kk * a_col;
+                        }
+                        else
+                            copy_block(a, ii, kk, tile_rows, depth, a_tile);
+                        if(b_tile == null)
+                        {
+                            DenseMatrix b1 = (DenseMatrix) b;
+                            b_src = b1.raw_entries();
+                            b_row = b1.is_column_major() ? 1 : cols;
+                            b_col = b1.is_column_major() ? inner : 1;
+                            b_offset = kk * b_row + jj * b_col;
+                        }
+                        else
+                            copy_block(b, kk, jj, depth, tile_cols, b_tile);
+                        DenseKernels.multiply(a_src, a_offset, a_row, a_col, b_src, b_offset, b_row, b_col,
+                                              c, c_offset, ldc, depth, 0, tile_rows, 0, tile_cols);
+                    }
+                    if(off_heap != null)
+                        off_heap.put_block(ii, jj, tile_rows, tile_cols, c_tile);
+                }
+            }
+        };
+        if(parallel)
+            ParallelEngine.run(rows, cols, TILE_ROWS, TILE_COLS, kernel);
+        else
+            kernel.compute(0, rows, 0, cols);
+        return off_heap != null ? off_heap : on_heap;
+    }
+
+    /**
+     * copies rows x cols entries of m starting at (i0, j0) into dst, row-major with leading dimension cols
+     */
+    static void copy_block(Matrix m, int i0, int j0, int rows, int cols, double[] dst)
+    {
+        if(m instanceof OffHeapDenseMatrix)
+        {
+            ((OffHeapDenseMatrix) m).get_block(i0, j0, rows, cols, dst);
+            return;
+        }
+        if(m instanceof DenseMatrix)
+        {
+            double[] entries = ((DenseMatrix) m).raw_entries();
+            if(((DenseMatrix) m).is_column_major())
+            {
+                int ld = m.get_row_count();
+                for(int j = 0; j < cols; j++)
+                    for(int r = 0; r < rows; r++)
+                        dst[r * cols + j] = entries[(j0 + j) * ld + i0 + r];
+                return;
+            }
+            int ld = m.get_col_count();
+            for(int r = 0; r < rows; r++)
+                System.arraycopy(entries, (i0 + r) * ld + j0, dst, r * cols, cols);
+            return;
+        }
+        Arrays.fill(dst, 0, rows * cols, 0);
+        if(m instanceof SparseMatrix)
+        {
+            SparseMatrix s = (SparseMatrix) m;
+            int[] row_ptr = s.raw_row_ptr();
+            int[] col_idx = s.raw_col_idx();
+            double[] values = s.raw_values();
+            for(int r = 0; r < rows; r++)
+            {
+                int end = row_ptr[i0 + r + 1];
+                int p = Arrays.binarySearch(col_idx, row_ptr[i0 + r], end, j0);
+                if(p < 0)
+                    p = -p - 1;
+                for(; p < end && col_idx[p] < j0 + cols; p++)
+                    dst[r * cols + col_idx[p] - j0] = values[p];
+            }
+            return;
+        }
+        for(int r = 0; r < rows; r++)
+            for(int j = 0; j < cols; j++)
+                dst[r * cols + j] = m.get_entry(i0 + r, j0 + j);
+    }
+
+    /**
+     * compares entries with any other matrix, one row at a time
+     */
+    @Override public boolean equals(Object o)
+    {
+        if(!(o instanceof Matrix))
+            return false;
+        Matrix o1 = (Matrix) o;
+        if(row_count != o1.get_row_count() || col_count != o1.get_col_count())
+            return false;
+        double[] mine = new double[col_count];
+        double[] theirs = new double[col_count];
+        for(int i = 0; i < row_count; i++)
+        {
+            get_block(i, 0, 1, col_count, mine);
+            copy_block(o1, i, 0, 1, col_count, theirs);
+            if(!Arrays.equals(mine, theirs))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * hashes the dimensions and the entries row by row, consistent with equals
+     */
+    @Override public int hashCode()
+    {
+        int hash = 31 * row_count + col_count;
+        double[] row = new double[col_count];
+        for(int i = 0; i < row_count; i++)
+        {
+            get_block(i, 0, 1, col_count, row);
+            hash = 31 * hash + Arrays.hashCode(row);
+        }
+        return hash;
+    }
+
+    /* releasing direct and mapped buffers before GC has no public API before Java 9 (Unsafe.invokeCleaner),
+       both variants are looked up reflectively, if neither works the memory is left to the GC */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static
+    {
+        Object unsafe = null;
+        Method invoke_cleaner = null;
+        try
+        {
+            Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+            invoke_cleaner = unsafe_class.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafe_class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        }
+        catch(ReflectiveOperationException | RuntimeException e)
+        {
+            invoke_cleaner = null; /* Java 8, see release */
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invoke_cleaner;
+    }
+
+    private static void release_all(ByteBuffer[] buffers)
+    {
+        for(ByteBuffer buffer : buffers)
+            if(buffer != null)
+                release(buffer);
+    }
+
+    private static void release(ByteBuffer buffer)
+    {
+        if(!buffer.isDirect())
+            return;
+        try
+        {
+            if(INVOKE_CLEANER != null)
+            {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleaner_method = buffer.getClass().getMethod("cleaner");
+            cleaner_method.setAccessible(true);
+            Object cleaner = cleaner_method.invoke(buffer);
+            if(cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+        catch(ReflectiveOperationException | RuntimeException e)
+        {
+            /* best effort: the GC will free it eventually */
+        }
+    }
+}
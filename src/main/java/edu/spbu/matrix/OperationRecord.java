@@ -0,0 +1,143 @@
+package edu.spbu.matrix;
+
+/**
+ * one recorded mul/dmul or matrix-vector product, handed to MatrixMetrics listeners
+ */
+public final class OperationRecord
+{
+    private final String operation;
+    private final String kernel;
+    private final int left_rows;
+    private final int left_cols;
+    private final long left_nnz;
+    private final int right_rows;
+    private final int right_cols;
+    private final long right_nnz;
+    private final long flops;
+    private final long nanos;
+    private final int parallelism;
+    private final long partitions;
+    private final long result_bytes;
+    private final long scratch_bytes;
+
+    OperationRecord(String operation, String kernel, int left_rows, int left_cols, long left_nnz,
+                    int right_rows, int right_cols, long right_nnz, long flops, long nanos,
+                    int parallelism, long partitions, long result_bytes, long scratch_bytes)
+    {
+        this.operation = operation;
+        this.kernel = kernel;
+        this.left_rows = left_rows;
+        this.left_cols = left_cols;
+        this.left_nnz = left_nnz;
+        this.right_rows = right_rows;
+        this.right_cols = right_cols;
+        this.right_nnz = right_nnz;
+        this.flops = flops;
+        this.nanos = nanos;
+        this.parallelism = parallelism;
+        this.partitions = partitions;
+        this.result_bytes = result_bytes;
+        this.scratch_bytes = scratch_bytes;
+    }
+
+    /**
+     * @return "mul", "dmul", "mul_vectors" or "dmul_vectors"
+     */
+    public String get_operation()
+    {
+        return operation;
+    }
+    /**
+     * @return operand and result storage, "dense*csr->dense" style, or "strassen"
+     */
+    public String get_kernel()
+    {
+        return kernel;
+    }
+    public int get_left_rows()
+    {
+        return left_rows;
+    }
+    public int get_left_cols()
+    {
+        return left_cols;
+    }
+    /**
+     * @return stored entries: nonzeros of a sparse operand, every entry of a dense one
+     */
+    public long get_left_nnz()
+    {
+        return left_nnz;
+    }
+    /**
+     * @return for vector products, the k vectors taken as a matrix
+     */
+    public int get_right_rows()
+    {
+        return right_rows;
+    }
+    public int get_right_cols()
+    {
+        return right_cols;
+    }
+    public long get_right_nnz()
+    {
+        return right_nnz;
+    }
+    /**
+     * @return two per multiply-add the kernel performs, classical count for Strassen
+     */
+    public long get_flops()
+    {
+        return flops;
+    }
+    public long get_nanos()
+    {
+        return nanos;
+    }
+    /**
+     * @return threads that ran a part of the operation, 1 for single-threaded ones
+     */
+    public int get_parallelism()
+    {
+        return parallelism;
+    }
+    /**
+     * @return blocks and row ranges ParallelEngine cut the operation into, grid blocks of a
+     *         distributed product, 1 if it was not split
+     */
+    public long get_partitions()
+    {
+        return partitions;
+    }
+    /**
+     * @return storage of the result, on or off the heap; 0 for vector products writing to caller arrays
+     */
+    public long get_result_bytes()
+    {
+        return result_bytes;
+    }
+    /**
+     * @return temporaries the kernels allocated: packed panels and tiles, Strassen levels and padding,
+     *         accumulators, converted or recompressed operand copies
+     */
+    public long get_scratch_bytes()
+    {
+        return scratch_bytes;
+    }
+    /**
+     * @return result and scratch bytes together
+     */
+    public long get_bytes_allocated()
+    {
+        return result_bytes + scratch_bytes;
+    }
+
+    @Override public String toString()
+    {
+        return operation + " " + kernel + " " + left_rows + "*" + left_cols + "(" + left_nnz + ") by "
+               + right_rows + "*" + right_cols + "(" + right_nnz + "): " + flops + " flops in " + nanos
+               + " ns on " + parallelism + " workers in " + partitions + " parts, " + result_bytes + "+"
+               + scratch_bytes + " bytes";
+    }
+}
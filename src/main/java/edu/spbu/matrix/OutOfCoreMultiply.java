@@ -0,0 +1,415 @@
+package edu.spbu.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multiplies matrix files that do not fit in memory together, within a fixed memory budget.
+ *
+ * The product is computed one C tile at a time, as the sum over k of A(I, k) * B(k, J) tiles
+ * read from disk, and written into a dense BinaryMatrixFile. Tiles are as large as the budget
+ * allows for one C tile and two A and B tile pairs: while a pair is multiplied the next one is
+ * read by a background thread. C tiles are visited row band by row band, back and forth, and the
+ * k order flips from one C tile to the next, so consecutive tiles share an A or a B tile that is
+ * not read again. Text operands are first converted to binary files next to the output, dense or
+ * sparse whichever is smaller; sparse files are read a row band at a time.
+ * usage: OutOfCoreMultiply a b c [budget in MB]
+ */
+public final class OutOfCoreMultiply
+{
+    public static final long DEFAULT_BUDGET = 256L << 20;
+    static final int MAX_DEPTH = 1024;   /* inner dimension of a tile pair, longer reads do not pay off */
+
+    private final long budget;
+    private boolean parallel = true;
+    private long bytes_read;
+    private long bytes_written;
+    private int tile_reads;
+
+    /**
+     * @param budget bytes of tiles held at a time, the buffers of the file reads come on top
+     */
+    public OutOfCoreMultiply(long budget)
+    {
+        if(budget < 8 * 5)
+            throw new IllegalArgumentException("Budget of " + budget + " bytes cannot hold a tile");
+        this.budget = budget;
+    }
+
+    public static void main(String args[])
+    {
+        if(args.length < 3)
+        {
+            System.out.println("usage: OutOfCoreMultiply a b c [budget in MB]");
+            return;
+        }
+        try
+        {
+            OutOfCoreMultiply multiply = new OutOfCoreMultiply(args.length > 3 ? Long.parseLong(args[3]) << 20
+                                                                               : DEFAULT_BUDGET);
+            long start = System.currentTimeMillis();
+            multiply.multiply(args[0], args[1], args[2]);
+            System.out.println(args[2] + " written in " + (System.currentTimeMillis() - start) + " ms, "
+                               + (multiply.get_bytes_read() >> 20) + " MB read");
+        }
+        catch(IOException e)
+        {
+            System.out.println("Fail to multiply: " + e);
+        }
+    }
+
+    /**
+     * @param parallel whether tile products are spread over ParallelEngine, true by default
+     */
+    public void set_parallel(boolean parallel)
+    {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return bytes of operand tiles read by the last multiply
+     */
+    public long get_bytes_read()
+    {
+        return bytes_read;
+    }
+
+    /**
+     * @return bytes of the product written by the last multiply, the header excluded
+     */
+    public long get_bytes_written()
+    {
+        return bytes_written;
+    }
+
+    /**
+     * @return operand tiles read by the last multiply, the reused ones are not counted
+     */
+    public int get_tile_reads()
+    {
+        return tile_reads;
+    }
+
+    /**
+     * writes a * b into c_file as a dense BinaryMatrixFile, see OffHeapDenseMatrix.map to use it
+     * @param a_file left operand, text or binary
+     * @param b_file right operand, text or binary
+     */
+    public void multiply(String a_file, String b_file, String c_file) throws IOException
+    {
+        bytes_read = 0;
+        bytes_written = 0;
+        tile_reads = 0;
+        File a_binary = BinaryMatrixFile.is_binary(a_file) ? null : converted(a_file, c_file);
+        File b_binary = null;
+        try
+        {
+            b_binary = BinaryMatrixFile.is_binary(b_file) ? null : converted(b_file, c_file);
+            try(BinaryMatrixFile.TileReader a = new BinaryMatrixFile.TileReader(a_binary == null ? a_file
+                                                                                                 : a_binary.getPath());
+                BinaryMatrixFile.TileReader b = new BinaryMatrixFile.TileReader(b_binary == null ? b_file
+                                                                                                 : b_binary.getPath()))
+            {
+                multiply(a, b, c_file);
+                bytes_read = a.get_bytes_read() + b.get_bytes_read();
+            }
+        }
+        finally
+        {
+            if(a_binary != null)
+                a_binary.delete();
+            if(b_binary != null)
+                b_binary.delete();
+        }
+    }
+
+    private static File converted(String text_file, String c_file) throws IOException
+    {
+        File dir = new File(c_file).getAbsoluteFile().getParentFile();
+        File binary = File.createTempFile("out_of_core", ".bin", dir);
+        try
+        {
+            BinaryMatrixFile.convert_text_compact(text_file, binary.getPath());
+        }
+        catch(IOException | RuntimeException e)
+        {
+            binary.delete();
+            throw e;
+        }
+        return binary;
+    }
+
+    /**
+     * tile sizes for a budget of doubles: C tile rows x cols, A and B tiles rows x depth and depth x cols
+     */
+    static int[] tile_sizes(long doubles, int row_count, int inner, int col_count)
+    {
+        int depth = (int) Math.max(1, Math.min(Math.min(inner, MAX_DEPTH), (long) Math.sqrt(doubles) / 4));
+        /* rows*cols + 2*(rows*depth + depth*cols) doubles, square tiles unless a side is short */
+        long side = (long) (Math.sqrt(4.0 * depth * depth + doubles) - 2 * depth);
+        int rows = (int) Math.max(1, Math.min(Math.min(side, row_count), 46340));
+        long cols = (doubles - 2L * rows * depth) / (rows + 2L * depth);
+        cols = Math.max(1, Math.min(Math.min(cols, col_count), Integer.MAX_VALUE / rows));
+        if(cols == col_count && rows < row_count)
+        {
+            long more_rows = (doubles - 2L * depth * cols) / (cols + 2L * depth);
+            rows = (int) Math.max(rows, Math.min(Math.min(more_rows, row_count), Integer.MAX_VALUE / cols));
+        }
+        if((long) rows * cols + 2L * depth * (rows + cols) > doubles)
+            throw new IllegalArgumentException("Budget of " + 8 * doubles + " bytes cannot hold a tile");
+        return new int[]{rows, (int) cols, depth};
+    }
+
+    private void multiply(BinaryMatrixFile.TileReader a, BinaryMatrixFile.TileReader b, String c_file)
+            throws IOException
+    {
+        int rows = a.get_row_count();
+        int inner = a.get_col_count();
+        int cols = b.get_col_count();
+        if(inner != b.get_row_count())
+        {
+            throw new IllegalArgumentException("Cannot multiply " + rows + "*" + inner + " matrix by "
+                                               + b.get_row_count() + "*" + cols + "matrix");
+        }
+        int[] sizes = tile_sizes(budget / 8, Math.max(rows, 1), Math.max(inner, 1), Math.max(cols, 1));
+        Schedule schedule = new Schedule(rows, inner, cols, sizes[0], sizes[1], sizes[2]);
+        double[] c = new double[sizes[0] * sizes[1]];
+        double[][] a_tiles = {new double[sizes[0] * sizes[2]], new double[sizes[0] * sizes[2]]};
+        double[][] b_tiles = {new double[sizes[2] * sizes[1]], new double[sizes[2] * sizes[1]]};
+        int[] a_slot = new int[schedule.steps];
+        int[] b_slot = new int[schedule.steps];
+        ExecutorService loader = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread t = new Thread(r, "out-of-core-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+        try(FileChannel out = FileChannel.open(Paths.get(c_file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            BinaryMatrixFile.write_header(out, BinaryMatrixFile.DENSE, rows, cols, 0);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            if(schedule.steps == 0)
+                write_zeros(out, buffer, (long) rows * cols);
+            Future<?> pending = schedule.steps == 0 ? null
+                                                    : loader.submit(load(schedule, 0, a, b, a_tiles, b_tiles, a_slot, b_slot));
+            for(int t = 0; t < schedule.steps; t++)
+            {
+                wait_for(pending);
+                /* step t - 1 is done, its slots may be refilled for t + 1 */
+                if(t + 1 < schedule.steps)
+                    pending = loader.submit(load(schedule, t + 1, a, b, a_tiles, b_tiles, a_slot, b_slot));
+                Schedule.Step step = schedule.step(t);
+                int tile_rows = step.rows;
+                int tile_cols = step.cols;
+                int depth = step.depth;
+                if(schedule.first_k(t))
+                    Arrays.fill(c, 0, tile_rows * tile_cols, 0);
+                double[] a_tile = a_tiles[a_slot[t]];
+                double[] b_tile = b_tiles[b_slot[t]];
+                ParallelEngine.BlockKernel kernel = (row_from, row_to, col_from, col_to) ->
+                        DenseKernels.multiply(a_tile, b_tile, c, depth, tile_cols, row_from, row_to, col_from, col_to);
+                if(parallel)
+                    ParallelEngine.run(tile_rows, tile_cols, DenseKernels.ROW_BLOCK, DenseKernels.COL_BLOCK, kernel);
+                else
+                    kernel.compute(0, tile_rows, 0, tile_cols);
+                if(schedule.last_k(t))
+                    write_tile(out, buffer, c, step.i0, step.j0, tile_rows, tile_cols, cols);
+            }
+        }
+        finally
+        {
+            loader.shutdownNow();
+        }
+    }
+
+    /**
+     * @return task reading the tiles of step t into the slots step t - 1 does not use, or pointing
+     * step t at the slot of step t - 1 when they share a tile
+     */
+    private Runnable load(Schedule schedule, int t, BinaryMatrixFile.TileReader a, BinaryMatrixFile.TileReader b,
+                          double[][] a_tiles, double[][] b_tiles, int[] a_slot, int[] b_slot)
+    {
+        return () ->
+        {
+            Schedule.Step step = schedule.step(t);
+            Schedule.Step previous = t == 0 ? null : schedule.step(t - 1);
+            try
+            {
+                if(previous != null && previous.i0 == step.i0 && previous.k0 == step.k0)
+                    a_slot[t] = a_slot[t - 1];
+                else
+                {
+                    a_slot[t] = t == 0 ? 0 : 1 - a_slot[t - 1];
+                    a.read(step.i0, step.k0, step.rows, step.depth, a_tiles[a_slot[t]]);
+                    tile_reads++;
+                }
+                if(previous != null && previous.k0 == step.k0 && previous.j0 == step.j0)
+                    b_slot[t] = b_slot[t - 1];
+                else
+                {
+                    b_slot[t] = t == 0 ? 0 : 1 - b_slot[t - 1];
+                    b.read(step.k0, step.j0, step.depth, step.cols, b_tiles[b_slot[t]]);
+                    tile_reads++;
+                }
+            }
+            catch(IOException e)
+            {
+                throw new TileReadException(e);
+            }
+        };
+    }
+
+    private static void wait_for(Future<?> pending) throws IOException
+    {
+        try
+        {
+            pending.get();
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof TileReadException)
+                throw (IOException) e.getCause().getCause();
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a tile");
+        }
+    }
+
+    private void write_tile(FileChannel out, ByteBuffer buffer, double[] c, int i0, int j0, int rows, int cols,
+                            int col_count) throws IOException
+    {
+        for(int r = 0; r < rows; r++)
+        {
+            long position = BinaryMatrixFile.HEADER_SIZE + 8L * ((long) (i0 + r) * col_count + j0);
+            for(int from = 0; from < cols; )
+            {
+                int n = Math.min(cols - from, buffer.capacity() / 8);
+                buffer.clear();
+                buffer.asDoubleBuffer().put(c, r * cols + from, n);
+                buffer.limit(8 * n);
+                while(buffer.hasRemaining())
+                    position += out.write(buffer, position);
+                from += n;
+            }
+        }
+        bytes_written += 8L * rows * cols;
+    }
+
+    /**
+     * the body of a product with an empty inner dimension
+     */
+    private void write_zeros(FileChannel out, ByteBuffer buffer, long count) throws IOException
+    {
+        long position = BinaryMatrixFile.HEADER_SIZE;
+        bytes_written = 8 * count;
+        while(count > 0)
+        {
+            int n = (int) Math.min(count, buffer.capacity() / 8);
+            buffer.clear().limit(8 * n);
+            while(buffer.hasRemaining())
+                position += out.write(buffer, position);
+            count -= n;
+        }
+    }
+
+    /**
+     * order of the tile pairs: C tiles by row band, bands walked left to right and right to left in
+     * turn, k ascending and descending in turn from one C tile to the next
+     */
+    static final class Schedule
+    {
+        static final class Step
+        {
+            int i0, j0, k0, rows, cols, depth;
+        }
+
+        final int steps;
+        private final int row_count, inner, col_count;
+        private final int tile_rows, tile_cols, tile_depth;
+        private final int band_tiles, k_tiles;
+
+        Schedule(int row_count, int inner, int col_count, int tile_rows, int tile_cols, int tile_depth)
+        {
+            this.row_count = row_count;
+            this.inner = inner;
+            this.col_count = col_count;
+            this.tile_rows = tile_rows;
+            this.tile_cols = tile_cols;
+            this.tile_depth = tile_depth;
+            band_tiles = (col_count + tile_cols - 1) / tile_cols;
+            k_tiles = (inner + tile_depth - 1) / tile_depth;
+            long bands = (row_count + tile_rows - 1) / tile_rows;
+            if(bands * band_tiles * k_tiles > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Tiles of " + tile_rows + "*" + tile_depth + " and " + tile_depth + "*"
+                                                   + tile_cols + " are too small for " + row_count + "*" + inner
+                                                   + " by " + inner + "*" + col_count);
+            steps = (int) (bands * band_tiles * k_tiles);
+        }
+
+        Step step(int t)
+        {
+            Step s = new Step();
+            int tile = t / k_tiles;
+            int band = tile / band_tiles;
+            int j = tile % band_tiles;
+            if(band % 2 == 1)
+                j = band_tiles - 1 - j;
+            int k = t % k_tiles;
+            if(tile % 2 == 1)
+                k = k_tiles - 1 - k;
+            s.i0 = band * tile_rows;
+            s.j0 = j * tile_cols;
+            s.k0 = k * tile_depth;
+            s.rows = Math.min(tile_rows, row_count - s.i0);
+            s.cols = Math.min(tile_cols, col_count - s.j0);
+            s.depth = Math.min(tile_depth, inner - s.k0);
+            return s;
+        }
+
+        /**
+         * @return whether step t starts its C tile
+         */
+        boolean first_k(int t)
+        {
+            return t % k_tiles == 0;
+        }
+
+        /**
+         * @return whether step t completes its C tile
+         */
+        boolean last_k(int t)
+        {
+            return t % k_tiles == k_tiles - 1;
+        }
+    }
+
+    /**
+     * carries an IOException out of the prefetch task
+     */
+    private static final class TileReadException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        TileReadException(IOException cause)
+        {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package edu.spbu.matrix;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Work-stealing fork/join pool that runs every Matrix.dmul.
+ * The output is split recursively into row and column blocks until a block is
+ * small enough, idle workers steal the halves that are still pending.
+ *
+ * Parallelism defaults to the number of available processors and can be changed with
+ * the edu.spbu.matrix.parallelism system property or set_parallelism.
+ */
+public final class ParallelEngine
+{
+    public static final String PARALLELISM_PROPERTY = "edu.spbu.matrix.parallelism";
+
+    private static ForkJoinPool pool = new ForkJoinPool(default_parallelism());
+
+    /**
+     * computes the output block [row_from, row_to) x [col_from, col_to)
+     */
+    interface BlockKernel
+    {
+        void compute(int row_from, int row_to, int col_from, int col_to);
+    }
+
+    private ParallelEngine()
+    {
+    }
+
+    private static int default_parallelism()
+    {
+        int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+        if(parallelism < 1)
+            throw new IllegalArgumentException(PARALLELISM_PROPERTY + " must be positive, got " + parallelism);
+        return parallelism;
+    }
+
+    public static synchronized int get_parallelism()
+    {
+        return pool.getParallelism();
+    }
+
+    /**
+     * replaces the pool, multiplications already running finish on the old one
+     * @param parallelism number of worker threads
+     */
+    public static synchronized void set_parallelism(int parallelism)
+    {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive, got " + parallelism);
+        if(parallelism == pool.getParallelism())
+            return;
+        ForkJoinPool old = pool;
+        pool = new ForkJoinPool(parallelism);
+        old.shutdown();
+    }
+
+    private static synchronized ForkJoinPool get_pool()
+    {
+        return pool;
+    }
+
+    /**
+     * runs kernel over [0, row_count) x [0, col_count), blocks are never split below
+     * min_rows x min_cols, a kernel that cannot split columns passes col_count as min_cols
+     */
+    static void run(int row_count, int col_count, int min_rows, int min_cols, BlockKernel kernel)
+    {
+        kernel = MatrixMetrics.counted(kernel);
+        ForkJoinPool current = get_pool();
+        if(current.getParallelism() == 1)
+        {
+            kernel.compute(0, row_count, 0, col_count);
+            return;
+        }
+        /* a few blocks per worker is enough for stealing to even out the load */
+        long target_blocks = 4L * current.getParallelism();
+        long block_cells = Math.max((long) row_count * col_count / target_blocks, 1);
+        current.invoke(new BlockTask(kernel, 0, row_count, 0, col_count,
+                                     Math.max(min_rows, 1), Math.max(min_cols, 1), block_cells));
+    }
+
+    /**
+     * @return how many ranges to cut work into with balanced_bounds, a few per worker
+     */
+    static int partition_count()
+    {
+        int parallelism = get_parallelism();
+        return parallelism == 1 ? 1 : 4 * parallelism;
+    }
+
+    /**
+     * splits [0, n) into at most parts contiguous ranges of about equal weight
+     * @param prefix n + 1 cumulative weights, prefix[i] is the total weight of items before i
+     * @return ascending range bounds, the first one is 0 and the last one n
+     */
+    static int[] balanced_bounds(long[] prefix, int parts)
+    {
+        int n = prefix.length - 1;
+        long total = prefix[n];
+        int[] bounds = new int[parts + 1];
+        int count = 0;
+        for(int t = 1; t < parts; t++)
+        {
+            long target = total / parts * t + total % parts * t / parts;
+            int lo = bounds[count], hi = n;
+            while(lo < hi)  /* first i with prefix[i] >= target */
+            {
+                int mid = (lo + hi) >>> 1;
+                if(prefix[mid] < target)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            if(lo > bounds[count] && lo < n)
+                bounds[++count] = lo;
+        }
+        bounds[++count] = n;
+        return Arrays.copyOf(bounds, count + 1);
+    }
+
+    /**
+     * runs kernel over [bounds[t], bounds[t + 1]) x [0, col_count) for every range t
+     */
+    static void run_ranges(int[] bounds, int col_count, BlockKernel kernel)
+    {
+        kernel = MatrixMetrics.counted(kernel);
+        ForkJoinPool current = get_pool();
+        if(current.getParallelism() == 1 || bounds.length <= 2)
+        {
+            for(int t = 0; t + 1 < bounds.length; t++)
+                kernel.compute(bounds[t], bounds[t + 1], 0, col_count);
+            return;
+        }
+        current.invoke(new RangeTask(kernel, bounds, col_count, 0, bounds.length - 1));
+    }
+
+    private static final class RangeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final BlockKernel kernel;
+        private final int[] bounds;
+        private final int col_count;
+        private final int from;
+        private final int to;
+
+        RangeTask(BlockKernel kernel, int[] bounds, int col_count, int from, int to)
+        {
+            this.kernel = kernel;
+            this.bounds = bounds;
+            this.col_count = col_count;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected void compute()
+        {
+            if(to - from == 1)
+            {
+                kernel.compute(bounds[from], bounds[to], 0, col_count);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(kernel, bounds, col_count, from, middle),
+                      new RangeTask(kernel, bounds, col_count, middle, to));
+        }
+    }
+
+    private static final class BlockTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final BlockKernel kernel;
+        private final int row_from;
+        private final int row_to;
+        private final int col_from;
+        private final int col_to;
+        private final int min_rows;
+        private final int min_cols;
+        private final long block_cells;
+
+        BlockTask(BlockKernel kernel, int row_from, int row_to, int col_from, int col_to,
+                  int min_rows, int min_cols, long block_cells)
+        {
+            this.kernel = kernel;
+            this.row_from = row_from;
+            this.row_to = row_to;
+            this.col_from = col_from;
+            this.col_to = col_to;
+            this.min_rows = min_rows;
+            this.min_cols = min_cols;
+            this.block_cells = block_cells;
+        }
+
+        @Override protected void compute()
+        {
+            int rows = row_to - row_from;
+            int cols = col_to - col_from;
+            boolean split_rows = rows >= 2 * min_rows;
+            boolean split_cols = cols >= 2 * min_cols;
+            if((long) rows * cols <= block_cells || (!split_rows && !split_cols))
+            {
+                kernel.compute(row_from, row_to, col_from, col_to);
+                return;
+            }
+            /* halve the longer side so that blocks stay close to square */
+            if(split_rows && (rows >= cols || !split_cols))
+            {
+                int middle = row_from + rows / 2;
+                invokeAll(new BlockTask(kernel, row_from, middle, col_from, col_to, min_rows, min_cols, block_cells),
+                          new BlockTask(kernel, middle, row_to, col_from, col_to, min_rows, min_cols, block_cells));
+            }
+            else
+            {
+                int middle = col_from + cols / 2;
+                invokeAll(new BlockTask(kernel, row_from, row_to, col_from, middle, min_rows, min_cols, block_cells),
+                          new BlockTask(kernel, row_from, row_to, middle, col_to, min_rows, min_cols, block_cells));
+            }
+        }
+    }
+}
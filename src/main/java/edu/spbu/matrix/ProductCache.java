@@ -0,0 +1,181 @@
+package edu.spbu.matrix;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * opt-in cache of products keyed on the contents of both operands.
+ *
+ * Every DenseMatrix and SparseMatrix keeps a 64-bit fingerprint of its entries, computed on first
+ * use and dropped by set_entry/add_to_entry, so a repeated pair costs two field reads and a lookup.
+ * Products are held up to a byte budget and evicted least recently used first. Callers get
+ * copy-on-write copies of the cached products: updating one never reaches the cache.
+ * Operands of other types are multiplied directly, nothing is cached for them.
+ */
+public final class ProductCache
+{
+    private final long max_bytes;
+    private final LinkedHashMap<Key, Matrix> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param max_bytes budget for the cached products, a product larger than it is never kept
+     */
+    public ProductCache(long max_bytes)
+    {
+        if(max_bytes < 0)
+            throw new IllegalArgumentException("Negative cache budget " + max_bytes);
+        this.max_bytes = max_bytes;
+    }
+
+    /**
+     * a.mul(b), or the product cached for operands with the same contents
+     */
+    public Matrix mul(Matrix a, Matrix b)
+    {
+        return product(a, b, false);
+    }
+
+    /**
+     * a.dmul(b), or the product cached for operands with the same contents
+     */
+    public Matrix dmul(Matrix a, Matrix b)
+    {
+        return product(a, b, true);
+    }
+
+    private Matrix product(Matrix a, Matrix b, boolean parallel)
+    {
+        if(!cacheable(a) || !cacheable(b))
+            return parallel ? a.dmul(b) : a.mul(b);
+        Key key = new Key(fingerprint(a), fingerprint(b));
+        synchronized(this)
+        {
+            Matrix cached = entries.get(key);
+            if(cached != null)
+            {
+                hits++;
+                return shared_copy(cached);
+            }
+            misses++;
+        }
+        /* multiplied outside the lock: concurrent misses on one pair each compute it, the last one is kept */
+        Matrix product = parallel ? a.dmul(b) : a.mul(b);
+        long size = byte_size(product);
+        if(size > max_bytes)
+            return product;
+        Matrix result = shared_copy(product);
+        synchronized(this)
+        {
+            Matrix old = entries.put(key, product);
+            if(old != null)
+                bytes -= byte_size(old);
+            bytes += size;
+            /* access order: the head of the map is the least recently used entry */
+            Iterator<Map.Entry<Key, Matrix>> it = entries.entrySet().iterator();
+            while(bytes > max_bytes && it.hasNext())
+            {
+                Map.Entry<Key, Matrix> eldest = it.next();
+                if(eldest.getKey().equals(key))
+                    continue;
+                bytes -= byte_size(eldest.getValue());
+                it.remove();
+                evictions++;
+            }
+        }
+        return result;
+    }
+
+    public synchronized long get_hits()
+    {
+        return hits;
+    }
+    public synchronized long get_misses()
+    {
+        return misses;
+    }
+    public synchronized long get_evictions()
+    {
+        return evictions;
+    }
+    /**
+     * @return estimated size of the cached products
+     */
+    public synchronized long get_bytes()
+    {
+        return bytes;
+    }
+    public long get_max_bytes()
+    {
+        return max_bytes;
+    }
+    public synchronized int get_size()
+    {
+        return entries.size();
+    }
+    /**
+     * drops every cached product, the counters are kept
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static boolean cacheable(Matrix m)
+    {
+        return m instanceof DenseMatrix || m instanceof SparseMatrix;
+    }
+
+    private static long fingerprint(Matrix m)
+    {
+        return m instanceof DenseMatrix ? ((DenseMatrix) m).fingerprint() : ((SparseMatrix) m).fingerprint();
+    }
+
+    private static Matrix shared_copy(Matrix m)
+    {
+        return m instanceof DenseMatrix ? ((DenseMatrix) m).shared_copy() : ((SparseMatrix) m).shared_copy();
+    }
+
+    /**
+     * storage estimate: 8 bytes per dense entry, 12 per nonzero plus the row pointers
+     */
+    private static long byte_size(Matrix m)
+    {
+        if(m instanceof SparseMatrix)
+            return 4L * (Math.max(m.get_row_count(), m.get_col_count()) + 1) + 12L * ((SparseMatrix) m).get_nnz();
+        return 8L * m.get_row_count() * m.get_col_count();
+    }
+
+    /**
+     * both fingerprints together, the storage kind and dimensions are part of each
+     */
+    private static final class Key
+    {
+        final long a;
+        final long b;
+
+        Key(long a, long b)
+        {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override public boolean equals(Object o)
+        {
+            if(!(o instanceof Key))
+                return false;
+            Key o1 = (Key) o;
+            return a == o1.a && b == o1.b;
+        }
+
+        @Override public int hashCode()
+        {
+            return Long.hashCode(a * 31 + b);
+        }
+    }
+}
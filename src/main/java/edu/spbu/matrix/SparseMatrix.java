@@ -3,68 +3,101 @@ package edu.spbu.matrix;
 import java.util.*;
 import java.io.*;
 
-import static java.lang.Double.parseDouble;
 /**
  * Разреженная матрица
  */
 public class SparseMatrix implements Matrix
 {
-    private static final int ARRAY_SIZE = 3000; /* max array size */
     private int row_count = 0;
     private int col_count = 0;
-    private Map<Integer, Map<Integer, Double>> table = new HashMap<>();
+    /* compressed sparse row storage: row i holds values[row_ptr[i]..row_ptr[i+1])
+       at columns col_idx[...], sorted by column, no explicit zeros.
+       A column-compressed matrix (what transpose() returns) keeps the same three arrays
+       compressed by column instead: row_ptr is indexed by column and col_idx holds row indices */
+    private int[] row_ptr = new int[1];
+    private int[] col_idx = new int[0];
+    private double[] values = new double[0];
+    private boolean column_compressed = false;
+    private boolean shared = false;          /* the arrays are also used by a view or shared copy, copy them before updating */
+    private volatile long fingerprint;       /* content hash for ProductCache, 0 until computed and after any update */
+    private SparseMatrix companion;          /* the same matrix in the other compression, built on demand and dropped by any update */
+    private int[] vector_bounds;             /* row ranges of equal nonzero count for dmul_vectors, dropped likewise */
+    private int vector_parts;                /* partition count vector_bounds was split for */
 
     /* auxiliary methods */
-    public double get_entry(int i, int j)
+    @Override public double get_entry(int i, int j)
     {
-        if(!table.containsKey(i) || !table.get(i).containsKey(j))
+        int pos = find(i, j);
+        if(pos < 0)
             return 0;
-        return table.get(i).get(j);
+        return values[pos];
     }
     public void set_entry(int i, int j, double value)
     {
-        if(value==0.0)
+        detach();
+        int pos = find(i, j);
+        if(pos >= 0)
         {
-            if(!table.containsKey(i))
-                return;
-            table.get(i).remove(j);
-            if (table.get(i).keySet().size()==0)
-                table.remove(i);
+            if(value == 0.0)
+                remove(major(i, j), pos);
+            else
+                values[pos] = value;
         }
-        if(!table.containsKey(i))
-            table.put(i, new HashMap<>());
-        table.get(i).put(j, value);
+        else if(value != 0.0)
+            insert(major(i, j), -pos - 1, minor(i, j), value);
+        companion = null;
+        vector_bounds = null;
     }
     public void add_to_entry(int i, int j, double value)
     {
         if (value == 0)
             return; /* adding 0 does nothing */
-        if (!table.containsKey(i) || !table.get(i).containsKey(j))
-            set_entry(i, j, value); /* if get_entry was zero, make a new get_entry */
+        detach();
+        int pos = find(i, j);
+        if(pos < 0)
+            insert(major(i, j), -pos - 1, minor(i, j), value); /* if get_entry was zero, make a new get_entry */
+        else if(values[pos] + value == 0)
+            remove(major(i, j), pos); /* if get_entry ended up zero, remove it */
         else
-            set_entry(i, j, get_entry(i, j) + value);
-        if(get_entry(i,j)==0)
-            table.get(i).remove(j); /* if get_entry ended up zero, remove it */
-        if (table.get(i).keySet().isEmpty())
-            table.remove(i);
+            values[pos] += value;
+        companion = null;
+        vector_bounds = null;
     }
-    public int get_row_count()
+    @Override public int get_row_count()
     {
         return this.row_count;
     }
-    public int get_col_count()
+    @Override public int get_col_count()
     {
         return this.col_count;
     }
+    /**
+     * @return number of stored nonzeros
+     */
+    public int get_nnz()
+    {
+        return row_ptr[major_count()];
+    }
     public SparseMatrix(int r, int c) /* zero matrix with fixed size */
     {
         row_count = r;
         col_count = c;
-        table = new HashMap<>();
+        row_ptr = new int[r + 1];
+    }
+    /**
+     * wraps ready CSR arrays, they are not copied
+     */
+    SparseMatrix(int r, int c, int[] row_ptr, int[] col_idx, double[] values)
+    {
+        row_count = r;
+        col_count = c;
+        this.row_ptr = row_ptr;
+        this.col_idx = col_idx;
+        this.values = values;
     }
 
     /**
-     * loads matrix from file
+     * loads matrix from file, either text or BinaryMatrixFile format
      * @param file_name source file name
      */
     public SparseMatrix(String file_name)
@@ -72,36 +105,386 @@ public class SparseMatrix implements Matrix
         if(file_name.trim().equals(""))
             return;
 
-        int j;
-        String[] row_string_array;
-        String row_string;
         try
         {
-            Scanner in = new Scanner(new File(file_name));
+            SparseMatrix loaded = read(file_name);
+            row_count = loaded.row_count;
+            col_count = loaded.col_count;
+            row_ptr = loaded.row_ptr;
+            col_idx = loaded.col_idx;
+            values = loaded.values;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * the file constructor for callers that want the IOException
+     */
+    static SparseMatrix read(String file_name) throws IOException
+    {
+        if(BinaryMatrixFile.is_binary(file_name))
+            return BinaryMatrixFile.read_sparse(file_name);
+        CsrBuilder builder = new CsrBuilder(16, 16);
+        int rows = MatrixLoader.load(file_name, builder);
+        return builder.build(rows, builder.get_col_count());
+    }
 
-            while(in.hasNextLine())
+    /**
+     * O(1) transposed view: CSR arrays read as CSC describe the transpose. The view shares them
+     * with this matrix until either one is updated, the update copies them first
+     */
+    @Override public SparseMatrix transpose()
+    {
+        shared = true;
+        SparseMatrix view = transposed_view();
+        view.shared = true;
+        return view;
+    }
+    /**
+     * transpose() for temporaries that are never updated, this matrix is left unmarked
+     */
+    SparseMatrix transposed_view()
+    {
+        SparseMatrix view = new SparseMatrix(col_count, row_count, row_ptr, col_idx, values);
+        view.column_compressed = !column_compressed;
+        return view;
+    }
+    /**
+     * multiplies every entry by factor in place, 0 empties the matrix
+     */
+    void scale(double factor)
+    {
+        detach();
+        if(factor == 0)
+        {
+            row_ptr = new int[major_count() + 1];
+            col_idx = new int[0];
+            values = new double[0];
+        }
+        for(int p = 0; p < get_nnz(); p++)
+            values[p] *= factor;
+        companion = null;
+        vector_bounds = null;
+    }
+    /**
+     * O(1) copy sharing the arrays with this matrix until either one is updated
+     */
+    SparseMatrix shared_copy()
+    {
+        shared = true;
+        SparseMatrix copy = new SparseMatrix(row_count, col_count, row_ptr, col_idx, values);
+        copy.column_compressed = column_compressed;
+        copy.shared = true;
+        copy.companion = companion;
+        copy.fingerprint = fingerprint;
+        return copy;
+    }
+    /**
+     * @return hash of the dimensions, compression and nonzeros, computed once per update
+     */
+    long fingerprint()
+    {
+        long h = fingerprint;
+        if(h == 0)
+        {
+            int majors = major_count();
+            h = Fingerprint.seed(column_compressed ? Fingerprint.CSC : Fingerprint.CSR, row_count, col_count);
+            h = Fingerprint.of(h, row_ptr, 0, majors + 1);
+            h = Fingerprint.of(h, col_idx, 0, row_ptr[majors]);
+            h = Fingerprint.of(h, values, 0, row_ptr[majors]);
+            fingerprint = h;
+        }
+        return h;
+    }
+    boolean is_column_compressed()
+    {
+        return column_compressed;
+    }
+    /* CSR arrays of this matrix, col_idx/values may be longer than get_nnz(); read only, they may be shared */
+    int[] raw_row_ptr()
+    {
+        return csr().row_ptr;
+    }
+    int[] raw_col_idx()
+    {
+        return csr().col_idx;
+    }
+    double[] raw_values()
+    {
+        return csr().values;
+    }
+    /* CSC arrays of this matrix, same rules */
+    int[] raw_col_ptr()
+    {
+        return csc().row_ptr;
+    }
+    int[] raw_row_idx()
+    {
+        return csc().col_idx;
+    }
+    double[] raw_col_values()
+    {
+        return csc().values;
+    }
+    /**
+     * @return this matrix compressed by rows: itself or its companion
+     */
+    SparseMatrix csr()
+    {
+        return column_compressed ? other_compression() : this;
+    }
+    /**
+     * @return this matrix compressed by columns: itself or its companion
+     */
+    SparseMatrix csc()
+    {
+        return column_compressed ? this : other_compression();
+    }
+    /**
+     * saves matrix in BinaryMatrixFile sparse (CSR) format
+     * @param file_name target file name
+     */
+    public void write_binary(String file_name) throws IOException
+    {
+        BinaryMatrixFile.write(this, file_name);
+    }
+    /**
+     * copies the nonzeros into a zero dense matrix of the same size
+     */
+    void scatter_into(DenseMatrix result)
+    {
+        for(int i = 0; i < major_count(); i++)
+            for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+            {
+                if(column_compressed)
+                    result.set_entry(col_idx[p], i, values[p]);
+                else
+                    result.set_entry(i, col_idx[p], values[p]);
+            }
+    }
+    /**
+     * @return position of (i,j) in col_idx/values, or -(insertion point)-1 if it is zero
+     */
+    private int find(int i, int j)
+    {
+        int major = major(i, j);
+        return Arrays.binarySearch(col_idx, row_ptr[major], row_ptr[major + 1], minor(i, j));
+    }
+    /* index the storage is compressed by and index stored in col_idx, (i, j) unless column compressed */
+    private int major(int i, int j)
+    {
+        return column_compressed ? j : i;
+    }
+    private int minor(int i, int j)
+    {
+        return column_compressed ? i : j;
+    }
+    private int major_count()
+    {
+        return column_compressed ? col_count : row_count;
+    }
+    /* every update goes through here first */
+    private void detach()
+    {
+        fingerprint = 0;
+        if(!shared)
+            return;
+        row_ptr = row_ptr.clone();
+        col_idx = col_idx.clone();
+        values = values.clone();
+        shared = false;
+    }
+    private void insert(int i, int pos, int j, double value)
+    {
+        int nnz = row_ptr[major_count()];
+        if(nnz == values.length)
+        {
+            int capacity = Math.max(2 * nnz, 4);
+            col_idx = Arrays.copyOf(col_idx, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        System.arraycopy(col_idx, pos, col_idx, pos + 1, nnz - pos);
+        System.arraycopy(values, pos, values, pos + 1, nnz - pos);
+        col_idx[pos] = j;
+        values[pos] = value;
+        for(int r = i + 1; r <= major_count(); r++)
+            row_ptr[r]++;
+    }
+    private void remove(int i, int pos)
+    {
+        int nnz = row_ptr[major_count()];
+        System.arraycopy(col_idx, pos + 1, col_idx, pos, nnz - pos - 1);
+        System.arraycopy(values, pos + 1, values, pos, nnz - pos - 1);
+        for(int r = i + 1; r <= major_count(); r++)
+            row_ptr[r]--;
+    }
+    /**
+     * builds (once per update) the same matrix compressed along the other dimension
+     */
+    private SparseMatrix other_compression()
+    {
+        if(companion != null)
+            return companion;
+        int majors = major_count();
+        int minors = column_compressed ? row_count : col_count;
+        int nnz = row_ptr[majors];
+        int[] ptr = new int[minors + 1];
+        int[] idx = new int[nnz];
+        double[] vals = new double[nnz];
+        MatrixMetrics.scratch(4L * (minors + 1) + 12L * nnz);
+        for(int p = 0; p < nnz; p++)
+            ptr[col_idx[p] + 1]++;
+        for(int j = 0; j < minors; j++)
+            ptr[j + 1] += ptr[j];
+        int[] next = Arrays.copyOf(ptr, minors);
+        /* majors are visited in order, so every minor comes out sorted */
+        for(int i = 0; i < majors; i++)
+        {
+            for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+            {
+                int dst = next[col_idx[p]]++;
+                idx[dst] = i;
+                vals[dst] = values[p];
+            }
+        }
+        SparseMatrix result = new SparseMatrix(row_count, col_count, ptr, idx, vals);
+        result.column_compressed = !column_compressed;
+        companion = result;
+        return result;
+    }
+    /**
+     * symbolic phase of the row-wise (Gustavson) product this * o:
+     * counts the distinct columns every row in [row_from, row_to) can reach
+     * @param counts receives the upper bound of nonzeros of row i at counts[i + 1]
+     * @param marker scratch of o.col_count ints holding -1
+     */
+    private void product_symbolic(SparseMatrix o, int row_from, int row_to, int[] counts, int[] marker)
+    {
+        for(int i = row_from; i < row_to; i++)
+        {
+            int count = 0;
+            for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
             {
-                row_count += 1;
-                row_string = in.nextLine();
-                row_string_array = row_string.split(" ");
-                if (row_count == 1)
-                    col_count = row_string_array.length;
-                for (j = 0; j < col_count; j++)
+                int k = col_idx[p];
+                for(int q = o.row_ptr[k]; q < o.row_ptr[k + 1]; q++)
                 {
-                    double value = parseDouble(row_string_array[j]);
-                    if(value!=0.0)
-                        set_entry(row_count - 1, j, value);
+                    int j = o.col_idx[q];
+                    if(marker[j] != i)
+                    {
+                        marker[j] = i;
+                        count++;
+                    }
                 }
-
             }
-            in.close();
+            counts[i + 1] = count;
         }
-        catch (IOException e)
+    }
+    /**
+     * numeric phase of the row-wise (Gustavson) product this * o:
+     * for every a(i,k) row k of o is scaled and scattered into a dense accumulator,
+     * so the work is proportional to the multiply-adds actually performed.
+     * Row i is then gathered in column order without the entries that cancelled out.
+     * @param offsets prefix sums of the symbolic row counts, row i is written from offsets[i] on
+     * @param kept receives the number of nonzeros row i ended up with
+     * @param c_idx receives column indices
+     * @param c_values receives values, same layout as c_idx
+     * @param accumulator scratch of o.col_count doubles
+     * @param marker scratch of o.col_count ints holding -1
+     */
+    private void product_numeric(SparseMatrix o, int row_from, int row_to, int[] offsets, int[] kept,
+                                 int[] c_idx, double[] c_values, double[] accumulator, int[] marker)
+    {
+        for(int i = row_from; i < row_to; i++)
         {
-            e.printStackTrace();
+            int row_start = offsets[i];
+            int row_end = row_start;
+            for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+            {
+                int k = col_idx[p];
+                double a = values[p];
+                for(int q = o.row_ptr[k]; q < o.row_ptr[k + 1]; q++)
+                {
+                    int j = o.col_idx[q];
+                    if(marker[j] != i)
+                    {
+                        marker[j] = i;
+                        c_idx[row_end++] = j;
+                        accumulator[j] = a * o.values[q];
+                    }
+                    else
+                        accumulator[j] += a * o.values[q];
+                }
+            }
+            int n = row_end - row_start;
+            if(8 * n > o.col_count)
+            {
+                /* dense row: walking the marker is cheaper than sorting */
+                row_end = row_start;
+                for(int j = 0; j < o.col_count; j++)
+                    if(marker[j] == i)
+                        c_idx[row_end++] = j;
+            }
+            else
+                Arrays.sort(c_idx, row_start, row_end);
+            int out = row_start;
+            for(int t = row_start; t < row_end; t++)
+            {
+                int j = c_idx[t];
+                double v = accumulator[j];
+                if(v != 0.0)
+                {
+                    c_idx[out] = j;
+                    c_values[out] = v;
+                    out++;
+                }
+            }
+            kept[i] = out - row_start;
         }
     }
+    /**
+     * closes the gaps cancelled entries left between the row slots of the numeric phase
+     * @return the product wrapping c_idx/c_values, or compacted copies of them
+     */
+    private static SparseMatrix stitch(int rows, int cols, int[] offsets, int[] kept, int[] c_idx, double[] c_values,
+                                       int[] bounds)
+    {
+        int[] c_ptr = new int[rows + 1];
+        for(int i = 0; i < rows; i++)
+            c_ptr[i + 1] = c_ptr[i] + kept[i];
+        int nnz = c_ptr[rows];
+        if(nnz == offsets[rows])
+            return new SparseMatrix(rows, cols, c_ptr, c_idx, c_values);
+        int[] idx = new int[nnz];
+        double[] vals = new double[nnz];
+        ParallelEngine.run_ranges(bounds, 1, (row_from, row_to, col_from, col_to) ->
+        {
+            for(int i = row_from; i < row_to; i++)
+            {
+                System.arraycopy(c_idx, offsets[i], idx, c_ptr[i], kept[i]);
+                System.arraycopy(c_values, offsets[i], vals, c_ptr[i], kept[i]);
+            }
+        });
+        return new SparseMatrix(rows, cols, c_ptr, idx, vals);
+    }
+
+    /**
+     * @return prefix sums of the multiply-adds each row of this * o costs, plus one per row for its overhead
+     */
+    private long[] product_work(SparseMatrix o)
+    {
+        long[] prefix = new long[row_count + 1];
+        for(int i = 0; i < row_count; i++)
+        {
+            long work = 1;
+            for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+                work += o.row_ptr[col_idx[p] + 1] - o.row_ptr[col_idx[p]];
+            prefix[i + 1] = prefix[i] + work;
+        }
+        return prefix;
+    }
 
     /**
      * single-threaded matrix multiplication
@@ -110,209 +493,430 @@ public class SparseMatrix implements Matrix
      */
     @Override public Matrix mul(Matrix o)
     {
+        if(!MatrixMetrics.is_enabled())
+            return multiply(o, null, false);
+        return MatrixMetrics.product("mul", this, o, () -> multiply(o, null, false));
+    }
+
+    /**
+     * multi-threaded multiplication
+     * @param o the other matrix
+     * @return the product
+     */
+    @Override public Matrix dmul(Matrix o)
+    {
+        if(!MatrixMetrics.is_enabled())
+            return multiply(o, null, true);
+        return MatrixMetrics.product("dmul", this, o, () -> multiply(o, null, true));
+    }
+
+    /**
+     * picks the kernel by operand type and layout. A product of two transposed views is computed
+     * as (A B) = (B^T A^T)^T, where both transposes are the row-wise originals
+     * @param buffer zero-filled array of at least row_count * o columns a dense product may be
+     *               written into instead of a new one, or null
+     */
+    Matrix multiply(Matrix o, double[] buffer, boolean parallel)
+    {
+        if(o instanceof NarrowMatrix)
+        {
+            o = ((NarrowMatrix) o).promote();   /* a double operand makes the product double */
+            MatrixMetrics.scratch(MatrixMetrics.storage_bytes(o));
+        }
+        if(!(o instanceof SparseMatrix) && !(o instanceof DenseMatrix))
+            return OffHeapDenseMatrix.multiply(this, o, parallel);
+        dimensions_check(o.get_row_count(), o.get_col_count());
         if(o instanceof SparseMatrix)
         {
             SparseMatrix o1 = (SparseMatrix) o;
+            if(column_compressed && o1.column_compressed)
+                return o1.transposed_view().multiply(transposed_view(), null, parallel).transpose();
+            /* Gustavson needs both operands by rows, a transposed one is recompressed once and cached */
+            return csr().sparse_product(o1.csr(), parallel);
+        }
+        DenseMatrix o1 = (DenseMatrix) o;
+        if(column_compressed && o1.is_column_major())
+            return o1.transposed_view().multiply(transposed_view(), null, parallel).transpose();
+        /* rows of o are taken as full, so every nonempty row of this gives a full row of the product */
+        if(!MatrixFactory.prefers_dense((long) nonempty_rows() * o1.get_col_count(), row_count, o1.get_col_count()))
+            return csr().sparse_dense_product(o1, parallel);
+        return dense_product(o1, buffer, parallel);
+    }
 
-            if (this.col_count != o1.get_row_count())
-            {
-                throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
-                        + o1.get_row_count() + "*" + o1.get_col_count() + "matrix");
-            }
-
-            SparseMatrix result = new SparseMatrix(this.row_count, o1.get_col_count());
+    /**
+     * SpMV for k vectors at once: x[c*k + v] is entry c of vector v, y is laid out alike and overwritten
+     */
+    @Override public double[] mul_vectors(double[] x, double[] y, int k)
+    {
+        vectors_check(x, y, k);
+        if(!MatrixMetrics.is_enabled())
+            sequential_vectors(x, y, k);
+        else
+            MatrixMetrics.vectors("mul_vectors", this, k, () -> sequential_vectors(x, y, k));
+        return y;
+    }
 
-            for (int i : table.keySet())
+    private void sequential_vectors(double[] x, double[] y, int k)
+    {
+        if(column_compressed)
+        {
+            /* by columns: column c scatters x[c] into the rows of its nonzeros */
+            Arrays.fill(y, 0, row_count * k, 0);
+            for(int c = 0; c < col_count; c++)
             {
-                for (int j = 0; j < col_count; j++)
+                for(int p = row_ptr[c]; p < row_ptr[c + 1]; p++)
                 {
-                    double sum = 0;
-                    for (int k : this.table.get(i).keySet())
-                    {
-                        if(!o1.table.containsKey(k))
-                            continue;
-                        if(!o1.table.get(k).containsKey(j))
-                            continue;
-                        sum += this.table.get(i).get(k) * o1.table.get(k).get(j);
-                    }
-                    if(sum!=0.0)
-                        result.set_entry(i, j, sum);
+                    double a = values[p];
+                    int y_row = col_idx[p] * k;
+                    int x_row = c * k;
+                    for(int v = 0; v < k; v++)
+                        y[y_row + v] += a * x[x_row + v];
                 }
             }
-            return result;
         }
         else
+            vectors_kernel(x, y, k, 0, row_count);
+    }
+
+    /**
+     * parallel mul_vectors: every worker owns a range of rows of y holding about the same number
+     * of nonzeros. The ranges are computed once and kept until the next update, a transposed view
+     * goes through its cached CSR companion
+     */
+    @Override public double[] dmul_vectors(double[] x, double[] y, int k)
+    {
+        vectors_check(x, y, k);
+        if(!MatrixMetrics.is_enabled())
+            parallel_vectors(x, y, k);
+        else
+            MatrixMetrics.vectors("dmul_vectors", this, k, () -> parallel_vectors(x, y, k));
+        return y;
+    }
+
+    private void parallel_vectors(double[] x, double[] y, int k)
+    {
+        SparseMatrix m = csr();
+        int[] bounds = m.vector_bounds;
+        int parts = ParallelEngine.partition_count();
+        if(bounds == null || m.vector_parts != parts)
         {
-            DenseMatrix o1 = (DenseMatrix) o;
-            if(this.col_count != o1.get_row_count())
-            {
-                throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
-                        + o1.get_row_count() + "*" + o1.get_col_count() + "matrix");
-            }
+            long[] prefix = new long[row_count + 1];
+            for(int i = 0; i < row_count; i++)
+                prefix[i + 1] = prefix[i] + 1 + m.row_ptr[i + 1] - m.row_ptr[i];
+            bounds = ParallelEngine.balanced_bounds(prefix, parts);
+            MatrixMetrics.scratch(8L * prefix.length);
+            m.vector_bounds = bounds;
+            m.vector_parts = parts;
+        }
+        ParallelEngine.run_ranges(bounds, 1,
+                                  (row_from, row_to, col_from, col_to) -> m.vectors_kernel(x, y, k, row_from, row_to));
+    }
 
-            DenseMatrix result = new DenseMatrix(this.row_count, o1.get_col_count());
+    private void vectors_check(double[] x, double[] y, int k)
+    {
+        if(k < 1 || x.length < col_count * k || y.length < row_count * k)
+        {
+            throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by " + k
+                                               + " vectors in arrays of length " + x.length + " and " + y.length);
+        }
+    }
 
-            for(int i = 0; i < this.row_count; i++)
+    /**
+     * rows row_from..row_to of y = A x for a CSR matrix
+     */
+    private void vectors_kernel(double[] x, double[] y, int k, int row_from, int row_to)
+    {
+        if(k == 1)
+        {
+            for(int i = row_from; i < row_to; i++)
             {
-                if(this.table.containsKey(i))
-                    for(int j = 0; j < result.get_col_count(); j++)
-                    {
-                        for(int k : this.table.get(i).keySet())
-                        {
-                            double addend = this.table.get(i).get(k) * o1.get_entry(k, j);
-                            result.add_to_entry(i, j, addend);
-                        }
-                    }
+                double sum = 0;
+                for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+                    sum += values[p] * x[col_idx[p]];
+                y[i] = sum;
+            }
+            return;
+        }
+        /* each nonzero scales a whole row of X, the k sums of a row of y stay in cache */
+        for(int i = row_from; i < row_to; i++)
+        {
+            int y_row = i * k;
+            Arrays.fill(y, y_row, y_row + k, 0);
+            for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+            {
+                double a = values[p];
+                int x_row = col_idx[p] * k;
+                for(int v = 0; v < k; v++)
+                    y[y_row + v] += a * x[x_row + v];
             }
-            return result;
         }
     }
 
     /**
-     * multi-threaded multiplication
-     * @param o the other matrix
-     * @return the product
+     * row-wise (Gustavson) product of two CSR matrices, dmul splits rows into ranges of equal
+     * multiply-add count: one dense row can outweigh thousands of empty ones
      */
-    @Override public Matrix dmul(Matrix o)
+    private SparseMatrix sparse_product(SparseMatrix o1, boolean parallel)
     {
-      final int THREAD_COUNT = 4;
-      class Entry
-      {
-          public int i;
-          public int j;
-          Entry(int i, int j)
-          {
-              this.i = i;
-              this.j = j;
-          }
-      }
-      if(o instanceof SparseMatrix)
-      {
-          SparseMatrix o1 = (SparseMatrix) o;
-          if (this.col_count != o1.get_row_count())
-          {
-              throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
-                      + o1.get_row_count() + "*" + o1.get_col_count() + "matrix");
-          }
-
-          SparseMatrix result = new SparseMatrix(this.row_count, o1.get_col_count());
-          for(int i = 0; i < o1.row_count; ++i)
-          {
-              if(this.table.containsKey(i))
-                  result.table.put(i, new HashMap<>());
-          }
+        int[] bounds = parallel ? ParallelEngine.balanced_bounds(product_work(o1), ParallelEngine.partition_count())
+                                : new int[]{0, row_count};
 
-          class EntryCalc extends Thread
-          {
-              public List<Entry> list;
-
-              private EntryCalc()
-              {
-                  list = new ArrayList<>();
-              }
-
-              public void run()
-              {
-                  for(Entry e : list)
-                  {
-                      int i = e.i;
-                      int j = e.j;
+        /* symbolic phase, every range of rows writes its own counts */
+        int[] offsets = new int[row_count + 1];
+        MatrixMetrics.scratch(4L * offsets.length + (parallel ? 8L * offsets.length : 0));
+        ParallelEngine.run_ranges(bounds, 1, (row_from, row_to, col_from, col_to) ->
+        {
+            int[] marker = new int[o1.col_count];
+            MatrixMetrics.scratch(4L * marker.length);
+            Arrays.fill(marker, -1);
+            product_symbolic(o1, row_from, row_to, offsets, marker);
+        });
+        for (int i = 0; i < row_count; i++)
+            offsets[i + 1] += offsets[i];
 
-                      double addend = 0.0;
+        /* numeric phase, each range has private accumulators and writes its rows into the slots the
+           symbolic phase reserved for them, so nothing is shared or locked */
+        int[] kept = new int[row_count];
+        int[] c_idx = new int[offsets[row_count]];
+        double[] c_values = new double[offsets[row_count]];
+        MatrixMetrics.scratch(4L * kept.length);
+        ParallelEngine.run_ranges(bounds, 1, (row_from, row_to, col_from, col_to) ->
+        {
+            int[] marker = new int[o1.col_count];
+            double[] accumulator = new double[o1.col_count];
+            MatrixMetrics.scratch(12L * o1.col_count);
+            Arrays.fill(marker, -1);
+            product_numeric(o1, row_from, row_to, offsets, kept, c_idx, c_values, accumulator, marker);
+        });
+        return stitch(this.row_count, o1.get_col_count(), offsets, kept, c_idx, c_values, bounds);
+    }
 
-                      for(int k : table.get(i).keySet())
-                      {
-                          addend += table.get(i).get(k) * o1.get_entry(k,j);
-                      }
-                      System.out.println("Calculated entry (" + i + "," + j + ")");
-                      result.add_to_entry(i,j,addend);
-                  }
-              }
-          }
-          EntryCalc[] threads = new EntryCalc[THREAD_COUNT];
-          for (int i = 0; i < threads.length; ++i)
-              threads[i] = new EntryCalc();
-          int counter = 0;
-          /* distribute calculations across threads */
-          for(int i : table.keySet())
-          {
-              for(int j = 0; j < o1.get_col_count(); j++)
-              {
-                  Entry e = new Entry(i,j);
-                  threads[counter].list.add(e);
-                  counter = (counter + 1) % THREAD_COUNT;
-              }
-          }
-          for(EntryCalc t : threads)
-          {
-              try
-              {
-                  t.join();
-              }
-              catch (InterruptedException e)
-              {
-                  e.printStackTrace();
-              }
-          }
+    /**
+     * this * o1 straight into CSR, for products expected to be mostly empty: each nonempty row
+     * is accumulated densely and only its nonzeros are kept. Each range of rows fills a builder
+     * of its own, the builders are concatenated at the end
+     */
+    private SparseMatrix sparse_dense_product(DenseMatrix o1, boolean parallel)
+    {
+        int cols = o1.get_col_count();
+        double[] b = o1.raw_entries();
+        int b_row = o1.is_column_major() ? 1 : cols;
+        int b_col = o1.is_column_major() ? col_count : 1;
+        int[] bounds = new int[]{0, row_count};
+        if(parallel)
+        {
+            long[] prefix = new long[row_count + 1];
+            MatrixMetrics.scratch(8L * prefix.length);
+            for(int i = 0; i < row_count; i++)
+                prefix[i + 1] = prefix[i] + 1 + row_ptr[i + 1] - row_ptr[i];
+            bounds = ParallelEngine.balanced_bounds(prefix, ParallelEngine.partition_count());
+        }
+        int[] range_bounds = bounds;
+        SparseMatrix[] parts = new SparseMatrix[bounds.length - 1];
+        ParallelEngine.run_ranges(bounds, 1, (row_from, row_to, col_from, col_to) ->
+        {
+            CsrBuilder builder = new CsrBuilder(row_to - row_from, 16);
+            double[] accumulator = new double[cols];
+            MatrixMetrics.scratch(8L * cols);
+            for(int i = row_from; i < row_to; i++)
+            {
+                if(row_ptr[i] < row_ptr[i + 1])
+                {
+                    Arrays.fill(accumulator, 0);
+                    for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+                    {
+                        double a = values[p];
+                        int b_offset = col_idx[p] * b_row;
+                        for(int j = 0; j < cols; j++)
+                            accumulator[j] += a * b[b_offset + j * b_col];
+                    }
+                    for(int j = 0; j < cols; j++)
+                        builder.add(j, accumulator[j]);
+                }
+                builder.end_row();
+            }
+            parts[Arrays.binarySearch(range_bounds, row_from)] = builder.build(row_to - row_from, cols);
+        });
+        if(parts.length == 1)
+            return parts[0];
+        int nnz = 0;
+        for(SparseMatrix part : parts)
+        {
+            nnz += part.get_nnz();
+            MatrixMetrics.scratch(MatrixMetrics.storage_bytes(part));
+        }
+        int[] c_ptr = new int[row_count + 1];
+        int[] c_idx = new int[nnz];
+        double[] c_values = new double[nnz];
+        int offset = 0;
+        for(int r = 0; r < parts.length; r++)
+        {
+            SparseMatrix part = parts[r];
+            for(int i = 0; i < part.row_count; i++)
+                c_ptr[bounds[r] + i + 1] = offset + part.row_ptr[i + 1];
+            System.arraycopy(part.col_idx, 0, c_idx, offset, part.get_nnz());
+            System.arraycopy(part.values, 0, c_values, offset, part.get_nnz());
+            offset += part.get_nnz();
+        }
+        return new SparseMatrix(row_count, cols, c_ptr, c_idx, c_values);
+    }
 
-          return result;
-      }
-      else
-      {
-          DenseMatrix o1 = (DenseMatrix) o;
-          if (this.col_count != o1.get_row_count())
-          {
-              throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
-                      + o1.get_row_count() + "*" + o1.get_col_count() + "matrix");
-          }
-          DenseMatrix result = new DenseMatrix(this.row_count, o1.get_col_count());
-          class EntryCalc extends Thread
-          {
-              public List<Entry> list = new ArrayList<>();
+    /**
+     * rows (columns) holding at least one nonzero
+     */
+    int nonempty_rows()
+    {
+        return column_compressed ? distinct_minors() : nonempty_majors();
+    }
+    int nonempty_cols()
+    {
+        return column_compressed ? nonempty_majors() : distinct_minors();
+    }
+    private int nonempty_majors()
+    {
+        int count = 0;
+        for(int i = 0; i < major_count(); i++)
+            if(row_ptr[i] < row_ptr[i + 1])
+                count++;
+        return count;
+    }
+    private int distinct_minors()
+    {
+        boolean[] seen = new boolean[column_compressed ? row_count : col_count];
+        int count = 0;
+        for(int p = 0; p < get_nnz(); p++)
+        {
+            if(!seen[col_idx[p]])
+            {
+                seen[col_idx[p]] = true;
+                count++;
+            }
+        }
+        return count;
+    }
 
-              public void run()
-              {
-                  for(Entry e : list)
-                  {
-                      int i = e.i;
-                      int j = e.j;
+    private DenseMatrix dense_product(DenseMatrix o1, double[] buffer, boolean parallel)
+    {
+        DenseMatrix result = buffer == null ? new DenseMatrix(this.row_count, o1.get_col_count())
+                                            : new DenseMatrix(this.row_count, o1.get_col_count(), buffer);
+        ParallelEngine.BlockKernel kernel = dense_product_kernel(o1, result);
+        if(!parallel)
+            kernel.compute(0, row_count, 0, result.get_col_count());
+        else if(column_compressed)
+        {
+            /* a column of this reaches any row of the product, so workers split the columns instead */
+            ParallelEngine.run(row_count, result.get_col_count(), row_count, DenseKernels.ROW_BLOCK, kernel);
+        }
+        else
+        {
+            /* ranges of equal nonzero count, each one streams its rows of the product once */
+            long[] prefix = new long[row_count + 1];
+            MatrixMetrics.scratch(8L * prefix.length);
+            for (int i = 0; i < row_count; i++)
+                prefix[i + 1] = prefix[i] + 1 + row_ptr[i + 1] - row_ptr[i];
+            ParallelEngine.run_ranges(ParallelEngine.balanced_bounds(prefix, ParallelEngine.partition_count()),
+                                      result.get_col_count(), kernel);
+        }
+        return result;
+    }
 
-                      for(int k : table.get(i).keySet())
-                      {
-                          double addend = table.get(i).get(k) * o1.get_entry(k,j);
-                          result.add_to_entry(i,j,addend);
-                      }
-                  }
-              }
-          }
-          EntryCalc[] threads = new EntryCalc[THREAD_COUNT];
-          for (int i = 0; i < threads.length; ++i)
-              threads[i] = new EntryCalc();
-          int counter = 0;
-          /* distribute calculations across threads */
-          for(int i : table.keySet())
-          {
-              for(int j = 0; j < o1.get_col_count(); j++)
-              {
-                  threads[counter].list.add(new Entry(i,j));
-                  counter = (counter + 1) % THREAD_COUNT;
-              }
-          }
-          for(EntryCalc t : threads)
-          {
-              try
-              {
-                  t.join();
-              }
-              catch (InterruptedException e)
-              {
-                  e.printStackTrace();
-              }
-          }
+    private void dimensions_check(int o_rows, int o_cols)
+    {
+        if (this.col_count != o_rows)
+        {
+            throw new IllegalArgumentException("Cannot multiply " + row_count + "*" + col_count + " matrix by "
+                    + o_rows + "*" + o_cols + "matrix");
+        }
+    }
 
-          return result;
-      }
-  }
+    /**
+     * @return kernel filling any block of result with the matching block of this * o:
+     * row i of the product is the sum of the rows of o picked by row i's nonzeros, each one a
+     * contiguous AXPY over o's row-major entries
+     */
+    private ParallelEngine.BlockKernel dense_product_kernel(DenseMatrix o1, DenseMatrix result)
+    {
+        double[] b = o1.raw_entries();
+        double[] c = result.raw_entries();
+        int cols = o1.get_col_count();
+        if(column_compressed)
+        {
+            /* stored by columns: the nonzeros of column k scale row k of o into the rows they sit in */
+            return (row_from, row_to, col_from, col_to) ->
+            {
+                for(int k = 0; k < col_count; k++)
+                {
+                    int b_row = k * cols;
+                    for(int p = row_ptr[k]; p < row_ptr[k + 1]; p++)
+                    {
+                        int i = col_idx[p];
+                        if(i < row_from || i >= row_to)
+                            continue;
+                        double a = values[p];
+                        int c_row = i * cols;
+                        for(int j = col_from; j < col_to; j++)
+                            c[c_row + j] += a * b[b_row + j];
+                    }
+                }
+            };
+        }
+        if(o1.is_column_major())
+        {
+            /* columns of o are contiguous: a panel of them is turned into row order once and
+               then reused by every row of the range, the AXPY below stays sequential */
+            int inner = col_count;
+            return (row_from, row_to, col_from, col_to) ->
+            {
+                double[] panel = new double[inner * Math.min(DenseKernels.COL_BLOCK, col_to - col_from)];
+                MatrixMetrics.scratch(8L * panel.length);
+                for(int jj = col_from; jj < col_to; jj += DenseKernels.COL_BLOCK)
+                {
+                    int width = Math.min(DenseKernels.COL_BLOCK, col_to - jj);
+                    for(int j = 0; j < width; j++)
+                    {
+                        int b_col = (jj + j) * inner;
+                        for(int k = 0; k < inner; k++)
+                            panel[k * width + j] = b[b_col + k];
+                    }
+                    for(int i = row_from; i < row_to; i++)
+                    {
+                        int c_row = i * cols + jj;
+                        for(int p = row_ptr[i]; p < row_ptr[i + 1]; p++)
+                        {
+                            double a = values[p];
+                            int b_row = col_idx[p] * width;
+                            for(int j = 0; j < width; j++)
+                                c[c_row + j] += a * panel[b_row + j];
+                        }
+                    }
+                }
+            };
+        }
+        return (row_from, row_to, col_from, col_to) ->
+        {
+            for(int i = row_from; i < row_to; i++)
+            {
+                int c_row = i * cols;
+                int p = row_ptr[i];
+                /* four rows of o per pass, so every load/store of the product row feeds four multiply-adds */
+                for(; p + 3 < row_ptr[i + 1]; p += 4)
+                {
+                    double a0 = values[p], a1 = values[p + 1], a2 = values[p + 2], a3 = values[p + 3];
+                    int b0 = col_idx[p] * cols, b1 = col_idx[p + 1] * cols;
+                    int b2 = col_idx[p + 2] * cols, b3 = col_idx[p + 3] * cols;
+                    for(int j = col_from; j < col_to; j++)
+                        c[c_row + j] += a0 * b[b0 + j] + a1 * b[b1 + j] + a2 * b[b2 + j] + a3 * b[b3 + j];
+                }
+                for(; p < row_ptr[i + 1]; p++)
+                {
+                    double a = values[p];
+                    int b_row = col_idx[p] * cols;
+                    for(int j = col_from; j < col_to; j++)
+                        c[c_row + j] += a * b[b_row + j];
+                }
+            }
+        };
+    }
 
   /**
    * спавнивает с обоими вариантами
@@ -324,6 +928,8 @@ public class SparseMatrix implements Matrix
         if(o instanceof SparseMatrix)
         {
             SparseMatrix o1 = (SparseMatrix) o;
+            if(column_compressed || o1.column_compressed)
+                return csr().equals(o1.csr());
             if(row_count != o1.get_row_count())
             {
                 System.out.println("Row count mismatch");
@@ -335,21 +941,28 @@ public class SparseMatrix implements Matrix
                 System.out.println("Column count mismatch");
                 return false;
             }
-            if(!this.table.keySet().equals(o1.table.keySet()))
+            for(int i = 0; i < row_count; i++)
             {
-                System.out.println("Row set mismatch");
-                return false;
-            }
-            for(int i: this.table.keySet())
-            {
-                if (!this.table.get(i).keySet().equals(o1.table.get(i).keySet()))
+                if((row_ptr[i] == row_ptr[i + 1]) != (o1.row_ptr[i] == o1.row_ptr[i + 1]))
+                {
+                    System.out.println("Row set mismatch");
+                    return false;
+                }
+                int p = row_ptr[i];
+                int q = o1.row_ptr[i];
+                if (row_ptr[i + 1] - p != o1.row_ptr[i + 1] - q)
                 {
                     System.out.println("Entry set mismatch");
                     return false;
                 }
-                for (int j : this.table.get(i).keySet())
+                for (; p < row_ptr[i + 1]; p++, q++)
                 {
-                    if(!this.table.get(i).get(j).equals(o1.table.get(i).get(j)))
+                    if (col_idx[p] != o1.col_idx[q])
+                    {
+                        System.out.println("Entry set mismatch");
+                        return false;
+                    }
+                    if (values[p] != o1.values[q])
                     {
                         System.out.println("Entry mismatch");
                         return false;
@@ -358,10 +971,9 @@ public class SparseMatrix implements Matrix
             }
             return true;
         }
-        if(o instanceof DenseMatrix)
+        if(o instanceof Matrix)
         {
-            DenseMatrix o1 = (DenseMatrix) o;
-            return o1.equals(this);
+            return o.equals(this);
         }
         return false;
     }
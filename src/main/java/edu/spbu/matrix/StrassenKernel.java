@@ -0,0 +1,191 @@
+package edu.spbu.matrix;
+
+import java.util.Arrays;
+
+/**
+ * Strassen-Winograd multiplication of square dense matrices: 7 half-size products
+ * and 15 additions per level instead of 8 products, recursion stops at the cutoff
+ * where DenseKernels takes over.
+ *
+ * Sizes that do not halve evenly down to the cutoff are zero-padded once, up front,
+ * to the nearest multiple of 2^levels. Every level owns two scratch quadrants that
+ * are allocated once per multiplication and reused by all 7 sub-products.
+ */
+final class StrassenKernel
+{
+    static final String CUTOFF_PROPERTY = "edu.spbu.matrix.strassen.cutoff";
+
+    /**
+     * leaf size: below it the blocked kernel is faster than another level of recursion.
+     * Strassen is used for square operands of at least twice this size.
+     * 0 or less disables Strassen altogether
+     */
+    private static volatile int cutoff = Integer.getInteger(CUTOFF_PROPERTY, 256);
+
+    private final int levels;
+    private final boolean parallel;
+    private final double[][] x;    /* per level scratch for A-side sums and P1, (n/2^(l+1))^2 each */
+    private final double[][] y;    /* per level scratch for B-side sums */
+
+    private StrassenKernel(int levels, int size, boolean parallel)
+    {
+        this.levels = levels;
+        this.parallel = parallel;
+        x = new double[levels][];
+        y = new double[levels][];
+        for(int l = 0; l < levels; l++)
+        {
+            size /= 2;
+            x[l] = new double[size * size];
+            y[l] = new double[size * size];
+            MatrixMetrics.scratch(16L * size * size);
+        }
+    }
+
+    static int get_cutoff()
+    {
+        return cutoff;
+    }
+
+    /**
+     * @param value new leaf size, 0 disables Strassen
+     */
+    static void set_cutoff(int value)
+    {
+        cutoff = value;
+    }
+
+    /**
+     * @return true if a (rows x inner) by (inner x cols) product should go through Strassen
+     */
+    static boolean applies(int rows, int inner, int cols)
+    {
+        int leaf = cutoff;
+        return leaf > 0 && rows == inner && inner == cols && rows >= 2 * leaf;
+    }
+
+    /**
+     * @param a n x n row-major left operand
+     * @param b n x n row-major right operand
+     * @param n size of the operands
+     * @param parallel run the leaf products and the additions on ParallelEngine
+     * @return n x n row-major product
+     */
+    static double[] multiply(double[] a, double[] b, int n, boolean parallel)
+    {
+        int leaf = Math.max(cutoff, 1);
+        int levels = 0;
+        while((n + (1 << levels) - 1) >> levels > leaf)
+            levels++;
+        int step = 1 << levels;
+        int size = (n + step - 1) / step * step;
+
+        StrassenKernel kernel = new StrassenKernel(levels, size, parallel);
+        double[] c = new double[size * size];
+        if(size == n)
+        {
+            kernel.multiply(0, a, 0, n, b, 0, n, c, 0, n, n);
+            return c;
+        }
+        MatrixMetrics.scratch(8L * c.length);
+        kernel.multiply(0, pad(a, n, size), 0, size, pad(b, n, size), 0, size, c, 0, size, size);
+        double[] result = new double[n * n];
+        for(int i = 0; i < n; i++)
+            System.arraycopy(c, i * size, result, i * n, n);
+        return result;
+    }
+
+    private static double[] pad(double[] m, int n, int size)
+    {
+        double[] padded = new double[size * size];
+        MatrixMetrics.scratch(8L * padded.length);
+        for(int i = 0; i < n; i++)
+            System.arraycopy(m, i * n, padded, i * size, n);
+        return padded;
+    }
+
+    /**
+     * c = a * b for n x n views, c is overwritten.
+     * Schedule from Douglas et al., "GEMMW: a portable level 3 BLAS Winograd variant
+     * of Strassen's matrix-matrix multiply algorithm": only two temporaries per level
+     */
+    private void multiply(int level, double[] a, int ao, int lda, double[] b, int bo, int ldb,
+                          double[] c, int co, int ldc, int n)
+    {
+        if(level == levels)
+        {
+            leaf(a, ao, lda, b, bo, ldb, c, co, ldc, n);
+            return;
+        }
+        int h = n / 2;
+        int a11 = ao, a12 = ao + h, a21 = ao + h * lda, a22 = a21 + h;
+        int b11 = bo, b12 = bo + h, b21 = bo + h * ldb, b22 = b21 + h;
+        int c11 = co, c12 = co + h, c21 = co + h * ldc, c22 = c21 + h;
+        double[] x = this.x[level];
+        double[] y = this.y[level];
+        int next = level + 1;
+
+        combine(x, 0, h, a, a11, lda, a, a21, lda, -1, h);       /* S3 = A11 - A21 */
+        combine(y, 0, h, b, b22, ldb, b, b12, ldb, -1, h);       /* T3 = B22 - B12 */
+        multiply(next, x, 0, h, y, 0, h, c, c21, ldc, h);        /* C21 = P7 = S3 T3 */
+        combine(x, 0, h, a, a21, lda, a, a22, lda, 1, h);        /* S1 = A21 + A22 */
+        combine(y, 0, h, b, b12, ldb, b, b11, ldb, -1, h);       /* T1 = B12 - B11 */
+        multiply(next, x, 0, h, y, 0, h, c, c22, ldc, h);        /* C22 = P5 = S1 T1 */
+        combine(x, 0, h, x, 0, h, a, a11, lda, -1, h);           /* S2 = S1 - A11 */
+        combine(y, 0, h, b, b22, ldb, y, 0, h, -1, h);           /* T2 = B22 - T1 */
+        multiply(next, x, 0, h, y, 0, h, c, c12, ldc, h);        /* C12 = P6 = S2 T2 */
+        combine(x, 0, h, a, a12, lda, x, 0, h, -1, h);           /* S4 = A12 - S2 */
+        multiply(next, x, 0, h, b, b22, ldb, c, c11, ldc, h);    /* C11 = P3 = S4 B22 */
+        multiply(next, a, a11, lda, b, b11, ldb, x, 0, h, h);    /* X = P1 = A11 B11 */
+        combine(c, c12, ldc, x, 0, h, c, c12, ldc, 1, h);        /* C12 = U2 = P1 + P6 */
+        combine(c, c21, ldc, c, c12, ldc, c, c21, ldc, 1, h);    /* C21 = U3 = U2 + P7 */
+        combine(c, c12, ldc, c, c12, ldc, c, c22, ldc, 1, h);    /* C12 = U4 = U2 + P5 */
+        combine(c, c22, ldc, c, c21, ldc, c, c22, ldc, 1, h);    /* C22 = U7 = U3 + P5 */
+        combine(c, c12, ldc, c, c12, ldc, c, c11, ldc, 1, h);    /* C12 = U5 = U4 + P3 */
+        combine(y, 0, h, y, 0, h, b, b21, ldb, -1, h);           /* T4 = T2 - B21 */
+        multiply(next, a, a22, lda, y, 0, h, c, c11, ldc, h);    /* C11 = P4 = A22 T4 */
+        combine(c, c21, ldc, c, c21, ldc, c, c11, ldc, -1, h);   /* C21 = U6 = U3 - P4 */
+        multiply(next, a, a12, lda, b, b21, ldb, c, c11, ldc, h);/* C11 = P2 = A12 B21 */
+        combine(c, c11, ldc, x, 0, h, c, c11, ldc, 1, h);        /* C11 = U1 = P1 + P2 */
+    }
+
+    private void leaf(double[] a, int ao, int lda, double[] b, int bo, int ldb,
+                      double[] c, int co, int ldc, int n)
+    {
+        ParallelEngine.BlockKernel kernel = (row_from, row_to, col_from, col_to) ->
+        {
+            for(int i = row_from; i < row_to; i++)
+                Arrays.fill(c, co + i * ldc + col_from, co + i * ldc + col_to, 0);
+            DenseKernels.multiply(a, ao, lda, b, bo, ldb, c, co, ldc, n, row_from, row_to, col_from, col_to);
+        };
+        if(parallel)
+            ParallelEngine.run(n, n, DenseKernels.ROW_BLOCK / 8, DenseKernels.COL_BLOCK, kernel);
+        else
+            kernel.compute(0, n, 0, n);
+    }
+
+    /**
+     * dst = p + sign * q for n x n views, dst may alias p or q element by element
+     */
+    private void combine(double[] dst, int d, int ldd, double[] p, int po, int ldp,
+                         double[] q, int qo, int ldq, int sign, int n)
+    {
+        ParallelEngine.BlockKernel kernel = (row_from, row_to, col_from, col_to) ->
+        {
+            for(int i = row_from; i < row_to; i++)
+            {
+                int dr = d + i * ldd, pr = po + i * ldp, qr = qo + i * ldq;
+                if(sign > 0)
+                    for(int j = 0; j < n; j++)
+                        dst[dr + j] = p[pr + j] + q[qr + j];
+                else
+                    for(int j = 0; j < n; j++)
+                        dst[dr + j] = p[pr + j] - q[qr + j];
+            }
+        };
+        if(parallel)
+            ParallelEngine.run(n, 1, DenseKernels.ROW_BLOCK, 1, kernel);
+        else
+            kernel.compute(0, n, 0, 1);
+    }
+}
@@ -0,0 +1,71 @@
+package edu.spbu.matrix;
+
+/**
+ * read-only transposed view of any Matrix without a layout of its own,
+ * DenseMatrix and SparseMatrix transpose by flipping their storage order instead
+ */
+final class TransposedMatrix implements Matrix
+{
+    private final Matrix base;
+
+    TransposedMatrix(Matrix base)
+    {
+        this.base = base;
+    }
+
+    @Override public int get_row_count()
+    {
+        return base.get_col_count();
+    }
+    @Override public int get_col_count()
+    {
+        return base.get_row_count();
+    }
+    @Override public double get_entry(int i, int j)
+    {
+        return base.get_entry(j, i);
+    }
+    @Override public Matrix transpose()
+    {
+        return base;
+    }
+
+    /* products go tile by tile through OffHeapDenseMatrix.multiply, reading the view with get_entry,
+       into a DenseMatrix unless the other operand is off-heap */
+    @Override public Matrix mul(Matrix o)
+    {
+        if(!MatrixMetrics.is_enabled())
+            return OffHeapDenseMatrix.multiply(this, o, false);
+        return MatrixMetrics.product("mul", this, o, () -> OffHeapDenseMatrix.multiply(this, o, false));
+    }
+    @Override public Matrix dmul(Matrix o)
+    {
+        if(!MatrixMetrics.is_enabled())
+            return OffHeapDenseMatrix.multiply(this, o, true);
+        return MatrixMetrics.product("dmul", this, o, () -> OffHeapDenseMatrix.multiply(this, o, true));
+    }
+
+    @Override public boolean equals(Object o)
+    {
+        if(!(o instanceof Matrix))
+            return false;
+        Matrix o1 = (Matrix) o;
+        if(get_row_count() != o1.get_row_count() || get_col_count() != o1.get_col_count())
+            return false;
+        for(int i = 0; i < get_row_count(); i++)
+            for(int j = 0; j < get_col_count(); j++)
+                if(get_entry(i, j) != o1.get_entry(i, j))
+                    return false;
+        return true;
+    }
+
+    /* + 0.0 turns -0.0 into 0.0, which equals compares as equal */
+    @Override public int hashCode()
+    {
+        int hash = 31 * get_row_count() + get_col_count();
+        for(int i = 0; i < get_row_count(); i++)
+            for(int j = 0; j < get_col_count(); j++)
+                hash = 31 * hash + Double.hashCode(get_entry(i, j) + 0.0);
+        return hash;
+    }
+}
@@ -3,12 +3,53 @@ package edu.spbu.sort;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 public class IntSort
 {
-    /* Merge sort */
+    /**
+     * Sorts array with whichever of insertion, merge and radix sort suits it:
+     * insertion sort for tiny arrays, merge sort for short or presorted ones, radix sort otherwise.
+     * A sample of SAMPLE_SIZE evenly spaced elements stands in for the whole array.
+     */
     public static void sort (int array[])
+    {
+        int n = array.length;
+        if(n <= INSERTION_SORT_THRESHOLD)
+        {
+            insertionSort(array, 0, n);
+            return;
+        }
+        int step = Math.max(1, n / SAMPLE_SIZE);
+        int min = array[0], max = array[0];
+        boolean ascending = true;
+        for(int i = step; i < n; i += step)
+        {
+            ascending &= array[i - step] <= array[i];
+            min = Math.min(min, array[i]);
+            max = Math.max(max, array[i]);
+        }
+        /* merge sort is close to linear on sorted runs, radix sort pays a pass per significant byte */
+        int passes = radixPasses((long) max - min);
+        if(ascending || n < RADIX_THRESHOLD * passes)
+            mergeSort(array);
+        else
+            radixSort(array);
+    }
+
+    /* bytes radix sort has to look at when the keys span range */
+    private static int radixPasses(long range)
+    {
+        int passes = 1;
+        while(passes < 4 && range >>> (8 * passes) != 0)
+            passes++;
+        return passes;
+    }
+
+    /* Merge sort, the original implementation: allocates two halves at every level */
+    public static void legacyMergeSort (int array[])
     {
         if(array.length <= 1)
             return;
@@ -29,8 +70,8 @@ public class IntSort
             m2[j] = array[len1+j];
         }
 
-        sort(m1);
-        sort(m2);
+        legacyMergeSort(m1);
+        legacyMergeSort(m2);
 
         i = 0;
         j = 0;
@@ -60,6 +101,262 @@ public class IntSort
         }
     }
 
+    static final int INSERTION_SORT_THRESHOLD = 32;  /* runs this short are insertion sorted */
+    static final int PARALLEL_THRESHOLD = 1 << 13;   /* ranges this short are not split across threads */
+    static final int RADIX_THRESHOLD = 64;           /* per radix pass, shorter arrays go to merge sort */
+    static final int SAMPLE_SIZE = 64;               /* elements sort looks at before choosing */
+    private static final int RADIX = 256;
+
+    /* LSD radix sort, one byte per pass, with a scratch buffer of array.length */
+    public static void radixSort (int array[])
+    {
+        radixSort(array, new int[array.length]);
+    }
+
+    /**
+     * LSD radix sort using buffer as the only scratch space. Passes over bytes every key
+     * has in common are skipped. Negative keys sort first: the top byte is compared with its
+     * sign bit flipped.
+     * @param buffer at least array.length long, its contents are overwritten
+     */
+    public static void radixSort (int array[], int buffer[])
+    {
+        int n = array.length;
+        if(buffer.length < n)
+            throw new IllegalArgumentException("Buffer of " + buffer.length + " for " + n + " elements");
+        if(n <= 1)
+            return;
+
+        /* all four histograms in one read of the input */
+        int[][] counts = new int[4][RADIX];
+        for(int i = 0; i < n; i++)
+        {
+            int key = array[i] ^ Integer.MIN_VALUE;
+            counts[0][key & 0xFF]++;
+            counts[1][(key >>> 8) & 0xFF]++;
+            counts[2][(key >>> 16) & 0xFF]++;
+            counts[3][key >>> 24]++;
+        }
+
+        int[] src = array;
+        int[] dst = buffer;
+        for(int pass = 0; pass < 4; pass++)
+        {
+            int[] count = counts[pass];
+            int shift = 8 * pass;
+            if(count[((src[0] ^ Integer.MIN_VALUE) >>> shift) & 0xFF] == n)
+                continue; /* every key has the same byte here */
+            int offset = 0;
+            for(int d = 0; d < RADIX; d++)
+            {
+                int c = count[d];
+                count[d] = offset;
+                offset += c;
+            }
+            for(int i = 0; i < n; i++)
+            {
+                int value = src[i];
+                dst[count[((value ^ Integer.MIN_VALUE) >>> shift) & 0xFF]++] = value;
+            }
+            int[] t = src;
+            src = dst;
+            dst = t;
+        }
+        if(src != array)
+            System.arraycopy(src, 0, array, 0, n);
+    }
+
+    /* Merge sort without per-level allocation: one scratch buffer, single thread */
+    public static void mergeSort (int array[])
+    {
+        mergeSort(array, new int[array.length], false);
+    }
+
+    /* Same as mergeSort, halves and merges are forked on the common ForkJoinPool */
+    public static void parallelMergeSort (int array[])
+    {
+        mergeSort(array, new int[array.length], true);
+    }
+
+    /**
+     * Stable merge sort of array using buffer as the only scratch space
+     * @param buffer at least array.length long, its contents are overwritten
+     * @param parallel fork/join ranges longer than PARALLEL_THRESHOLD
+     */
+    public static void mergeSort (int array[], int buffer[], boolean parallel)
+    {
+        if(buffer.length < array.length)
+            throw new IllegalArgumentException("Buffer of " + buffer.length + " for " + array.length + " elements");
+        if(array.length <= 1)
+            return;
+        System.arraycopy(array, 0, buffer, 0, array.length);
+        MergeSortTask task = new MergeSortTask(buffer, array, 0, array.length, parallel);
+        if(parallel && array.length > PARALLEL_THRESHOLD)
+            ForkJoinPool.commonPool().invoke(task);
+        else
+            task.compute();
+    }
+
+    /**
+     * Sorts src[from, to) into dst[from, to). Both arrays hold the same elements in that range
+     * on entry, so every level merges from one into the other and never copies back.
+     */
+    private static final class MergeSortTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] src;
+        private final int[] dst;
+        private final int from;
+        private final int to;
+        private final boolean parallel;
+
+        MergeSortTask(int[] src, int[] dst, int from, int to, boolean parallel)
+        {
+            this.src = src;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+            this.parallel = parallel;
+        }
+
+        @Override protected void compute()
+        {
+            if(to - from <= INSERTION_SORT_THRESHOLD)
+            {
+                insertionSort(dst, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            /* the halves land in src, the merge below puts them back into dst */
+            MergeSortTask left = new MergeSortTask(dst, src, from, mid, parallel);
+            MergeSortTask right = new MergeSortTask(dst, src, mid, to, parallel);
+            if(parallel && to - from > PARALLEL_THRESHOLD)
+                invokeAll(left, right);
+            else
+            {
+                left.compute();
+                right.compute();
+            }
+            if(src[mid - 1] <= src[mid])
+                System.arraycopy(src, from, dst, from, to - from); /* already in order */
+            else if(parallel && to - from > PARALLEL_THRESHOLD)
+                new MergeTask(src, from, mid, mid, to, dst, from).compute();
+            else
+                merge(src, from, mid, mid, to, dst, from);
+        }
+    }
+
+    /**
+     * Merges src[lo1, hi1) and src[lo2, hi2) into dst starting at out, splitting long merges
+     * in two independent ones around the median of the longer run
+     */
+    private static final class MergeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] src;
+        private final int lo1, hi1, lo2, hi2;
+        private final int[] dst;
+        private final int out;
+
+        MergeTask(int[] src, int lo1, int hi1, int lo2, int hi2, int[] dst, int out)
+        {
+            this.src = src;
+            this.lo1 = lo1;
+            this.hi1 = hi1;
+            this.lo2 = lo2;
+            this.hi2 = hi2;
+            this.dst = dst;
+            this.out = out;
+        }
+
+        @Override protected void compute()
+        {
+            int len1 = hi1 - lo1;
+            int len2 = hi2 - lo2;
+            if(len1 + len2 <= PARALLEL_THRESHOLD || len1 == 0 || len2 == 0)
+            {
+                merge(src, lo1, hi1, lo2, hi2, dst, out);
+                return;
+            }
+            /* elements equal to the pivot stay left run first, so the split keeps the merge stable */
+            int mid1, mid2;
+            if(len1 >= len2)
+            {
+                mid1 = (lo1 + hi1) >>> 1;
+                mid2 = lowerBound(src, lo2, hi2, src[mid1]);
+            }
+            else
+            {
+                mid2 = (lo2 + hi2) >>> 1;
+                mid1 = upperBound(src, lo1, hi1, src[mid2]);
+            }
+            invokeAll(new MergeTask(src, lo1, mid1, lo2, mid2, dst, out),
+                      new MergeTask(src, mid1, hi1, mid2, hi2, dst, out + (mid1 - lo1) + (mid2 - lo2)));
+        }
+    }
+
+    /* Stable merge, ties are taken from the first run */
+    private static void merge(int src[], int lo1, int hi1, int lo2, int hi2, int dst[], int out)
+    {
+        while(lo1 < hi1 && lo2 < hi2)
+        {
+            /* branch-free step: on random input the comparison is a coin flip for the predictor */
+            int a = src[lo1];
+            int b = src[lo2];
+            int first = a <= b ? 1 : 0;
+            dst[out++] = first == 1 ? a : b;
+            lo1 += first;
+            lo2 += 1 - first;
+        }
+        System.arraycopy(src, lo1, dst, out, hi1 - lo1);
+        System.arraycopy(src, lo2, dst, out + hi1 - lo1, hi2 - lo2);
+    }
+
+    /* first index in [from, to) whose element is >= key */
+    private static int lowerBound(int array[], int from, int to, int key)
+    {
+        while(from < to)
+        {
+            int mid = (from + to) >>> 1;
+            if(array[mid] < key)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
+    /* first index in [from, to) whose element is > key */
+    private static int upperBound(int array[], int from, int to, int key)
+    {
+        while(from < to)
+        {
+            int mid = (from + to) >>> 1;
+            if(array[mid] <= key)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
+    static void insertionSort(int array[], int from, int to)
+    {
+        for(int i = from + 1; i < to; i++)
+        {
+            int value = array[i];
+            int j = i - 1;
+            while(j >= from && array[j] > value)
+            {
+                array[j + 1] = array[j];
+                j--;
+            }
+            array[j + 1] = value;
+        }
+    }
+
     public static void sort (List<Integer> list)
     {
         Collections.sort(list);
@@ -0,0 +1,79 @@
+package edu.spbu.matrix;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * DenseKernels.multiply_row on jdk.incubator.vector: the same four rows of b per pass, each pass
+ * updating a whole vector of c entries. Products are multiplied and added lane by lane in the
+ * order of the scalar kernel, not fused, so both kernels give the same bits and CPUs without
+ * FMA units are not slowed down. Loaded by DenseKernels only, through create.
+ */
+final class VectorRowKernel implements DenseKernels.RowKernel
+{
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorRowKernel()
+    {
+    }
+
+    /**
+     * @return the kernel, or null when the preferred vectors hold a single double
+     */
+    static VectorRowKernel create()
+    {
+        return SPECIES.length() < 2 ? null : new VectorRowKernel();
+    }
+
+    @Override public void multiply_row(double[] a, int a_row, int a_step, double[] b, int b_offset, int ldb,
+                                       double[] c, int c_row, int k_from, int k_to, int j_from, int j_to)
+    {
+        int j_vector_end = j_from + SPECIES.loopBound(j_to - j_from);
+        int k = k_from;
+        for(; k + 3 < k_to; k += 4)
+        {
+            int ak = a_row + k * a_step;
+            double x0 = a[ak];
+            double x1 = a[ak + a_step];
+            double x2 = a[ak + 2 * a_step];
+            double x3 = a[ak + 3 * a_step];
+            if(x0 == 0 && x1 == 0 && x2 == 0 && x3 == 0)
+                continue;
+            int b0 = b_offset + k * ldb;
+            int b1 = b0 + ldb;
+            int b2 = b1 + ldb;
+            int b3 = b2 + ldb;
+            int j = j_from;
+            for(; j < j_vector_end; j += SPECIES.length())
+            {
+                DoubleVector sum = DoubleVector.fromArray(SPECIES, b, b0 + j).mul(x0)
+                        .add(DoubleVector.fromArray(SPECIES, b, b1 + j).mul(x1))
+                        .add(DoubleVector.fromArray(SPECIES, b, b2 + j).mul(x2))
+                        .add(DoubleVector.fromArray(SPECIES, b, b3 + j).mul(x3));
+                DoubleVector.fromArray(SPECIES, c, c_row + j).add(sum).intoArray(c, c_row + j);
+            }
+            for(; j < j_to; j++)
+                c[c_row + j] += x0 * b[b0 + j] + x1 * b[b1 + j] + x2 * b[b2 + j] + x3 * b[b3 + j];
+        }
+        for(; k < k_to; k++)
+        {
+            double x = a[a_row + k * a_step];
+            if(x == 0)
+                continue;
+            int b0 = b_offset + k * ldb;
+            int j = j_from;
+            for(; j < j_vector_end; j += SPECIES.length())
+            {
+                DoubleVector.fromArray(SPECIES, c, c_row + j).add(DoubleVector.fromArray(SPECIES, b, b0 + j).mul(x))
+                        .intoArray(c, c_row + j);
+            }
+            for(; j < j_to; j++)
+                c[c_row + j] += x * b[b0 + j];
+        }
+    }
+
+    @Override public String toString()
+    {
+        return "simd" + SPECIES.length();
+    }
+}
@@ -0,0 +1,83 @@
+package edu.spbu;
+
+import edu.spbu.matrix.Matrix;
+import edu.spbu.matrix.MatrixFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingMatrixGeneratorTest
+{
+  String[] fileNames = {"streaming_test.txt", "streaming_test_2.txt", "streaming_test.bin", "streaming_test_2.bin"};
+
+  @After
+  public void cleanUp() {
+    for (String fileName : fileNames) {
+      File f = new File(fileName);
+      if (f.exists())
+        f.delete();
+    }
+  }
+
+  @Test
+  public void testReproducible() throws Exception {
+    /* small blocks of rows, so several are in flight at once */
+    new StreamingMatrixGenerator(5, 3000, 700, 9).emptyRowFraction(3).parallelism(1).writeText(fileNames[0]);
+    new StreamingMatrixGenerator(5, 3000, 700, 9).emptyRowFraction(3).parallelism(4).writeText(fileNames[1]);
+    assertTrue(Arrays.equals(Files.readAllBytes(Paths.get(fileNames[0])), Files.readAllBytes(Paths.get(fileNames[1]))));
+
+    new StreamingMatrixGenerator(5, 3000, 700, 9).emptyRowFraction(3).parallelism(3).writeBinary(fileNames[2], true);
+    new StreamingMatrixGenerator(5, 3000, 700, 9).emptyRowFraction(3).writeBinary(fileNames[3], false);
+    Matrix text = MatrixFactory.load(fileNames[0]);
+    assertEquals(text, MatrixFactory.load(fileNames[2]));
+    assertEquals(text, MatrixFactory.load(fileNames[3]));
+
+    int emptyRows = 0;
+    for (int i = 0; i < 3000; i++) {
+      int nnz = 0;
+      for (int j = 0; j < 700; j++)
+        if (text.get_entry(i, j) != 0)
+          nnz++;
+      if (nnz == 0)
+        emptyRows++;
+      else
+        assertEquals(9, nnz);
+    }
+    assertTrue(emptyRows > 1700 && emptyRows < 2300);
+  }
+
+  @Test
+  public void testColumnSkew() throws Exception {
+    new StreamingMatrixGenerator(7, 400, 100, 20).columnSkew(3).writeBinary(fileNames[2], true);
+    Matrix m = MatrixFactory.load(fileNames[2]);
+    int leading = 0;
+    for (int i = 0; i < 400; i++)
+      for (int j = 0; j < 10; j++)
+        if (m.get_entry(i, j) != 0)
+          leading++;
+    /* with skew 3 more than half of the picks land in the first tenth of the columns */
+    assertTrue(leading > 400 * 10 / 2);
+
+    /* rows more than half full are still exact, and full rows have every column */
+    new StreamingMatrixGenerator(7, 50, 100, 80).columnSkew(1).writeText(fileNames[0]);
+    new StreamingMatrixGenerator(7, 50, 30, 100).writeText(fileNames[1]);
+    Matrix dense = MatrixFactory.load(fileNames[0]);
+    Matrix full = MatrixFactory.load(fileNames[1]);
+    for (int i = 0; i < 50; i++) {
+      int nnz = 0;
+      for (int j = 0; j < 100; j++)
+        if (dense.get_entry(i, j) != 0)
+          nnz++;
+      assertEquals(80, nnz);
+      for (int j = 0; j < 30; j++)
+        assertTrue(full.get_entry(i, j) != 0);
+    }
+  }
+}
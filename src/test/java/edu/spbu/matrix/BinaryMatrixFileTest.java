@@ -0,0 +1,52 @@
+package edu.spbu.matrix;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryMatrixFileTest
+{
+  String fileName = "binary_test.bin";
+
+  @After
+  public void cleanUp() {
+    File f = new File(fileName);
+    if (f.exists())
+      f.delete();
+  }
+
+  @Test
+  public void testDenseConversion() throws Exception {
+    BinaryMatrixFile.convert_text("m1.txt", fileName, false);
+    assertTrue(BinaryMatrixFile.is_binary(fileName));
+    assertFalse(BinaryMatrixFile.is_binary("m1.txt"));
+    DenseMatrix expected = new DenseMatrix("m1.txt");
+    assertEquals(expected, new DenseMatrix(fileName));
+    assertEquals(new SparseMatrix("m1.txt"), new SparseMatrix(fileName));
+    assertEquals(8 * 100 * 100 + 32, new File(fileName).length());
+  }
+
+  @Test
+  public void testSparseConversion() throws Exception {
+    BinaryMatrixFile.convert_text("m2.txt", fileName, true);
+    SparseMatrix expected = new SparseMatrix("m2.txt");
+    assertEquals(expected, new SparseMatrix(fileName));
+    assertEquals(new DenseMatrix("m2.txt"), new DenseMatrix(fileName));
+  }
+
+  @Test
+  public void testWriteBinary() throws Exception {
+    Matrix m1 = new SparseMatrix("m1.txt");
+    Matrix m2 = new SparseMatrix("m2.txt");
+    ((SparseMatrix) m1.mul(m2)).write_binary(fileName);
+    assertEquals(new DenseMatrix("result.txt"), new DenseMatrix(fileName));
+
+    new DenseMatrix("result.txt").write_binary(fileName);
+    assertEquals(new SparseMatrix("result.txt"), new SparseMatrix(fileName));
+  }
+}
@@ -0,0 +1,38 @@
+package edu.spbu.matrix;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+public class DenseKernelsTest
+{
+  @Test
+  public void testRowKernelsAgree() {
+    /* whichever kernel the JVM picked gives the bits of the scalar one, in both layouts of a
+       and on sizes that leave vector tails and blocks of every width */
+    Random rnd = new Random(1);
+    for (int[] size : new int[][]{{1, 1, 1}, {7, 3, 5}, {70, 261, 531}, {33, 1, 17}}) {
+      int rows = size[0], inner = size[1], cols = size[2];
+      double[] a = new double[rows * inner];
+      double[] b = new double[inner * cols];
+      for (int x = 0; x < a.length; x++)
+        a[x] = rnd.nextInt(4) == 0 ? 0 : rnd.nextDouble();
+      for (int x = 0; x < b.length; x++)
+        b[x] = rnd.nextDouble();
+      for (boolean column_major : new boolean[]{false, true}) {
+        int a_row = column_major ? 1 : inner;
+        int a_col = column_major ? rows : 1;
+        double[] expected = new double[rows * cols];
+        double[] actual = new double[rows * cols];
+        DenseKernels.multiply(DenseKernels.SCALAR, a, 0, a_row, a_col, b, 0, cols, 1, expected, 0, cols, inner,
+                0, rows, 0, cols);
+        DenseKernels.multiply(DenseKernels.ROW_KERNEL, a, 0, a_row, a_col, b, 0, cols, 1, actual, 0, cols, inner,
+                0, rows, 0, cols);
+        assertTrue(DenseKernels.row_kernel_name() + " " + Arrays.toString(size), Arrays.equals(expected, actual));
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package edu.spbu.matrix;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static edu.spbu.matrix.TestMatrices.random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DistributedMultiplyTest
+{
+  @Test
+  public void testWorkerProcesses() throws Exception {
+    DenseMatrix a = random(101, 77, 1);
+    DenseMatrix b = random(77, 93, 2);
+    Matrix expected = a.mul(b);
+    List<Process> processes = new ArrayList<>();
+    try {
+      List<InetSocketAddress> workers = new ArrayList<>();
+      for (int w = 0; w < 2; w++) {
+        Process p = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"), BlockWorker.class.getName(), "0")
+                .redirectErrorStream(true).start();
+        processes.add(p);
+        String line = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine();
+        assertTrue(line, line != null && line.startsWith("BlockWorker listening on "));
+        int port = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+        workers.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      }
+
+      /* four blocks on two workers, panels that do not divide the inner dimension */
+      DistributedMultiply distributed = new DistributedMultiply(workers, 2, 2);
+      distributed.set_panel_width(16);
+      assertEquals(expected, distributed.multiply(a, b));
+      assertEquals(expected, distributed.multiply(MatrixFactory.to_sparse(a), b.transpose().transpose()));
+
+      distributed = new DistributedMultiply(workers);
+      assertEquals(1, distributed.get_grid_rows());
+      assertEquals(2, distributed.get_grid_cols());
+      distributed.set_parallel(false);
+      try (OffHeapDenseMatrix o = OffHeapDenseMatrix.copy_of(a)) {
+        Matrix product = distributed.multiply(o, b);
+        assertTrue(product instanceof OffHeapDenseMatrix);
+        assertEquals(expected, product);
+        ((OffHeapDenseMatrix) product).close();
+      }
+    }
+    finally {
+      for (Process p : processes)
+        p.destroy();
+    }
+  }
+
+  @Test
+  public void testFailures() throws Exception {
+    DenseMatrix a = random(10, 20, 3);
+    /* closed halfway through, so not held in try-with-resources */
+    BlockWorker worker = new BlockWorker(0);
+    try {
+      worker.start();
+      List<InetSocketAddress> workers = Arrays.asList(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                                            worker.get_port()));
+      DistributedMultiply distributed = new DistributedMultiply(workers);
+      assertEquals(a.mul(a.transpose()), distributed.multiply(a, a.transpose()));
+
+      /* the 10x10 block and two pairs of 10x20 panels take 7200 bytes */
+      worker.set_memory_limit(7199);
+      try {
+        distributed.multiply(a, a.transpose());
+        fail();
+      }
+      catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("needs 7200 bytes"));
+      }
+      worker.set_memory_limit(7200);
+      assertEquals(a.mul(a.transpose()), distributed.multiply(a, a.transpose()));
+
+      try {
+        distributed.multiply(a, a);
+        fail();
+      }
+      catch (IllegalArgumentException e) {
+        assertEquals("Cannot multiply 10*20 matrix by 10*20matrix", e.getMessage());
+      }
+      worker.close();
+      try {
+        distributed.multiply(a, a.transpose());
+        fail();
+      }
+      catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Worker " + workers.get(0)));
+      }
+    }
+    finally {
+      worker.close();
+    }
+  }
+}
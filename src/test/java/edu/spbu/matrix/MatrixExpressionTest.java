@@ -0,0 +1,86 @@
+package edu.spbu.matrix;
+
+import org.junit.Test;
+
+import static edu.spbu.matrix.TestMatrices.random;
+import static edu.spbu.matrix.TestMatrices.randomSparse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MatrixExpressionTest
+{
+  @Test
+  public void testChainOrder() {
+    DenseMatrix a = random(300, 4, 1, -5, 5, 1);
+    DenseMatrix b = random(4, 300, 1, -5, 5, 2);
+    DenseMatrix c = random(300, 4, 1, -5, 5, 3);
+    /* (A B) C needs 300*4*300 + 300*300*4 multiply-adds, A (B C) only 4*300*4 + 300*4*4 */
+    assertEquals(0, MatrixExpression.chain_order(new Matrix[]{a, b, c})[0][2]);
+    assertEquals(1, MatrixExpression.chain_order(new Matrix[]{b, c, b})[0][2]);
+
+    Matrix expected = a.mul(b).mul(c);
+    assertEquals(expected, MatrixExpression.of(a).mul(b).mul(c).evaluate());
+    assertEquals(expected, MatrixExpression.of(a).mul(MatrixExpression.of(b).mul(c)).evaluate(true));
+
+    /* two sparse factors are cheaper to multiply first than the dense ones they sit between */
+    SparseMatrix s = randomSparse(300, 300, 6, -3, 4, 4);
+    DenseMatrix d = random(300, 300, 1, -5, 5, 11);
+    assertEquals(1, MatrixExpression.chain_order(new Matrix[]{d, s, s})[0][2]);
+    assertEquals(d.mul(s).mul(s), MatrixExpression.of(d).mul(s).mul(s).evaluate());
+  }
+
+  @Test
+  public void testSumsAndScaling() {
+    DenseMatrix a = random(40, 30, 1, -5, 5, 5);
+    DenseMatrix b = random(30, 50, 1, -5, 5, 6);
+    SparseMatrix s = randomSparse(40, 50, 6, -3, 4, 7);
+    SparseMatrix t = randomSparse(50, 50, 6, -3, 4, 8);
+    DenseMatrix expected = new DenseMatrix(40, 50);
+    Matrix ab = a.mul(b);
+    Matrix st = s.mul(t);
+    for (int i = 0; i < 40; i++)
+      for (int j = 0; j < 50; j++)
+        expected.set_entry(i, j, 2 * ab.get_entry(i, j) - 0.5 * st.get_entry(i, j) + 3 * s.get_entry(i, j));
+
+    MatrixExpression e = MatrixExpression.of(a).scale(4).mul(b).scale(0.5)
+        .add(MatrixExpression.of(s).mul(t).scale(-0.5).add(MatrixExpression.of(s).scale(3)));
+    assertEquals(40, e.get_row_count());
+    assertEquals(50, e.get_col_count());
+    assertEquals(expected, e.evaluate());
+    assertEquals(expected, e.evaluate(true));
+
+    /* sums of sparse operands stay sparse and drop entries that cancel out */
+    Matrix zero = MatrixExpression.of(s).add(MatrixExpression.of(s).scale(-1)).evaluate();
+    assertTrue(zero instanceof SparseMatrix);
+    assertEquals(0, ((SparseMatrix) zero).get_nnz());
+
+    /* a bare operand is returned as it is, a scaled one is copied */
+    assertSame(s, MatrixExpression.of(s).evaluate());
+    Matrix doubled = MatrixExpression.of(s.transpose()).scale(2).evaluate();
+    assertEquals(2 * s.get_entry(3, 4), doubled.get_entry(4, 3), 0);
+    assertEquals(MatrixExpression.of(s).add(s).evaluate().transpose(), doubled);
+  }
+
+  @Test
+  public void testSharedBuffers() {
+    /* a chain long enough for the dense intermediates to be recycled */
+    DenseMatrix a = random(60, 60, 1, -5, 5, 9);
+    DenseMatrix b = random(60, 60, 1, -5, 5, 10);
+    MatrixExpression e = MatrixExpression.of(a);
+    Matrix expected = a;
+    for (int n = 0; n < 5; n++) {
+      e = e.mul(n % 2 == 0 ? b : a).scale(0.5);
+      expected = expected.mul(n % 2 == 0 ? b : a);
+    }
+    Matrix actual = e.evaluate();
+    for (int i = 0; i < 60; i++)
+      for (int j = 0; j < 60; j++)
+        assertEquals(expected.get_entry(i, j) / 32, actual.get_entry(i, j), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDimensionMismatch() {
+    MatrixExpression.of(new DenseMatrix(2, 3)).add(new SparseMatrix(3, 2));
+  }
+}
@@ -0,0 +1,125 @@
+package edu.spbu.matrix;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import static edu.spbu.matrix.TestMatrices.random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MatrixFactoryTest
+{
+  String fileName = "factory_test.txt";
+  String binaryName = "factory_test.bin";
+
+  @After
+  public void cleanUp() {
+    for (String name : new String[]{fileName, binaryName}) {
+      File f = new File(name);
+      if (f.exists())
+        f.delete();
+    }
+  }
+
+  @Test
+  public void testLoadPicksRepresentation() throws IOException {
+    /* 40 dense rows followed by 360 empty ones: the loader switches to dense, then back */
+    write(400, 50, 40, 1.0);
+    Matrix m = MatrixFactory.load(fileName);
+    assertTrue(m instanceof SparseMatrix);
+    assertEquals(new DenseMatrix(fileName), m);
+
+    write(100, 50, 100, 0.5);
+    m = MatrixFactory.load(fileName);
+    assertTrue(m instanceof DenseMatrix);
+    assertEquals(new SparseMatrix(fileName), m);
+
+    write(100, 50, 100, 0.05);
+    m = MatrixFactory.load(fileName);
+    assertTrue(m instanceof SparseMatrix);
+    assertEquals(new DenseMatrix(fileName), m);
+
+    /* binary files of either kind */
+    new SparseMatrix(fileName).write_binary(binaryName);
+    assertTrue(MatrixFactory.load(binaryName) instanceof SparseMatrix);
+    new DenseMatrix(fileName).write_binary(binaryName);
+    assertTrue(MatrixFactory.load(binaryName) instanceof SparseMatrix);
+    assertEquals(m, MatrixFactory.load(binaryName));
+    double threshold = MatrixFactory.get_dense_threshold();
+    MatrixFactory.set_dense_threshold(0.01);
+    try {
+      assertTrue(MatrixFactory.load(binaryName) instanceof DenseMatrix);
+      new SparseMatrix(fileName).write_binary(binaryName);
+      assertTrue(MatrixFactory.load(binaryName) instanceof DenseMatrix);
+    } finally {
+      MatrixFactory.set_dense_threshold(threshold);
+    }
+  }
+
+  @Test
+  public void testChoose() {
+    DenseMatrix d = new DenseMatrix(20, 20);
+    d.set_entry(3, 4, 1);
+    Matrix s = MatrixFactory.choose(d);
+    assertTrue(s instanceof SparseMatrix);
+    assertEquals(d, s);
+    assertSame(s, MatrixFactory.choose(s));
+    for (int i = 0; i < 10; i++)
+      for (int j = 0; j < 20; j++)
+        d.set_entry(i, j, 2);
+    assertSame(d, MatrixFactory.choose(d));
+  }
+
+  @Test
+  public void testMixedProductFormat() {
+    DenseMatrix d = random(200, 200, 1, -4, 5, 1);
+    /* one nonempty row and one nonempty column: both products are almost empty */
+    SparseMatrix row = new SparseMatrix(200, 200);
+    SparseMatrix col = new SparseMatrix(200, 200);
+    for (int k = 0; k < 200; k += 7) {
+      row.set_entry(5, k, k - 100);
+      col.set_entry(k, 9, 100 - k);
+    }
+    DenseMatrix rowDense = MatrixFactory.to_dense(row);
+    DenseMatrix colDense = MatrixFactory.to_dense(col);
+    int parallelism = ParallelEngine.get_parallelism();
+    ParallelEngine.set_parallelism(4);
+    try {
+      for (boolean parallel : new boolean[]{false, true}) {
+        Matrix sd = parallel ? row.dmul(d) : row.mul(d);
+        Matrix ds = parallel ? d.dmul(col) : d.mul(col);
+        assertTrue(sd instanceof SparseMatrix);
+        assertTrue(ds instanceof SparseMatrix);
+        assertEquals(rowDense.mul(d), sd);
+        assertEquals(d.mul(colDense), ds);
+        assertEquals(d.transpose().mul(colDense), d.transpose().mul(col));
+        assertEquals(rowDense.mul(d.transpose()), parallel ? row.dmul(d.transpose()) : row.mul(d.transpose()));
+      }
+      /* a full sparse operand keeps the product dense */
+      assertTrue(MatrixFactory.to_sparse(d).mul(d) instanceof DenseMatrix);
+    } finally {
+      ParallelEngine.set_parallelism(parallelism);
+    }
+  }
+
+  private void write(int rows, int cols, int filledRows, double density) throws IOException {
+    Random rnd = new Random(rows + filledRows);
+    try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+      for (int i = 0; i < rows; i++) {
+        StringBuilder line = new StringBuilder();
+        for (int j = 0; j < cols; j++) {
+          boolean nonzero = i < filledRows && rnd.nextDouble() < density;
+          line.append(nonzero ? rnd.nextInt(100) + 1 : 0).append(j + 1 < cols ? " " : "");
+        }
+        out.println(line);
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package edu.spbu.matrix;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MatrixJobsTest
+{
+  String fileName = "jobs_test.bin";
+
+  @After
+  public void cleanUp() {
+    File f = new File(fileName);
+    if (f.exists())
+      f.delete();
+  }
+
+  @Test
+  public void testPipeline() throws Exception {
+    Matrix expected = new DenseMatrix("m1.txt").mul(new DenseMatrix("m2.txt"));
+    String written = MatrixJobs.product_async(MatrixJobs.load_async("m1.txt"), MatrixJobs.load_sparse_async("m2.txt"), true)
+        .thenCompose(c -> MatrixJobs.write_async(c, fileName))
+        .get();
+    assertEquals(fileName, written);
+    assertEquals(expected, MatrixJobs.load_dense_async(fileName).get());
+
+    AtomicInteger runs = new AtomicInteger();
+    Executor counting = r -> {
+      runs.incrementAndGet();
+      new Thread(r).start();
+    };
+    DenseMatrix m1 = new DenseMatrix("m1.txt");
+    assertEquals(expected, m1.mul_async(new SparseMatrix("m2.txt"), counting).get());
+    assertEquals(expected, m1.dmul_async(new DenseMatrix("m2.txt")).get());
+    assertEquals(1, runs.get());
+
+    /* any Matrix is written, here a transposed view */
+    MatrixJobs.write_async(m1.transpose(), fileName).get();
+    assertEquals(m1.transpose(), MatrixJobs.load_async(fileName).get());
+  }
+
+  @Test
+  public void testFailures() {
+    CompletableFuture<Matrix> product = MatrixJobs.product_async(MatrixJobs.load_async("no_such_matrix.txt"),
+        MatrixJobs.load_async("m2.txt"), false);
+    try {
+      product.join();
+      fail();
+    }
+    catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    try {
+      new DenseMatrix(2, 3).mul_async(new DenseMatrix(2, 3)).join();
+      fail();
+    }
+    catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package edu.spbu.matrix;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import static org.junit.Assert.assertEquals;
+
+public class MatrixLoaderTest
+{
+  String fileName = "loader_test.txt";
+
+  @After
+  public void cleanUp() {
+    File f = new File(fileName);
+    if (f.exists())
+      f.delete();
+  }
+
+  private void write(String contents) throws IOException {
+    try (PrintWriter out = new PrintWriter(fileName)) {
+      out.print(contents);
+    }
+  }
+
+  @Test
+  public void testNumberFormats() throws Exception {
+    String[] tokens = {"0", "-0", "12", "-7", "9661652.0", "0.05", ".5", "1.", "1e3", "-2.5E-3", "+4", "00012",
+            "123456789012345678", "1234567890.123456789", "3.14159265358979323846", "9007199254740993",
+            "123456789012345e-23", "4.9e-324", "1.7976931348623157e308"};
+    StringBuilder contents = new StringBuilder();
+    for (String token : tokens)
+      contents.append(token).append(" \r\n");
+    write(contents.toString());
+
+    DenseMatrix dense = new DenseMatrix(fileName);
+    SparseMatrix sparse = new SparseMatrix(fileName);
+    assertEquals(tokens.length, dense.get_row_count());
+    assertEquals(1, dense.get_col_count());
+    for (int i = 0; i < tokens.length; i++) {
+      assertEquals(tokens[i], Double.parseDouble(tokens[i]), dense.get_entry(i, 0), 0);
+      assertEquals(tokens[i], Double.parseDouble(tokens[i]), sparse.get_entry(i, 0), 0);
+    }
+    assertEquals(tokens.length - 2, sparse.get_nnz());
+  }
+
+  @Test
+  public void testBlankLineEndsMatrix() throws Exception {
+    write("1 0 2\n0  0 0\n3 4 0  \n\n5 6 7\n");
+    DenseMatrix dense = new DenseMatrix(fileName);
+    SparseMatrix sparse = new SparseMatrix(fileName);
+    assertEquals(3, dense.get_row_count());
+    assertEquals(3, dense.get_col_count());
+    assertEquals(4.0, dense.get_entry(2, 1), 0);
+    assertEquals(dense, sparse);
+    assertEquals(4, sparse.get_nnz());
+  }
+
+  @Test(expected = IOException.class)
+  public void testByteFF() throws Exception {
+    /* 0xFF is not the end of the file */
+    try (FileOutputStream out = new FileOutputStream(fileName)) {
+      out.write(new byte[]{'1', ' ', '2', '\n', (byte) 0xFF, ' ', '3', '\n'});
+    }
+    MatrixLoader.load(fileName, new CsrBuilder(2, 6));
+  }
+
+  @Test(expected = IOException.class)
+  public void testRaggedRow() throws Exception {
+    write("1 2 3\n4 5\n");
+    MatrixLoader.load(fileName, new CsrBuilder(2, 6));
+  }
+}
@@ -0,0 +1,146 @@
+package edu.spbu.matrix;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MatrixMetricsTest
+{
+  @Test
+  public void testListener() {
+    DenseMatrix d = new DenseMatrix(3, 4);
+    SparseMatrix s = new SparseMatrix(4, 5);
+    for (int i = 0; i < 3; i++)
+      for (int j = 0; j < 4; j++)
+        d.set_entry(i, j, i + j + 1);
+    s.set_entry(0, 1, 2);
+    s.set_entry(3, 4, -1);
+    List<OperationRecord> records = new ArrayList<>();
+    MatrixMetrics.Listener listener = records::add;
+    MatrixMetrics.add_listener(listener);
+    try {
+      d.mul(s);
+      assertTrue(records.isEmpty());
+
+      MatrixMetrics.set_enabled(true);
+      Matrix product = d.mul(s);
+      d.mul_vector(new double[4], new double[3]);
+      assertEquals(2, records.size());
+      OperationRecord r = records.get(0);
+      assertEquals("mul", r.get_operation());
+      assertEquals("dense*csr->" + (product instanceof SparseMatrix ? "csr" : "dense"), r.get_kernel());
+      assertEquals(3, r.get_left_rows());
+      assertEquals(4, r.get_left_cols());
+      assertEquals(12, r.get_left_nnz());
+      assertEquals(4, r.get_right_rows());
+      assertEquals(5, r.get_right_cols());
+      assertEquals(2, r.get_right_nnz());
+      /* every row of d meets both nonzeros of s */
+      assertEquals(2 * 3 * 2, r.get_flops());
+      assertEquals(1, r.get_parallelism());
+      assertEquals(1, r.get_partitions());
+      assertEquals(MatrixMetrics.storage_bytes(product), r.get_result_bytes());
+      assertEquals(r.get_result_bytes() + r.get_scratch_bytes(), r.get_bytes_allocated());
+      assertTrue(r.get_nanos() >= 0);
+
+      OperationRecord v = records.get(1);
+      assertEquals("mul_vectors", v.get_operation());
+      assertEquals(2 * 12, v.get_flops());
+    }
+    finally {
+      MatrixMetrics.set_enabled(false);
+      MatrixMetrics.remove_listener(listener);
+    }
+  }
+
+  @Test
+  public void testUsage() {
+    DenseMatrix d = new DenseMatrix(512, 512);
+    for (int i = 0; i < 512; i++)
+      d.set_entry(i, (i * 7) % 512, i + 1);
+    SparseMatrix s = MatrixFactory.to_sparse(d).transpose();
+    List<OperationRecord> records = new ArrayList<>();
+    MatrixMetrics.Listener listener = records::add;
+    MatrixMetrics.add_listener(listener);
+    int parallelism = ParallelEngine.get_parallelism();
+    int cutoff = StrassenKernel.get_cutoff();
+    ParallelEngine.set_parallelism(4);
+    StrassenKernel.set_cutoff(128);
+    MatrixMetrics.set_enabled(true);
+    try {
+      d.dmul(d);
+      s.dmul_vector(new double[512], new double[512]);
+      assertEquals(2, records.size());
+
+      /* two Strassen levels: 256^2 and 128^2 scratch quadrants, two of each */
+      OperationRecord r = records.get(0);
+      assertEquals("strassen", r.get_kernel());
+      assertTrue(r.get_partitions() > 1);
+      assertTrue(r.get_parallelism() >= 1 && r.get_parallelism() <= 4);
+      assertTrue(r.get_scratch_bytes() >= 16L * (256 * 256 + 128 * 128));
+      assertEquals(8L * 512 * 512, r.get_result_bytes());
+
+      /* the CSC view is recompressed into a CSR companion before its rows are split */
+      OperationRecord v = records.get(1);
+      assertEquals("dmul_vectors", v.get_operation());
+      assertTrue(v.get_partitions() > 1);
+      assertTrue(v.get_scratch_bytes() >= 12L * s.get_nnz());
+      assertEquals(0, v.get_result_bytes());
+    }
+    finally {
+      MatrixMetrics.set_enabled(false);
+      MatrixMetrics.remove_listener(listener);
+      StrassenKernel.set_cutoff(cutoff);
+      ParallelEngine.set_parallelism(parallelism);
+    }
+  }
+
+  @Test
+  public void testListenerFailure() {
+    DenseMatrix d = new DenseMatrix(2, 2);
+    MatrixMetrics.Listener listener = r -> {
+      throw new IllegalStateException("broken listener");
+    };
+    MatrixMetrics.add_listener(listener);
+    MatrixMetrics.set_enabled(true);
+    try {
+      MatrixMetrics.totals().reset();
+      d.mul(d);
+      d.mul(d);
+      assertEquals(2, MatrixMetrics.totals().getOperationCount());
+      assertEquals(2, MatrixMetrics.totals().getListenerFailures());
+    }
+    finally {
+      MatrixMetrics.set_enabled(false);
+      MatrixMetrics.remove_listener(listener);
+      MatrixMetrics.totals().reset();
+    }
+  }
+
+  @Test
+  public void testJmx() throws Exception {
+    SparseMatrix a = new SparseMatrix(10, 10);
+    for (int i = 0; i < 10; i++)
+      a.set_entry(i, (i * 3) % 10, i + 1);
+    MatrixMetrics.set_enabled(true);
+    try {
+      MatrixMetrics.totals().reset();
+      a.mul(a);
+      a.dmul(a);
+      ObjectName name = new ObjectName(MatrixMetrics.OBJECT_NAME);
+      assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "OperationCount"));
+      assertEquals(40L, MatrixMetrics.totals().getTotalFlops());
+      assertEquals(Long.valueOf(2), MatrixMetrics.totals().getOperationsByKernel().get("csr*csr->csr"));
+    }
+    finally {
+      MatrixMetrics.set_enabled(false);
+      MatrixMetrics.totals().reset();
+    }
+  }
+}
@@ -2,7 +2,13 @@ package edu.spbu.matrix;
 
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Random;
+
+import static edu.spbu.matrix.TestMatrices.random;
+import static edu.spbu.matrix.TestMatrices.randomSparse;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class MatrixTest
 {
@@ -38,6 +44,54 @@ public class MatrixTest
       SparseMatrix actual = (SparseMatrix) m1.mul(m2);
       assertEquals(expected, actual);
   }
+  @Test
+  public void mulDDRectangular() {
+      /* dimensions that do not line up with the kernel blocks */
+      DenseMatrix m1 = random(70, 263, 1);
+      DenseMatrix m2 = random(263, 517, 2);
+      DenseMatrix expected = new DenseMatrix(70, 517);
+      for (int i = 0; i < 70; i++)
+          for (int j = 0; j < 517; j++)
+              for (int k = 0; k < 263; k++)
+                  expected.add_to_entry(i, j, m1.get_entry(i, k) * m2.get_entry(k, j));
+      assertEquals(expected, m1.mul(m2));
+  }
+  @Test
+  public void sparseUpdates() {
+      SparseMatrix m = new SparseMatrix(3, 4);
+      m.set_entry(1, 2, 5);
+      m.set_entry(1, 0, 3);
+      m.set_entry(0, 3, 1);
+      m.add_to_entry(2, 1, 4);
+      m.add_to_entry(1, 2, -5); /* cancels out, the entry must disappear */
+      m.set_entry(0, 3, 0);
+      assertEquals(2, m.get_nnz());
+      assertEquals(3.0, m.get_entry(1, 0), 0);
+      assertEquals(0.0, m.get_entry(1, 2), 0);
+      assertEquals(4.0, m.get_entry(2, 1), 0);
+      DenseMatrix expected = new DenseMatrix(3, 4);
+      expected.set_entry(1, 0, 3);
+      expected.set_entry(2, 1, 4);
+      assertEquals(expected, m);
+  }
+  @Test
+  public void mulSSRectangular() {
+      /* small signed values so that some products cancel out */
+      SparseMatrix m1 = randomSparse(40, 70, 8, -3, 4, 3);
+      SparseMatrix m2 = randomSparse(70, 55, 8, -3, 4, 4);
+      DenseMatrix expected = new DenseMatrix(40, 55);
+      int nnz = 0;
+      for (int i = 0; i < 40; i++)
+          for (int j = 0; j < 55; j++) {
+              for (int k = 0; k < 70; k++)
+                  expected.add_to_entry(i, j, m1.get_entry(i, k) * m2.get_entry(k, j));
+              if (expected.get_entry(i, j) != 0)
+                  nnz++;
+          }
+      SparseMatrix actual = (SparseMatrix) m1.mul(m2);
+      assertEquals(expected, actual);
+      assertEquals(nnz, actual.get_nnz());
+  }
   /* parallel multiplication tests */
   @Test
   public void dmulDD() {
@@ -70,4 +124,194 @@ public class MatrixTest
       SparseMatrix actual = (SparseMatrix) m1.dmul(m2);
       assertEquals(expected, actual);
   }
+
+  @Test
+  public void dmulSplitsWork() {
+      int parallelism = ParallelEngine.get_parallelism();
+      ParallelEngine.set_parallelism(4);
+      try {
+          DenseMatrix d1 = random(100, 300, 5);
+          DenseMatrix d2 = random(300, 1100, 6);
+          assertEquals(d1.mul(d2), d1.dmul(d2));
+          SparseMatrix s1 = randomSparse(100, 300, 8, -3, 4, 7);
+          SparseMatrix s2 = randomSparse(300, 1100, 8, -3, 4, 8);
+          assertEquals(s1.mul(s2), s1.dmul(s2));
+          assertEquals(s1.mul(d2), s1.dmul(d2));
+          assertEquals(d1.mul(s2), d1.dmul(s2));
+      } finally {
+          ParallelEngine.set_parallelism(parallelism);
+      }
+  }
+
+  @Test
+  public void mulMixedRectangular() {
+      DenseMatrix d1 = random(70, 263, 3);
+      SparseMatrix s1 = randomSparse(70, 263, 8, -3, 4, 4);
+      DenseMatrix d2 = random(263, 150, 5);
+      SparseMatrix s2 = randomSparse(263, 150, 8, -3, 4, 6);
+      DenseMatrix s1Dense = new DenseMatrix(70, 263);
+      DenseMatrix s2Dense = new DenseMatrix(263, 150);
+      s1.scatter_into(s1Dense);
+      s2.scatter_into(s2Dense);
+      assertEquals(d1.mul(s2Dense), d1.mul(s2));
+      assertEquals(s1Dense.mul(d2), s1.mul(d2));
+  }
+
+  @Test
+  public void dmulSkewedSparse() {
+      /* the first rows hold almost all of the work, the rest are nearly empty */
+      SparseMatrix s1 = new SparseMatrix(2000, 400);
+      SparseMatrix s2 = randomSparse(400, 500, 8, -3, 4, 11);
+      Random rnd = new Random(12);
+      for (int i = 0; i < 2000; i++)
+          for (int k = 0; k < (i < 10 ? 400 : 1); k++)
+              s1.set_entry(i, rnd.nextInt(400), rnd.nextInt(7) - 3);
+
+      long[] prefix = {0, 100, 100, 101, 102, 103, 104, 105, 106, 107, 108};
+      int[] bounds = ParallelEngine.balanced_bounds(prefix, 4);
+      assertEquals(0, bounds[0]);
+      assertEquals(1, bounds[1]);
+      assertEquals(10, bounds[bounds.length - 1]);
+
+      int parallelism = ParallelEngine.get_parallelism();
+      ParallelEngine.set_parallelism(4);
+      try {
+          assertEquals(s1.mul(s2), s1.dmul(s2));
+          assertEquals(new SparseMatrix(0, 500), new SparseMatrix(0, 400).dmul(s2));
+      } finally {
+          ParallelEngine.set_parallelism(parallelism);
+      }
+  }
+
+  @Test
+  public void mulStrassen() {
+      int cutoff = StrassenKernel.get_cutoff();
+      int parallelism = ParallelEngine.get_parallelism();
+      ParallelEngine.set_parallelism(4);
+      try {
+          for (int n : new int[]{96, 77}) {
+              DenseMatrix m1 = random(n, n, n);
+              DenseMatrix m2 = random(n, n, n + 1);
+              StrassenKernel.set_cutoff(0);
+              Matrix expected = m1.mul(m2);
+              StrassenKernel.set_cutoff(16);
+              assertEquals(expected, m1.mul(m2));
+              assertEquals(expected, m1.dmul(m2));
+          }
+      } finally {
+          StrassenKernel.set_cutoff(cutoff);
+          ParallelEngine.set_parallelism(parallelism);
+      }
+  }
+
+  @Test
+  public void transposeViews() {
+      DenseMatrix d = random(3, 5, 13);
+      SparseMatrix s = randomSparse(3, 5, 8, -3, 4, 14);
+      DenseMatrix dt = d.transpose();
+      SparseMatrix st = s.transpose();
+      assertEquals(5, dt.get_row_count());
+      assertEquals(3, st.get_col_count());
+      assertSame(d.raw_entries(), dt.raw_entries());
+      assertSame(s.raw_values(), st.raw_col_values());
+      for (int i = 0; i < 3; i++)
+          for (int j = 0; j < 5; j++) {
+              assertEquals(d.get_entry(i, j), dt.get_entry(j, i), 0);
+              assertEquals(s.get_entry(i, j), st.get_entry(j, i), 0);
+          }
+      assertEquals(d, dt.transpose());
+      assertEquals(s, st.transpose());
+      try (OffHeapDenseMatrix o = OffHeapDenseMatrix.copy_of(d)) {
+          assertEquals(dt, o.transpose());
+          assertSame(o, o.transpose().transpose());
+          assertEquals(dt.mul(d), o.transpose().mul(d));
+      }
+
+      /* updates copy the shared storage first, the other side keeps its entries */
+      double before = d.get_entry(2, 4);
+      dt.set_entry(4, 2, before + 1);
+      assertEquals(before, d.get_entry(2, 4), 0);
+      st.add_to_entry(4, 2, 7);
+      st.set_entry(0, 0, 0);
+      assertEquals(s.get_entry(2, 4) + 7, st.get_entry(4, 2), 0);
+      s.set_entry(1, 1, 9);
+      assertEquals(9, s.get_entry(1, 1), 0);
+      assertEquals(9, s.transpose().get_entry(1, 1), 0);
+  }
+
+  @Test
+  public void mulTransposed() {
+      /* every layout combination against products of explicit copies */
+      int parallelism = ParallelEngine.get_parallelism();
+      ParallelEngine.set_parallelism(4);
+      try {
+          Matrix[] left = {random(263, 70, 15), randomSparse(263, 70, 8, -3, 4, 16)};
+          Matrix[] right = {random(150, 263, 17), randomSparse(150, 263, 8, -3, 4, 18)};
+          for (Matrix a : left)
+              for (Matrix b : right) {
+                  DenseMatrix at = copy(a.transpose());
+                  DenseMatrix bt = copy(b.transpose());
+                  DenseMatrix ab = copy(a);
+                  Matrix expected = at.mul(bt);
+                  assertEquals(expected, a.transpose().mul(b.transpose()));
+                  assertEquals(expected, a.transpose().dmul(b.transpose()));
+                  assertEquals(expected, a.transpose().mul(copy(bt)));
+                  assertEquals(expected, copy(at).dmul(b.transpose()));
+                  Matrix square = ab.mul(at);
+                  assertEquals(square, a.mul(a.transpose()));
+                  assertEquals(square, a.dmul(a.transpose()));
+                  assertEquals(square, a.transpose().transpose().dmul(at));
+              }
+          SparseMatrix s = randomSparse(263, 70, 8, -3, 4, 16);
+          assertEquals(copy(s.transpose()).mul(copy(s)), s.transpose().mul(s));
+          assertEquals(copy(s.transpose()).mul(copy(s)), s.transpose().dmul(s));
+      } finally {
+          ParallelEngine.set_parallelism(parallelism);
+      }
+  }
+
+  @Test
+  public void mulVectors() {
+      int parallelism = ParallelEngine.get_parallelism();
+      ParallelEngine.set_parallelism(4);
+      try {
+          DenseMatrix d = random(300, 170, 19);
+          SparseMatrix s = randomSparse(300, 170, 8, -3, 4, 20);
+          Matrix[] matrices = {d, s, d.transpose(), s.transpose(), s.transpose().transpose(), new TransposedMatrix(d)};
+          for (Matrix m : matrices)
+              for (int k : new int[]{1, 3, 24}) {
+                  DenseMatrix x = random(m.get_col_count(), k, k);
+                  Matrix expected = copy(m).mul(x);
+                  double[] xs = new double[m.get_col_count() * k];
+                  for (int c = 0; c < m.get_col_count(); c++)
+                      for (int v = 0; v < k; v++)
+                          xs[c * k + v] = x.get_entry(c, v);
+                  double[] y = new double[m.get_row_count() * k + 1];
+                  Arrays.fill(y, -1);
+                  for (boolean parallel : new boolean[]{false, true}) {
+                      if (k == 1)
+                          assertSame(y, parallel ? m.dmul_vector(xs, y) : m.mul_vector(xs, y));
+                      else
+                          assertSame(y, parallel ? m.dmul_vectors(xs, y, k) : m.mul_vectors(xs, y, k));
+                      assertEquals(-1, y[y.length - 1], 0);
+                      assertEquals(expected, new DenseMatrix(m.get_row_count(), k, Arrays.copyOf(y, y.length - 1)));
+                  }
+              }
+      } finally {
+          ParallelEngine.set_parallelism(parallelism);
+      }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void mulVectorTooShort() {
+      new SparseMatrix(3, 4).mul_vector(new double[3], new double[3]);
+  }
+
+  private static DenseMatrix copy(Matrix m) {
+      DenseMatrix result = new DenseMatrix(m.get_row_count(), m.get_col_count());
+      for (int i = 0; i < m.get_row_count(); i++)
+          for (int j = 0; j < m.get_col_count(); j++)
+              result.set_entry(i, j, m.get_entry(i, j));
+      return result;
+  }
 }
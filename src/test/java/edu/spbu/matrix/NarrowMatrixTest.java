@@ -0,0 +1,111 @@
+package edu.spbu.matrix;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static edu.spbu.matrix.TestMatrices.random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NarrowMatrixTest
+{
+  String fileName = "narrow_test.bin";
+
+  @After
+  public void cleanUp() {
+    File f = new File(fileName);
+    if (f.exists())
+      f.delete();
+  }
+
+  @Test
+  public void testLoad() throws Exception {
+    DenseMatrix expected = new DenseMatrix("m1.txt");
+    assertEquals(expected, IntDenseMatrix.load("m1.txt"));
+    assertEquals(expected, IntSparseMatrix.load("m1.txt"));
+    assertEquals(expected, LongSparseMatrix.load("m1.txt"));
+    assertEquals(expected, FloatDenseMatrix.load("m1.txt"));
+    new SparseMatrix("m1.txt").write_binary(fileName);
+    assertEquals(expected, FloatSparseMatrix.load(fileName));
+    assertEquals(expected, LongDenseMatrix.load(fileName));
+  }
+
+  @Test
+  public void testPromotion() {
+    DenseMatrix a = random(70, 90, 4, -100, 100, 1);
+    DenseMatrix b = random(90, 60, 3, -100, 100, 2);
+    Matrix expected = a.mul(b);
+    Matrix[] left = {IntDenseMatrix.of(a), IntSparseMatrix.of(a), LongDenseMatrix.of(a), LongSparseMatrix.of(a),
+                     FloatDenseMatrix.of(a), FloatSparseMatrix.of(a)};
+    Matrix[] right = {IntDenseMatrix.of(b), IntSparseMatrix.of(b), LongDenseMatrix.of(b), LongSparseMatrix.of(b),
+                      FloatDenseMatrix.of(b), FloatSparseMatrix.of(b)};
+    for (Matrix l : left) {
+      for (Matrix r : right) {
+        Matrix product = l.mul(r);
+        /* small integers: every product is exact whatever the type */
+        assertEquals(expected, product);
+        assertEquals(expected, l.dmul(r));
+        boolean integral = !(l instanceof FloatDenseMatrix || l instanceof FloatSparseMatrix
+                             || r instanceof FloatDenseMatrix || r instanceof FloatSparseMatrix);
+        boolean sparse = l instanceof NarrowSparseMatrix && r instanceof NarrowSparseMatrix;
+        if (integral)
+          assertTrue(sparse ? product instanceof LongSparseMatrix : product instanceof LongDenseMatrix);
+        else
+          assertTrue(sparse ? product instanceof FloatSparseMatrix : product instanceof FloatDenseMatrix);
+      }
+      /* a double operand on either side makes the product double */
+      Matrix promoted = l.mul(b);
+      assertEquals(expected, promoted);
+      assertTrue(promoted instanceof DenseMatrix || promoted instanceof SparseMatrix);
+
+      double[] x = new double[90 * 3];
+      for (int p = 0; p < x.length; p++)
+        x[p] = p % 7 - 3;
+      double[] y = a.mul_vectors(x, new double[70 * 3], 3);
+      assertTrue(Arrays.equals(y, l.mul_vectors(x, new double[70 * 3], 3)));
+      assertTrue(Arrays.equals(y, l.dmul_vectors(x, new double[70 * 3], 3)));
+    }
+    assertEquals(expected, a.dmul(right[0]));
+    assertEquals(expected, MatrixFactory.to_sparse(a).mul(right[5]));
+  }
+
+  @Test
+  public void testIntegralProductsAreExact() {
+    IntDenseMatrix a = new IntDenseMatrix(2, 2);
+    a.set_entry(0, 0, Integer.MAX_VALUE);
+    a.set_entry(0, 1, Integer.MAX_VALUE);
+    a.set_entry(1, 1, -3);
+    Matrix square = a.mul(a);
+    assertTrue(square instanceof LongDenseMatrix);
+    assertEquals((double) ((long) Integer.MAX_VALUE * Integer.MAX_VALUE), square.get_entry(0, 0), 0);
+    assertEquals((double) ((long) Integer.MAX_VALUE * Integer.MAX_VALUE - 3L * Integer.MAX_VALUE),
+                 square.get_entry(0, 1), 0);
+    assertEquals(9, square.get_entry(1, 1), 0);
+    assertEquals(0, square.get_entry(1, 0), 0);
+  }
+
+  @Test
+  public void testLongSumsWrapAround() {
+    /* sums beyond the long range wrap like Java long arithmetic, they are not checked */
+    LongDenseMatrix a = new LongDenseMatrix(1, 2, new long[]{Long.MAX_VALUE, 1});
+    LongDenseMatrix b = new LongDenseMatrix(2, 1, new long[]{1, 1});
+    Matrix c = a.mul(b);
+    assertTrue(c instanceof LongDenseMatrix);
+    assertEquals(Long.MIN_VALUE, ((LongDenseMatrix) c).raw_entries()[0]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIntRejectsFractions() {
+    DenseMatrix m = new DenseMatrix(1, 1);
+    m.set_entry(0, 0, 0.5);
+    IntSparseMatrix.of(m);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDimensionMismatch() {
+    new FloatDenseMatrix(2, 3).mul(new IntDenseMatrix(2, 3));
+  }
+}
@@ -0,0 +1,106 @@
+package edu.spbu.matrix;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+
+import static edu.spbu.matrix.TestMatrices.random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapDenseMatrixTest
+{
+  String fileName = "off_heap_test.bin";
+
+  @After
+  public void cleanUp() {
+    File f = new File(fileName);
+    if (f.exists())
+      f.delete();
+  }
+
+  @Test
+  public void testMulMixed() {
+    /* sizes cross the tile boundaries in every dimension */
+    DenseMatrix d1 = random(270, 300, 1);
+    DenseMatrix d2 = random(300, 1030, 2);
+    Matrix expected = d1.mul(d2);
+    SparseMatrix s1 = new SparseMatrix(270, 300);
+    SparseMatrix s2 = new SparseMatrix(300, 1030);
+    for (int i = 0; i < 300; i++)
+      for (int j = 0; j < 1030; j++) {
+        if (i < 270 && j < 300)
+          s1.set_entry(i, j, d1.get_entry(i, j));
+        s2.set_entry(i, j, d2.get_entry(i, j));
+      }
+
+    try (OffHeapDenseMatrix o1 = OffHeapDenseMatrix.copy_of(d1);
+         OffHeapDenseMatrix o2 = OffHeapDenseMatrix.copy_of(s2);
+         OffHeapDenseMatrix o3 = OffHeapDenseMatrix.copy_of(s1)) {
+      assertEquals(d1, o1);
+      assertEquals(o1, o3);
+      assertEquals(o1.hashCode(), o3.hashCode());
+      assertEquals(o2, s2);
+      assertEquals(expected, o1.mul(d2));
+      assertEquals(expected, d1.mul(o2));
+      assertEquals(expected, s1.mul(o2));
+      assertEquals(expected, o1.mul(s2));
+      assertEquals(expected, o1.dmul(o2));
+      assertEquals(expected, s1.dmul(o2));
+      assertTrue(d1.dmul(o2) instanceof OffHeapDenseMatrix);
+
+      /* products with generic views stay on the heap unless an operand is off-heap */
+      Matrix v1 = new TransposedMatrix(new TransposedMatrix(d1));
+      Matrix v2 = new TransposedMatrix(new TransposedMatrix(s2));
+      for (Matrix product : new Matrix[]{v1.mul(d2), v1.dmul(s2), d1.mul(v2), s1.dmul(v2)}) {
+        assertTrue(product instanceof DenseMatrix);
+        assertEquals(expected, product);
+      }
+      assertTrue(v1.dmul(o2) instanceof OffHeapDenseMatrix);
+      assertEquals(v1.hashCode(), new TransposedMatrix(new TransposedMatrix(d1)).hashCode());
+    }
+  }
+
+  @Test
+  public void testMapFile() throws Exception {
+    DenseMatrix m1 = new DenseMatrix("m1.txt");
+    m1.write_binary(fileName);
+    try (OffHeapDenseMatrix mapped = OffHeapDenseMatrix.map(fileName, false)) {
+      assertEquals(m1, mapped);
+      assertEquals(new DenseMatrix("result.txt"), mapped.mul(new SparseMatrix("m2.txt")));
+    }
+
+    try (OffHeapDenseMatrix mapped = OffHeapDenseMatrix.map(fileName, true)) {
+      mapped.set_entry(3, 7, 42);
+      mapped.add_to_entry(3, 7, 0.5);
+    }
+    m1.set_entry(3, 7, 42.5);
+    assertEquals(m1, new DenseMatrix(fileName));
+
+    try (OffHeapDenseMatrix created = OffHeapDenseMatrix.create(fileName, 5, 3)) {
+      created.set_entry(4, 2, -1);
+    }
+    DenseMatrix expected = new DenseMatrix(5, 3);
+    expected.set_entry(4, 2, -1);
+    assertEquals(expected, new DenseMatrix(fileName));
+  }
+
+  @Test
+  public void testWriteBinary() throws Exception {
+    try (OffHeapDenseMatrix m = OffHeapDenseMatrix.copy_of(new SparseMatrix("m2.txt"))) {
+      m.write_binary(fileName);
+    }
+    assertEquals(new SparseMatrix("m2.txt"), new SparseMatrix(fileName));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClosed() {
+    OffHeapDenseMatrix m = new OffHeapDenseMatrix(2, 2);
+    m.close();
+    m.close();
+    assertFalse(m.is_open());
+    m.get_entry(0, 0);
+  }
+}
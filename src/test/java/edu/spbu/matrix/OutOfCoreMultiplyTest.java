@@ -0,0 +1,88 @@
+package edu.spbu.matrix;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+import static edu.spbu.matrix.TestMatrices.random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OutOfCoreMultiplyTest
+{
+  String textName = "out_of_core_a.txt";
+  String binaryName = "out_of_core_b.bin";
+  String productName = "out_of_core_c.bin";
+
+  @After
+  public void cleanUp() {
+    for (String name : new String[]{textName, binaryName, productName}) {
+      File f = new File(name);
+      if (f.exists())
+        f.delete();
+    }
+  }
+
+  @Test
+  public void testTextAndBinaryOperands() throws Exception {
+    DenseMatrix a = random(150, 130, 3, 0, 10000, 1);
+    DenseMatrix b = random(130, 110, 20, 0, 10000, 2);
+    try (PrintWriter out = new PrintWriter(textName)) {
+      for (int i = 0; i < 150; i++) {
+        for (int j = 0; j < 130; j++)
+          out.print((j > 0 ? " " : "") + (long) a.get_entry(i, j));
+        out.println();
+      }
+    }
+    MatrixFactory.to_sparse(b).write_binary(binaryName);
+    Matrix expected = a.mul(b);
+
+    /* 64 KB: a few dozen tiles, every tile edge falls inside the matrices */
+    OutOfCoreMultiply multiply = new OutOfCoreMultiply(64 << 10);
+    multiply.multiply(textName, binaryName, productName);
+    assertEquals(expected, new DenseMatrix(productName));
+    assertEquals(8L * 150 * 110, multiply.get_bytes_written());
+
+    /* consecutive C tiles share one operand tile, read once */
+    int[] sizes = OutOfCoreMultiply.tile_sizes(8 << 10, 150, 130, 110);
+    OutOfCoreMultiply.Schedule schedule = new OutOfCoreMultiply.Schedule(150, 130, 110, sizes[0], sizes[1], sizes[2]);
+    int c_tiles = ((150 + sizes[0] - 1) / sizes[0]) * ((110 + sizes[1] - 1) / sizes[1]);
+    assertTrue(c_tiles > 4);
+    assertEquals(2 * schedule.steps - (c_tiles - 1), multiply.get_tile_reads());
+
+    /* one tile holds everything */
+    b.write_binary(binaryName);
+    multiply = new OutOfCoreMultiply(4 << 20);
+    multiply.set_parallel(false);
+    multiply.multiply(textName, binaryName, productName);
+    assertEquals(expected, new DenseMatrix(productName));
+    assertEquals(2, multiply.get_tile_reads());
+
+    a.write_binary(binaryName);
+    try {
+      multiply.multiply(binaryName, textName, productName);
+      fail();
+    }
+    catch (IllegalArgumentException e) {
+      assertEquals("Cannot multiply 150*130 matrix by 150*130matrix", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testTileSizes() {
+    /* 1 GB for two 100k x 100k operands: square C tiles, the rest goes to the tile pairs */
+    int[] sizes = OutOfCoreMultiply.tile_sizes(1L << 27, 100000, 100000, 100000);
+    assertEquals(OutOfCoreMultiply.MAX_DEPTH, sizes[2]);
+    assertTrue(Math.abs(sizes[0] - sizes[1]) <= 1);
+    assertTrue((long) sizes[0] * sizes[1] + 2L * sizes[2] * (sizes[0] + sizes[1]) <= 1L << 27);
+    assertTrue(sizes[0] > 9000);
+    /* a short side leaves room for wider tiles the other way */
+    sizes = OutOfCoreMultiply.tile_sizes(1L << 20, 10, 100000, 100000);
+    assertEquals(10, sizes[0]);
+    assertTrue(sizes[1] > 1024);
+    assertTrue((long) sizes[0] * sizes[1] + 2L * sizes[2] * (sizes[0] + sizes[1]) <= 1L << 20);
+  }
+}
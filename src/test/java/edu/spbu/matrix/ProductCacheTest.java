@@ -0,0 +1,76 @@
+package edu.spbu.matrix;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ProductCacheTest
+{
+  @Test
+  public void testHitsAndInvalidation() {
+    ProductCache cache = new ProductCache(1 << 20);
+    Matrix m1 = new DenseMatrix("m1.txt");
+    SparseMatrix m2 = new SparseMatrix("m2.txt");
+    Matrix expected = new DenseMatrix("result.txt");
+    assertEquals(expected, cache.mul(m1, m2));
+    assertEquals(expected, cache.dmul(m1, m2));
+    /* another object with the same contents is the same key */
+    assertEquals(expected, cache.mul(new DenseMatrix("m1.txt"), m2));
+    assertEquals(1, cache.get_misses());
+    assertEquals(2, cache.get_hits());
+    assertEquals(8L * 100 * 100, cache.get_bytes());
+
+    /* updating a result must not reach the cached product */
+    DenseMatrix result = (DenseMatrix) cache.mul(m1, m2);
+    result.set_entry(0, 0, result.get_entry(0, 0) + 1);
+    assertEquals(expected, cache.mul(m1, m2));
+
+    /* updating an operand changes its key */
+    m2.add_to_entry(0, 0, 1);
+    Matrix changed = cache.mul(m1, m2);
+    assertNotEquals(expected, changed);
+    assertEquals(m1.mul(m2), changed);
+    m2.add_to_entry(0, 0, -1);
+    assertEquals(expected, cache.mul(m1, m2));
+    assertEquals(2, cache.get_misses());
+    assertEquals(2, cache.get_size());
+
+    /* a transposed view has keys of its own */
+    assertEquals(m2.transpose().mul(m1.transpose()), cache.mul(m2.transpose(), ((DenseMatrix) m1).transpose()));
+    assertEquals(3, cache.get_misses());
+  }
+
+  @Test
+  public void testEviction() {
+    DenseMatrix a = new DenseMatrix(10, 10);
+    DenseMatrix b = new DenseMatrix(10, 10);
+    DenseMatrix c = new DenseMatrix(10, 10);
+    for (int i = 0; i < 10; i++) {
+      a.set_entry(i, i, 1);
+      b.set_entry(i, 9 - i, 2);
+      c.set_entry(i, 0, 3);
+    }
+    /* room for two 10x10 products */
+    ProductCache cache = new ProductCache(2 * 800);
+    cache.mul(a, b);
+    cache.mul(a, c);
+    cache.mul(a, b);       /* a*c is now the least recently used */
+    cache.mul(b, c);
+    assertEquals(1, cache.get_evictions());
+    assertEquals(2, cache.get_size());
+    cache.mul(a, b);       /* still cached, b*c becomes the eldest */
+    cache.mul(a, c);       /* evicted before, computed again in place of b*c */
+    assertEquals(2, cache.get_hits());
+    assertEquals(4, cache.get_misses());
+    assertEquals(2, cache.get_evictions());
+    assertEquals(1600, cache.get_bytes());
+
+    /* products over the budget are returned but never kept */
+    ProductCache small = new ProductCache(100);
+    assertEquals(a.mul(b), small.mul(a, b));
+    assertEquals(0, small.get_size());
+    small.clear();
+    assertEquals(0, small.get_bytes());
+  }
+}
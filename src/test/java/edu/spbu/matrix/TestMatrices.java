@@ -0,0 +1,44 @@
+package edu.spbu.matrix;
+
+import java.util.Random;
+
+/**
+ * seeded random operands shared by the tests: each entry is nonzero with probability 1/fraction
+ * and then drawn uniformly from [low, high)
+ */
+final class TestMatrices
+{
+  private TestMatrices() {
+  }
+
+  static DenseMatrix random(int rows, int cols, int fraction, int low, int high, long seed) {
+    Random rnd = new Random(seed);
+    DenseMatrix m = new DenseMatrix(rows, cols);
+    for (int i = 0; i < rows; i++)
+      for (int j = 0; j < cols; j++)
+        if (rnd.nextInt(fraction) == 0)
+          m.set_entry(i, j, low + rnd.nextInt(high - low));
+    return m;
+  }
+
+  /**
+   * a third of the entries nonzero, up to 10000
+   */
+  static DenseMatrix random(int rows, int cols, long seed) {
+    return random(rows, cols, 3, 0, 10000, seed);
+  }
+
+  /**
+   * same distribution, except that about a quarter of the rows are left empty
+   */
+  static SparseMatrix randomSparse(int rows, int cols, int fraction, int low, int high, long seed) {
+    Random rnd = new Random(seed);
+    SparseMatrix m = new SparseMatrix(rows, cols);
+    for (int i = 0; i < rows; i++)
+      if (rnd.nextInt(4) != 0)
+        for (int j = 0; j < cols; j++)
+          if (rnd.nextInt(fraction) == 0)
+            m.set_entry(i, j, low + rnd.nextInt(high - low));
+    return m;
+  }
+}
@@ -3,6 +3,7 @@ package edu.spbu.sort;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -45,6 +46,82 @@ public class IntSortTest
     }
   }
 
+  @Test
+  public void testMergeSort() throws Exception {
+    int array[] = generateRandomIntArray(ARRAY_SIZE, SEED);
+    int expected[] = array.clone();
+    Arrays.sort(expected);
+
+    int serial[] = array.clone();
+    IntSort.mergeSort(serial);
+    assertArrayEquals(expected, serial);
+
+    long startTime = System.nanoTime();
+    IntSort.parallelMergeSort(array);
+    System.out.println("Parallel merge sort time(ms) " + ((System.nanoTime() - startTime) / 1000000));
+    assertArrayEquals(expected, array);
+  }
+
+  @Test
+  public void testMergeSortShapes() throws Exception {
+    Random rnd = new Random(SEED);
+    int buffer[] = new int[100000];
+    for (int size : new int[]{0, 1, 2, 31, 32, 33, 1000, IntSort.PARALLEL_THRESHOLD + 1, 100000}) {
+      int[][] inputs = new int[4][size];
+      for (int i = 0; i < size; i++) {
+        inputs[0][i] = rnd.nextInt(10);           /* many duplicates */
+        inputs[1][i] = i;                         /* sorted */
+        inputs[2][i] = size - i;                  /* reversed */
+        inputs[3][i] = rnd.nextInt();
+      }
+      for (int[] input : inputs) {
+        int expected[] = input.clone();
+        Arrays.sort(expected);
+        IntSort.mergeSort(input, buffer, true);
+        assertArrayEquals(expected, input);
+      }
+    }
+  }
+
+  @Test
+  public void testRadixSort() throws Exception {
+    int array[] = generateRandomIntArray(ARRAY_SIZE, SEED);
+    int expected[] = array.clone();
+    Arrays.sort(expected);
+
+    long startTime = System.nanoTime();
+    IntSort.radixSort(array);
+    System.out.println("Radix sort time(ms) " + ((System.nanoTime() - startTime) / 1000000));
+    assertArrayEquals(expected, array);
+  }
+
+  @Test
+  public void testSortShapes() throws Exception {
+    Random rnd = new Random(SEED);
+    for (int size : new int[]{0, 1, 2, 31, 33, 100, 300, 5000, 100000}) {
+      int[][] inputs = new int[5][size];
+      for (int i = 0; i < size; i++) {
+        inputs[0][i] = rnd.nextInt(10) - 5;       /* many duplicates, negative too */
+        inputs[1][i] = i;                         /* sorted */
+        inputs[2][i] = Integer.MAX_VALUE - i;     /* reversed */
+        inputs[3][i] = rnd.nextInt();
+        inputs[4][i] = i % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+      }
+      for (int[] input : inputs) {
+        int expected[] = input.clone();
+        Arrays.sort(expected);
+        int radix[] = input.clone();
+        IntSort.radixSort(radix);
+        assertArrayEquals(expected, radix);
+        int legacy[] = input.clone();
+        IntSort.legacyMergeSort(legacy);
+        assertArrayEquals(expected, legacy);
+        IntSort.sort(input);
+        assertArrayEquals(expected, input);
+      }
+    }
+  }
+
   @Test
   public void testSortList() throws Exception {
     int array[] = generateRandomIntArray(ARRAY_SIZE, SEED);